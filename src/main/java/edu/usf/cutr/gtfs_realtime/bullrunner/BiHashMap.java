@@ -2,6 +2,7 @@ package edu.usf.cutr.gtfs_realtime.bullrunner;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
  
 public class BiHashMap<K1, K2, V> {
 
@@ -97,4 +98,13 @@ public void clear() {
     mMap.clear();
 }
 
+/**
+ * Returns the mappings of this map grouped by the first key, for iterating over every (key1, key2, value)
+ * 
+ * @return the entries of the first key, each holding the map of the second keys to the values
+ */
+public Set<Map.Entry<K1, Map<K2, V>>> entrySet() {
+    return mMap.entrySet();
+}
+
 }
\ No newline at end of file
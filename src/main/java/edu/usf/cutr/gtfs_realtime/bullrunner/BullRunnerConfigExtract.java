@@ -2,29 +2,37 @@ package edu.usf.cutr.gtfs_realtime.bullrunner;
 
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
-import org.apache.commons.codec.binary.Base64;
 import java.net.URLConnection;
 
 
 public class BullRunnerConfigExtract {
 
 	//private URL _url;
-	 private static final String path2tripsFile = "../GTFS/trips.txt";
-	 private static final String path2calFile = "../GTFS/calendar.txt";
-	 private static final String path2routeFile = "../GTFS/routes.txt";
-	 private static final String path2stopTimesFile = "../GTFS/stop_times.txt";
-	 private static final String path2frequenciesFile = "../GTFS/frequencies.txt";
+	 private String gtfsPath = "../GTFS";
+	 private String username = "admin";
+	 private String password = "admin";
+	 private UpstreamClient upstreamClient = new UpstreamClient();
+	 private File indexCacheFile;
+	 private boolean indexCacheEnabled = true;
+	 private static final Logger _log = LoggerFactory.getLogger(BullRunnerConfigExtract.class);
 	/**
 	 * @param url
 	 *            the URL for the SEPTA vehicle data API.
@@ -35,33 +43,124 @@ public class BullRunnerConfigExtract {
 
 	public HashMap<String, Integer> routesMap = new HashMap<String, Integer>();
 	//public HashMap<Integer , String> serviceIDMap = new HashMap<Integer, String>();
-	public String[] serviceIds = new String[7];  
+	public ServiceCalendar serviceCalendar;
 	public BiHashMap<String , String, String> tripIDMap = new BiHashMap<String, String, String>();
 	public HashMap<String , String> startTimeByTripIDMap = new HashMap<String, String>();
 	public BiHashMap<String, String, String> stopSeqIDMap = new BiHashMap<String, String, String>();
+	public HashMap<String, String> deviceRouteMap = new HashMap<String, String>();
+	public HashMap<String, double[]> stopLocationMap = new HashMap<String, double[]>();
+	public HashMap<String, TripStopTimes> tripStopTimesMap = new HashMap<String, TripStopTimes>();
+	public HashMap<String, String> tripShapeIdMap = new HashMap<String, String>();
+	public BiHashMap<String, String, List<String>> routeTripsMap = new BiHashMap<String, String, List<String>>();
+	public FrequencyTripTable frequencyTrips = new FrequencyTripTable();
+	public PolylineIndex polylines = new PolylineIndex();
+	public StopSpatialIndex stopIndex;
+
+	/**
+	 * @param path
+	 *            the directory holding the GTFS files of this feed
+	 */
+	public void setGtfsPath(String path) {
+		gtfsPath = path;
+	}
+
+	/**
+	 * @return the path of a file of the GTFS, e.g. gtfsFile("trips.txt")
+	 */
+	public String gtfsFile(String name) {
+		return new File(gtfsPath, name).getPath();
+	}
+
+	/**
+	 * sets the user name and password sent to the Traccar API
+	 */
+	public void setCredentials(String username, String password) {
+		this.username = username;
+		this.password = password;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	/**
+	 * @param client
+	 *            the client shared by every feed hosted in the process
+	 */
+	public void setUpstreamClient(UpstreamClient client) {
+		upstreamClient = client;
+	}
+
+	public UpstreamClient getUpstreamClient() {
+		return upstreamClient;
+	}
+
+	/**
+	 * @param file
+	 *            where the binary cache of the GTFS tables is kept, by default
+	 *            .gtfs-index.bin in the GTFS directory
+	 */
+	public void setIndexCacheFile(File file) {
+		indexCacheFile = file;
+	}
+
+	/**
+	 * @param enabled
+	 *            false to always parse the GTFS files
+	 */
+	public void setIndexCacheEnabled(boolean enabled) {
+		indexCacheEnabled = enabled;
+	}
+
+	/**
+	 * this function reads every table of the static GTFS index, from the binary cache when it was made from the
+	 * same GTFS files and from the CSV files otherwise, and then builds the trip instances and spatial indexes
+	 * @throws IOException
+	 */
+	public void loadStaticIndex() throws IOException{
+		long start = System.nanoTime();
+		GtfsIndexCache cache = new GtfsIndexCache(indexCacheFile != null ? indexCacheFile : new File(gtfsFile(".gtfs-index.bin")));
+		byte[] sourceHash = indexCacheEnabled ? GtfsIndexCache.hashSource(this) : null;
+		boolean cached = false;
+		if (indexCacheEnabled) {
+			try {
+				cached = cache.load(this, sourceHash);
+			} catch (RuntimeException ex) {
+				_log.warn("ignoring unreadable GTFS index cache " + cache.getFile(), ex);
+			}
+		}
+		if (!cached) {
+			generateTripMap();
+			generateServiceCalendar();
+			extractSeqId();
+			extractStartTime();
+			extractStops();
+			extractTripStopTimes();
+			extractShapes();
+			if (indexCacheEnabled) {
+				try {
+					cache.save(this, sourceHash);
+				} catch (IOException ex) {
+					_log.warn("can't write GTFS index cache " + cache.getFile(), ex);
+				}
+			}
+		}
+		buildTripInstances();
+		buildSpatialIndex();
+		_log.info(String.format("static GTFS index %s in %.1f ms", cached ? "loaded from " + cache.getFile() : "parsed",
+				(System.nanoTime() - start) / 1e6));
+	}
+
 	/**
 	 * @return a JSON array parsed from the data pulled from the SEPTA vehicle
 	 *         data API.
 	 */
 	public JSONArray downloadCofiguration(URL _url) throws IOException, JSONException {
-
-		URLConnection urlConnection = setUsernamePassword(_url);
-		
-		BufferedReader reader = new BufferedReader(new InputStreamReader(
-				urlConnection.getInputStream()));
-		
-		
-		
-		StringBuilder builder = new StringBuilder();
-		String inputLine;
-
-		while ((inputLine = reader.readLine()) != null)
-			builder.append(inputLine).append("\n");
- 
-	     JSONArray object = (JSONArray) new JSONTokener(builder.toString())
-			.nextValue(); 
-	     
-		return object;
+		return upstreamClient.downloadJsonArray(_url, username, password);
 	}
 	
 	public void generatesRouteMap(URL _url) throws IOException, JSONException {
@@ -88,32 +187,77 @@ public class BullRunnerConfigExtract {
 			        testAttribute = r.getString("TestAttribute");
 			    }*/
 			routesMap.put(route, ID);
+			deviceRouteMap.put(Integer.toString(ID), route);
 		}
 	}
 		
-	//extracting the service_id for dayOfWeek
-	public void generateServiceMap()throws IOException{
+	/**
+	 * this function reads the agency_timezone of agency.txt, the time zone of the schedule
+	 * @return the default time zone if agency.txt has none
+	 * @throws IOException
+	 */
+	public DateTimeZone readAgencyTimeZone() throws IOException{
 		String splitBy = ",";
 		String line;
-		BufferedReader servicesBuffer = new BufferedReader(new FileReader(path2calFile));	 
-		line = servicesBuffer.readLine(); 	
-		while((line = servicesBuffer.readLine())!= null ){
-			String[] tokens = line.split(splitBy);
-			for (int i = 1; i<= 7; i++){
-				int day = Integer.parseInt(tokens[i]);
-				if (day == 1){
-					if (i != 7)
-						serviceIds[i] = tokens[0];
-					else
-						serviceIds[0] = tokens[0];
-				}
-			}		 
+		DateTimeZone timeZone = DateTimeZone.getDefault();
+		BufferedReader agencyBuffer = new BufferedReader(new FileReader(gtfsFile("agency.txt")));
+		try{
+			line = agencyBuffer.readLine();
+			List<String> header = Arrays.asList(line.split(splitBy));
+			int column = header.indexOf("agency_timezone");
+			if (column >= 0 && (line = agencyBuffer.readLine()) != null)
+				timeZone = DateTimeZone.forID(line.split(splitBy)[column].trim());
+		}finally{
+			agencyBuffer.close();
+		}
+		return timeZone;
+	}
+
+	/**
+	 * this function resolves the service_ids active on every date from calendar.txt and calendar_dates.txt,
+	 * in the agency_timezone of agency.txt
+	 * @throws IOException
+	 */
+	public void generateServiceCalendar() throws IOException{
+		String splitBy = ",";
+		String line;
+		serviceCalendar = new ServiceCalendar(readAgencyTimeZone());
+
+		BufferedReader servicesBuffer = new BufferedReader(new FileReader(gtfsFile("calendar.txt")));
+		try{
+			line = servicesBuffer.readLine();
+			while((line = servicesBuffer.readLine())!= null ){
+				if (line.trim().isEmpty())
+					continue;
+				String[] tokens = line.split(splitBy);
+				boolean[] weekdays = new boolean[7];
+				for (int i = 1; i<= 7; i++)
+					weekdays[i - 1] = Integer.parseInt(tokens[i].trim()) == 1;
+				serviceCalendar.addCalendar(tokens[0], weekdays, tokens[8], tokens[9]);
+			}
+		}finally{
+			servicesBuffer.close();
+		}
+
+		BufferedReader datesBuffer = new BufferedReader(new FileReader(gtfsFile("calendar_dates.txt")));
+		try{
+			line = datesBuffer.readLine();
+			while((line = datesBuffer.readLine())!= null ){
+				if (line.trim().isEmpty())
+					continue;
+				String[] tokens = line.split(splitBy);
+				serviceCalendar.addException(tokens[0], tokens[1], Integer.parseInt(tokens[2].trim()));
+			}
+		}finally{
+			datesBuffer.close();
 		}
+		serviceCalendar.build();
 	}
+
 	public void generateTripMap() throws IOException{
 		
 		String  line; 
-		BufferedReader tripsBuffer = new BufferedReader(new FileReader(path2tripsFile));
+		BufferedReader tripsBuffer = new BufferedReader(new FileReader(gtfsFile("trips.txt")));
 			
 		String splitBy = ",";
 		line = tripsBuffer.readLine(); 	
@@ -121,18 +265,22 @@ public class BullRunnerConfigExtract {
 			String [] tripRoute = line.split(splitBy);
 			//System.out.println(tripRoute[0]+" , "+ tripRoute[1]+" , "+ tripRoute[2]);
 			tripIDMap.put(tripRoute[0], tripRoute[1], tripRoute[2]);
+			List<String> routeTrips = routeTripsMap.get(tripRoute[0], tripRoute[1]);
+			if (routeTrips == null) {
+				routeTrips = new ArrayList<String>();
+				routeTripsMap.put(tripRoute[0], tripRoute[1], routeTrips);
+			}
+			routeTrips.add(tripRoute[2]);
+			if (tripRoute.length > 6 && !tripRoute[6].isEmpty())
+				tripShapeIdMap.put(tripRoute[2], tripRoute[6]);
 		}   
 
   } 
 	
 	
 	public URLConnection setUsernamePassword(URL url) throws IOException {
-        URLConnection urlConnection = url.openConnection();
-        String authString = "admin" + ":" + "admin";
-        String authStringEnc = new String(Base64.encodeBase64(authString.getBytes()));
-        urlConnection.setRequestProperty("Authorization", "Basic " + authStringEnc);
-        return urlConnection;
-    }
+		return upstreamClient.openConnection(url, username, password);
+	}
 		 
 
 	 /**
@@ -160,7 +308,7 @@ public class BullRunnerConfigExtract {
 		String stop_id="", trip_id ="", stop_sequence = "";
 		//Integer stop_id=0, trip_id =0, stop_sequence = 0;
 
-		BufferedReader stop_times = new BufferedReader(new FileReader(path2stopTimesFile));
+		BufferedReader stop_times = new BufferedReader(new FileReader(gtfsFile("stop_times.txt")));
 		line = stop_times.readLine();
 		
 		try{
@@ -191,7 +339,8 @@ public class BullRunnerConfigExtract {
 	}
 	
    /**
-	 * this function extract the corresponding start_time for each trip ID from frequencies.txt in GTFS files
+	 * this function extract the corresponding start_time for each trip ID from frequencies.txt in GTFS files,
+	 * and adds every frequency window of the trip to frequencyTrips
 	 * @throws IOException
 	 */
 	public void extractStartTime() throws IOException{
@@ -201,10 +350,11 @@ public class BullRunnerConfigExtract {
 		String delims = "[,]+";
 		BufferedReader  frequencies= null;
 		try{
-		  frequencies = new BufferedReader(new FileReader(path2frequenciesFile));
+		  frequencies = new BufferedReader(new FileReader(gtfsFile("frequencies.txt")));
 		  line = frequencies.readLine();
 		  }catch(IOException e) {
-		        System.out.println("error, not able to open" + e);
+		        _log.error("can't open frequencies.txt", e);
+		        throw e;
 		}
 		String start_time = "";
 		String trip_id = "";
@@ -215,7 +365,9 @@ public class BullRunnerConfigExtract {
 				 tokens = line.split(delims);
 		 	     trip_id = tokens[0];
 		 	     start_time = tokens[1];
-		 	    startTimeByTripIDMap.put(trip_id, start_time); 
+		 	    if (!startTimeByTripIDMap.containsKey(trip_id))
+		 	    	startTimeByTripIDMap.put(trip_id, start_time);
+		 	    frequencyTrips.addFrequency(trip_id, parseTimeOfDay(start_time), parseTimeOfDay(tokens[2]), Integer.parseInt(tokens[3].trim()));
 		 	  line = frequencies.readLine();
 			 }
 		}finally{
@@ -224,5 +376,168 @@ public class BullRunnerConfigExtract {
 	}
 	
 	
+	/**
+	 * this function extract the coordinates of each stop ID from stops.txt in GTFS files
+	 * @throws IOException
+	 */
+	public void extractStops() throws IOException{
+
+		String line;
+		String[] tokens;
+		BufferedReader stops = new BufferedReader(new FileReader(gtfsFile("stops.txt")));
+		try{
+			line = stops.readLine();
+			while ((line = stops.readLine()) != null) {
+				if (line.trim().isEmpty())
+					continue;
+				tokens = line.split(",");
+				double lat = Double.parseDouble(tokens[3].trim());
+				double lon = Double.parseDouble(tokens[4].trim());
+				stopLocationMap.put(tokens[0], new double[] {lat, lon});
+			}
+		}finally{
+			stops.close();
+		}
+	}
+
+	/**
+	 * this function extract the ordered stops and scheduled arrival times of each trip ID from stop_times.txt
+	 * in GTFS files; extractStops() has to be called first so that the stops can be located
+	 * @throws IOException
+	 */
+	public void extractTripStopTimes() throws IOException{
+
+		String line;
+		String[] tokens;
+		HashMap<String, List<String[]>> rowsByTrip = new HashMap<String, List<String[]>>();
+		BufferedReader stop_times = new BufferedReader(new FileReader(gtfsFile("stop_times.txt")));
+		try{
+			line = stop_times.readLine();
+			while ((line = stop_times.readLine()) != null) {
+				if (line.trim().isEmpty())
+					continue;
+				tokens = line.split(",");
+				List<String[]> rows = rowsByTrip.get(tokens[0]);
+				if (rows == null) {
+					rows = new ArrayList<String[]>();
+					rowsByTrip.put(tokens[0], rows);
+				}
+				rows.add(tokens);
+			}
+		}finally{
+			stop_times.close();
+		}
+
+		for (String trip_id : rowsByTrip.keySet()) {
+			List<String[]> rows = rowsByTrip.get(trip_id);
+			Collections.sort(rows, new Comparator<String[]>() {
+				@Override
+				public int compare(String[] a, String[] b) {
+					return Integer.compare(Integer.parseInt(a[4]), Integer.parseInt(b[4]));
+				}
+			});
+			int n = rows.size();
+			String[] stopIds = new String[n];
+			int[] stopSequences = new int[n];
+			int[] arrivalTimes = new int[n];
+			double[] lats = new double[n];
+			double[] lons = new double[n];
+			for (int i = 0; i < n; i++) {
+				String[] row = rows.get(i);
+				stopIds[i] = row[3];
+				stopSequences[i] = Integer.parseInt(row[4]);
+				arrivalTimes[i] = parseTimeOfDay(row[1]);
+				double[] location = stopLocationMap.get(row[3]);
+				lats[i] = location == null ? Double.NaN : location[0];
+				lons[i] = location == null ? Double.NaN : location[1];
+			}
+			tripStopTimesMap.put(trip_id, new TripStopTimes(trip_id, stopIds, stopSequences, arrivalTimes, lats, lons));
+		}
+	}
+
+	/**
+	 * this function expands the frequency windows read by extractStartTime() into the table of trip instances;
+	 * trips without frequencies run once at their first arrival from stop_times.txt, so extractTripStopTimes()
+	 * has to be called first
+	 */
+	public void buildTripInstances() {
+
+		for (TripStopTimes stopTimes : tripStopTimesMap.values())
+			frequencyTrips.addScheduledTrip(stopTimes.tripId, stopTimes.firstArrivalTime);
+		frequencyTrips.build();
+	}
+
+	/**
+	 * @param time a GTFS time such as 6:30:00 or 24:15:00
+	 * @return the number of seconds after midnight
+	 */
+	public static int parseTimeOfDay(String time) {
+		String[] parts = time.trim().split(":");
+		return Integer.parseInt(parts[0]) * 3600 + Integer.parseInt(parts[1]) * 60 + Integer.parseInt(parts[2]);
+	}
+	
+	/**
+	 * this function extract the points of each shape ID from shapes.txt in GTFS files into the polyline index
+	 * @throws IOException
+	 */
+	public void extractShapes() throws IOException{
+
+		String line;
+		String[] tokens;
+		HashMap<String, List<String[]>> rowsByShape = new HashMap<String, List<String[]>>();
+		BufferedReader shapes = new BufferedReader(new FileReader(gtfsFile("shapes.txt")));
+		try{
+			line = shapes.readLine();
+			while ((line = shapes.readLine()) != null) {
+				if (line.trim().isEmpty())
+					continue;
+				tokens = line.split(",");
+				List<String[]> rows = rowsByShape.get(tokens[0]);
+				if (rows == null) {
+					rows = new ArrayList<String[]>();
+					rowsByShape.put(tokens[0], rows);
+				}
+				rows.add(tokens);
+			}
+		}finally{
+			shapes.close();
+		}
+
+		for (String shape_id : rowsByShape.keySet()) {
+			List<String[]> rows = rowsByShape.get(shape_id);
+			Collections.sort(rows, new Comparator<String[]>() {
+				@Override
+				public int compare(String[] a, String[] b) {
+					return Integer.compare(Integer.parseInt(a[3].trim()), Integer.parseInt(b[3].trim()));
+				}
+			});
+			double[] lats = new double[rows.size()];
+			double[] lons = new double[rows.size()];
+			for (int i = 0; i < rows.size(); i++) {
+				lats[i] = Double.parseDouble(rows.get(i)[1].trim());
+				lons[i] = Double.parseDouble(rows.get(i)[2].trim());
+			}
+			polylines.add(shape_id, lats, lons, lats.length);
+		}
+	}
+
+	/**
+	 * this function builds the nearest-stop index and links every trip to its stops in it and to the polyline it
+	 * runs on: its shape when shapes.txt has one, otherwise the line through its stops. extractStops(), extractTripStopTimes() and
+	 * extractShapes() have to be called first
+	 */
+	public void buildSpatialIndex() {
+
+		stopIndex = StopSpatialIndex.build(stopLocationMap);
+		for (TripStopTimes stopTimes : tripStopTimesMap.values()) {
+			String shape_id = tripShapeIdMap.get(stopTimes.tripId);
+			int polyline = shape_id == null ? -1 : polylines.indexOf(shape_id);
+			if (polyline < 0 || polylines.getPointCount(polyline) < 2)
+				polyline = polylines.add("trip:" + stopTimes.tripId, stopTimes.stopLats, stopTimes.stopLons, stopTimes.size());
+			stopTimes.setPolyline(polylines, polyline);
+			stopTimes.setStopIndex(stopIndex);
+		}
+	}
+
 }
 
@@ -0,0 +1,223 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A token bucket per client of the feed endpoints. Each client may make
+ * {@link #setRate(double) rate} requests per second on average and up to
+ * {@link #setBurst(int) burst} at once; a request finding the bucket empty is
+ * rejected, so a client polling in a tight loop only gets its share. The
+ * limiter is off until a rate is set.
+ *
+ * A client is known by its API key only if the key is one of the
+ * {@link #setApiKeys(Collection) configured} ones; anyone can make up a key,
+ * so any other key is ignored and the client is known by its address. Behind
+ * a {@link #setTrustedProxies(Collection) trusted proxy} the address is taken
+ * from the X-Forwarded-For header the proxy adds.
+ *
+ * The buckets are kept in a table striped over several locks, so requests of
+ * different clients rarely contend. Each stripe drops the buckets of clients
+ * that have been idle for a while when it is next used, which keeps the table
+ * bounded by the clients of the last few minutes.
+ */
+@Singleton
+public class ClientRateLimiter {
+
+	private static final int STRIPES = 16;
+
+	private final Stripe[] _stripes = new Stripe[STRIPES];
+
+	private volatile double _rate = 0;
+
+	private volatile int _burst = 30;
+
+	private volatile long _idleTimeoutNanos = 5 * 60 * 1000000000L;
+
+	private volatile Set<String> _apiKeys = Collections.emptySet();
+
+	private volatile Set<String> _trustedProxies = Collections.emptySet();
+
+	private final AtomicLong _allowed = new AtomicLong();
+
+	private final AtomicLong _rejected = new AtomicLong();
+
+	private final AtomicLong _evicted = new AtomicLong();
+
+	public ClientRateLimiter() {
+		for (int i = 0; i < STRIPES; i++)
+			_stripes[i] = new Stripe();
+	}
+
+	/**
+	 * @param rate
+	 *            requests per second each client may make on average; 0 turns
+	 *            the limiter off
+	 */
+	public void setRate(double rate) {
+		_rate = rate;
+	}
+
+	/**
+	 * @param burst
+	 *            how many requests a client may make at once after being idle
+	 */
+	public void setBurst(int burst) {
+		_burst = burst;
+	}
+
+	/**
+	 * @param seconds
+	 *            how long a client stays in the table after its last request
+	 */
+	public void setIdleTimeout(int seconds) {
+		_idleTimeoutNanos = seconds * 1000000000L;
+	}
+
+	/**
+	 * @param keys
+	 *            the API keys whose clients get a bucket of their own
+	 */
+	public void setApiKeys(Collection<String> keys) {
+		_apiKeys = new HashSet<String>(keys);
+	}
+
+	/**
+	 * @param addresses
+	 *            the addresses of the reverse proxies whose X-Forwarded-For
+	 *            header is believed
+	 */
+	public void setTrustedProxies(Collection<String> addresses) {
+		_trustedProxies = new HashSet<String>(addresses);
+	}
+
+	/**
+	 * @return the client the request counts against: its API key if it is a
+	 *         configured one, otherwise its address
+	 */
+	public String getClient(HttpServletRequest req) {
+		String key = req.getParameter("key");
+		if (key == null) {
+			key = req.getHeader("X-API-Key");
+		}
+		if (key != null && _apiKeys.contains(key))
+			return "key:" + key;
+		String address = req.getRemoteAddr();
+		if (!_trustedProxies.contains(address))
+			return address;
+		String forwardedFor = req.getHeader("X-Forwarded-For");
+		if (forwardedFor == null)
+			return address;
+		// each proxy appends the address it got the request from, so the
+		// client is the last one not added by a trusted proxy
+		String[] hops = forwardedFor.split(",");
+		for (int i = hops.length - 1; i >= 0; i--) {
+			String hop = hops[i].trim();
+			if (hop.isEmpty())
+				continue;
+			address = hop;
+			if (!_trustedProxies.contains(hop))
+				break;
+		}
+		return address;
+	}
+
+	/**
+	 * Takes a token from the client's bucket.
+	 *
+	 * @return false if the client has used up its requests
+	 */
+	public boolean tryAcquire(String client) {
+		if (_rate <= 0) {
+			_allowed.incrementAndGet();
+			return true;
+		}
+		long now = System.nanoTime();
+		int hash = client.hashCode();
+		Stripe stripe = _stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+		boolean allowed;
+		synchronized (stripe) {
+			if (now - stripe.lastSweep > _idleTimeoutNanos)
+				stripe.sweep(now);
+			Bucket bucket = stripe.buckets.get(client);
+			if (bucket == null) {
+				bucket = new Bucket();
+				bucket.tokens = _burst;
+				bucket.lastRefill = now;
+				stripe.buckets.put(client, bucket);
+			} else {
+				bucket.tokens = Math.min(_burst, bucket.tokens + (now - bucket.lastRefill) * _rate / 1e9);
+				bucket.lastRefill = now;
+			}
+			allowed = bucket.tokens >= 1;
+			if (allowed)
+				bucket.tokens -= 1;
+		}
+		(allowed ? _allowed : _rejected).incrementAndGet();
+		return allowed;
+	}
+
+	/**
+	 * @return how long the client should wait for its next token, in seconds
+	 */
+	public int getRetryAfter() {
+		return _rate <= 0 ? 0 : (int) Math.ceil(1 / _rate);
+	}
+
+	public long getAllowed() {
+		return _allowed.get();
+	}
+
+	public long getRejected() {
+		return _rejected.get();
+	}
+
+	public long getEvicted() {
+		return _evicted.get();
+	}
+
+	/**
+	 * @return how many clients have a bucket in the table
+	 */
+	public int getClientCount() {
+		int count = 0;
+		for (Stripe stripe : _stripes) {
+			synchronized (stripe) {
+				count += stripe.buckets.size();
+			}
+		}
+		return count;
+	}
+
+	private static class Bucket {
+		double tokens;
+		long lastRefill;
+	}
+
+	private class Stripe {
+
+		final Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+
+		long lastSweep = System.nanoTime();
+
+		void sweep(long now) {
+			Iterator<Bucket> it = buckets.values().iterator();
+			while (it.hasNext()) {
+				if (now - it.next().lastRefill > _idleTimeoutNanos) {
+					it.remove();
+					_evicted.incrementAndGet();
+				}
+			}
+			lastSweep = now;
+		}
+	}
+}
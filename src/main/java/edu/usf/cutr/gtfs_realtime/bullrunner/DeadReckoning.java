@@ -0,0 +1,198 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Arrays;
+
+/**
+ * Moves the vehicles forward along their trips between two refreshes, so the
+ * vehicle positions can be published more often than upstream is polled.
+ *
+ * After each refresh every vehicle is added with its fix and, if it was matched
+ * to its trip, where along the trip's polyline the fix lies. Its speed along
+ * the polyline is estimated from its previous match, or taken from the speed
+ * it reported when there is none. {@link #project(long)} then places each
+ * matched vehicle at the distance it would have covered since its fix, but
+ * never past its next stop, where it may dwell, and never further than the
+ * horizon. Vehicles that were not matched stay at their fix.
+ *
+ * Everything lives in preallocated primitive arrays indexed like the snapshot
+ * the vehicles came from, so projecting a frame allocates nothing.
+ */
+public class DeadReckoning {
+
+	/** a speed estimate above this is taken as a bad match, in meters per second */
+	private static final double MAX_SPEED = 30;
+
+	private final PolylineIndex _polylines;
+
+	private final PolylineIndex.Projection _point = new PolylineIndex.Projection();
+
+	private int _horizonSeconds = 60;
+
+	public int size;
+
+	/** in seconds since the epoch */
+	private long[] _fixTimes = new long[0];
+
+	private double[] _fixLats = new double[0];
+
+	private double[] _fixLons = new double[0];
+
+	private float[] _fixBearings = new float[0];
+
+	/** polyline of the vehicle's trip, -1 if it was not matched */
+	private int[] _polylineOf = new int[0];
+
+	/** distance along the polyline at the fix, in meters */
+	private double[] _distances = new double[0];
+
+	/** distance along the polyline of the next stop, in meters */
+	private double[] _limits = new double[0];
+
+	/** in meters per second */
+	private double[] _speeds = new double[0];
+
+	/** projected latitudes of the last frame */
+	public double[] lats = new double[0];
+
+	/** projected longitudes of the last frame */
+	public double[] lons = new double[0];
+
+	/** projected bearings of the last frame */
+	public float[] bearings = new float[0];
+
+	/** whether each vehicle was moved away from its fix in the last frame */
+	public boolean[] moved = new boolean[0];
+
+	/**
+	 * time each vehicle was placed at in the last frame, in seconds since the
+	 * epoch: its fix time, plus the time since the fix up to the horizon if it
+	 * was moved
+	 */
+	public long[] times = new long[0];
+
+	/** previous match of each vehicle by its handle, to estimate its speed */
+	private int[] _lastPolyline = new int[0];
+
+	private double[] _lastDistance = new double[0];
+
+	private long[] _lastFixTime = new long[0];
+
+	private double[] _lastSpeed = new double[0];
+
+	public DeadReckoning(PolylineIndex polylines) {
+		_polylines = polylines;
+	}
+
+	/**
+	 * @param seconds
+	 *            how far past its fix a vehicle is moved at most
+	 */
+	public void setHorizon(int seconds) {
+		_horizonSeconds = seconds;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Adds a vehicle of the latest refresh.
+	 *
+	 * @param vehicle
+	 *            handle of the vehicle id
+	 * @param fixTime
+	 *            in seconds since the epoch
+	 * @param reportedSpeed
+	 *            in meters per second
+	 * @param polyline
+	 *            polyline of the vehicle's trip, -1 if the fix was not matched
+	 * @param distance
+	 *            distance of the fix along the polyline, in meters
+	 * @param limit
+	 *            distance along the polyline the vehicle is not moved past
+	 */
+	public void add(int vehicle, long fixTime, double lat, double lon, float bearing, float reportedSpeed,
+			int polyline, double distance, double limit) {
+		if (size == _fixTimes.length)
+			grow(Math.max(16, size * 2));
+		if (vehicle >= _lastPolyline.length) {
+			int length = _lastPolyline.length;
+			int capacity = Math.max(vehicle + 1, length * 2);
+			_lastPolyline = Arrays.copyOf(_lastPolyline, capacity);
+			Arrays.fill(_lastPolyline, length, capacity, -1);
+			_lastDistance = Arrays.copyOf(_lastDistance, capacity);
+			_lastFixTime = Arrays.copyOf(_lastFixTime, capacity);
+			_lastSpeed = Arrays.copyOf(_lastSpeed, capacity);
+		}
+		double speed = reportedSpeed;
+		if (polyline >= 0 && polyline == _lastPolyline[vehicle]) {
+			if (fixTime == _lastFixTime[vehicle]) {
+				speed = _lastSpeed[vehicle];
+			} else if (fixTime > _lastFixTime[vehicle] && distance >= _lastDistance[vehicle]) {
+				speed = (distance - _lastDistance[vehicle]) / (fixTime - _lastFixTime[vehicle]);
+			}
+		}
+		speed = Math.max(0, Math.min(MAX_SPEED, speed));
+		_lastPolyline[vehicle] = polyline;
+		_lastDistance[vehicle] = distance;
+		_lastFixTime[vehicle] = fixTime;
+		_lastSpeed[vehicle] = speed;
+
+		int i = size++;
+		_fixTimes[i] = fixTime;
+		_fixLats[i] = lat;
+		_fixLons[i] = lon;
+		_fixBearings[i] = bearing;
+		_polylineOf[i] = polyline;
+		_distances[i] = distance;
+		_limits[i] = Math.max(distance, limit);
+		_speeds[i] = speed;
+	}
+
+	private void grow(int capacity) {
+		_fixTimes = Arrays.copyOf(_fixTimes, capacity);
+		_fixLats = Arrays.copyOf(_fixLats, capacity);
+		_fixLons = Arrays.copyOf(_fixLons, capacity);
+		_fixBearings = Arrays.copyOf(_fixBearings, capacity);
+		_polylineOf = Arrays.copyOf(_polylineOf, capacity);
+		_distances = Arrays.copyOf(_distances, capacity);
+		_limits = Arrays.copyOf(_limits, capacity);
+		_speeds = Arrays.copyOf(_speeds, capacity);
+		lats = Arrays.copyOf(lats, capacity);
+		lons = Arrays.copyOf(lons, capacity);
+		bearings = Arrays.copyOf(bearings, capacity);
+		moved = Arrays.copyOf(moved, capacity);
+		times = Arrays.copyOf(times, capacity);
+	}
+
+	/**
+	 * Places every vehicle where it is estimated to be at the given time.
+	 *
+	 * @param nowMillis
+	 *            in milliseconds since the epoch
+	 * @return how many vehicles were moved away from their fix
+	 */
+	public int project(long nowMillis) {
+		int movedCount = 0;
+		for (int i = 0; i < size; i++) {
+			double elapsed = Math.min(_horizonSeconds, (nowMillis - _fixTimes[i] * 1000) / 1000.0);
+			double distance = Math.min(_limits[i], _distances[i] + _speeds[i] * Math.max(0, elapsed));
+			int polyline = _polylineOf[i];
+			if (polyline < 0 || distance <= _distances[i] || !_polylines.locate(polyline, distance, _point)) {
+				lats[i] = _fixLats[i];
+				lons[i] = _fixLons[i];
+				bearings[i] = _fixBearings[i];
+				moved[i] = false;
+				times[i] = _fixTimes[i];
+				continue;
+			}
+			lats[i] = _point.lat;
+			lons[i] = _point.lon;
+			bearings[i] = _polylines.getBearing(polyline, _point.segment);
+			moved[i] = true;
+			times[i] = _fixTimes[i] + (long) elapsed;
+			movedCount++;
+		}
+		return movedCount;
+	}
+}
@@ -0,0 +1,224 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * Keeps every snapshot an exporter published, as the exact protobuf bytes it
+ * served, so the feed as it was at a past instant can be served again.
+ *
+ * The snapshots are appended to segment files, one per hour by default, named
+ * feed-&lt;start of the hour in seconds&gt;.seg. Each record holds the time the
+ * snapshot was published, in ms, its length, the bytes and their CRC32, so a
+ * record torn by a crash is cut off when the archive is opened again. Next to
+ * each segment, a .idx file lists the time and offset of every record, and is
+ * kept in memory: finding the snapshot served at an instant is a binary search
+ * for the last one published at or before it, and its bytes are a read-only
+ * slice of the memory-mapped segment.
+ *
+ * Segments older than the retention period are deleted, so the directory
+ * holds a ring of the last days of the feed. Records are written on a thread
+ * of their own, in the order the snapshots were published.
+ */
+public class FeedArchive implements GtfsRealtimeIncrementalListener {
+
+	private static final Logger _log = LoggerFactory.getLogger(FeedArchive.class);
+
+	private static final int MAGIC = 0x46415231;
+
+	/** magic, length of the bytes and time */
+	private static final int RECORD_HEADER_LENGTH = 4 + 4 + 8;
+
+	private final GtfsRealtimeExporterCutr _source;
+
+	/** the records of the segments are indexed by their time */
+	private final SegmentStore _segments;
+
+	private ExecutorService _executor;
+
+	/**
+	 * A snapshot found in the archive.
+	 */
+	public static class Snapshot {
+
+		/** when it was published, in ms since the epoch */
+		public final long time;
+
+		/** the protobuf bytes, a read-only slice of the segment */
+		public final ByteBuffer binary;
+
+		Snapshot(long time, ByteBuffer binary) {
+			this.time = time;
+			this.binary = binary;
+		}
+	}
+
+	public FeedArchive(GtfsRealtimeExporterCutr source, File directory) {
+		_source = source;
+		_segments = new SegmentStore(directory, "feed", MAGIC, RECORD_HEADER_LENGTH, 1);
+	}
+
+	/**
+	 * @param seconds
+	 *            how much time each segment file covers
+	 */
+	public void setPartitionSeconds(int seconds) {
+		_segments.setPartitionSeconds(seconds);
+	}
+
+	/**
+	 * @param seconds
+	 *            how long segments are kept, from the end of the time they
+	 *            cover
+	 */
+	public void setRetentionSeconds(long seconds) {
+		_segments.setRetentionSeconds(seconds);
+	}
+
+	/**
+	 * Reads the index of the segments in the directory, cutting off records
+	 * torn by a crash, and deletes the segments past the retention period.
+	 */
+	public synchronized void open() throws IOException {
+		_segments.open();
+		expire(System.currentTimeMillis() / 1000);
+	}
+
+	/**
+	 * Archives the snapshots of the source from now on, starting with its
+	 * current one.
+	 */
+	public void start() {
+		_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "feed-archive");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		_source.addIncrementalListener(this);
+	}
+
+	public void stop() {
+		_source.removeIncrementalListener(this);
+		if (_executor != null)
+			_executor.shutdown();
+	}
+
+	/**
+	 * Queues the current snapshot of the source, which is the one just
+	 * published, a differential feed included: the exporter calls its
+	 * listeners while holding its lock, once its index has moved on. Only the
+	 * encoding of the snapshot is left to the archive thread.
+	 */
+	@Override
+	public void handleFeed(FeedMessage feed) {
+		final long time = System.currentTimeMillis();
+		final FeedSnapshot snapshot = _source.getSnapshot();
+		_executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					append(time, snapshot.getBinary());
+				} catch (IOException ex) {
+					_log.warn("Error archiving the feed", ex);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Appends a snapshot to the segment of its time.
+	 *
+	 * @param time
+	 *            when the snapshot was published, in ms since the epoch
+	 */
+	public synchronized void append(long time, byte[] binary) throws IOException {
+		long seconds = time / 1000;
+		SegmentStore.Segment segment = _segments.getSegment(_segments.partitionOf(seconds));
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + binary.length + 4);
+		record.putInt(MAGIC);
+		record.putInt(binary.length);
+		record.putLong(time);
+		record.put(binary);
+		CRC32 crc = new CRC32();
+		crc.update(binary);
+		record.putInt((int) crc.getValue());
+		record.flip();
+		segment.append(record);
+		expire(seconds);
+	}
+
+	/**
+	 * Deletes the segments whose time ended before the retention period.
+	 *
+	 * @param now
+	 *            in seconds since the epoch
+	 */
+	public synchronized void expire(long now) {
+		_segments.expire(now, Long.MIN_VALUE);
+	}
+
+	/**
+	 * @param time
+	 *            in ms since the epoch
+	 * @return the last snapshot published at or before the time, or null if
+	 *         the archive has none that old
+	 */
+	public Snapshot find(long time) throws IOException {
+		long seconds = time / 1000;
+		long published, offset;
+		ByteBuffer buffer;
+		synchronized (this) {
+			Map.Entry<Long, SegmentStore.Segment> floor = _segments.getSegments().floorEntry(seconds);
+			SegmentStore.Segment segment;
+			int entry;
+			while (true) {
+				if (floor == null)
+					return null;
+				segment = floor.getValue();
+				entry = find(segment, time);
+				if (entry >= 0)
+					break;
+				floor = _segments.getSegments().lowerEntry(floor.getKey());
+			}
+			published = segment.index[entry * 2];
+			offset = segment.index[entry * 2 + 1];
+			buffer = segment.map();
+		}
+		int length = buffer.getInt((int) offset + 4);
+		buffer.position((int) offset + RECORD_HEADER_LENGTH);
+		buffer.limit((int) offset + RECORD_HEADER_LENGTH + length);
+		return new Snapshot(published, buffer.slice().asReadOnlyBuffer());
+	}
+
+	/**
+	 * @return the last record of the segment published at or before the time,
+	 *         or -1 if the first one is later
+	 */
+	private static int find(SegmentStore.Segment segment, long time) {
+		long[] index = segment.index;
+		int low = 0, high = segment.entries - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (index[middle * 2] <= time)
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		return high;
+	}
+}
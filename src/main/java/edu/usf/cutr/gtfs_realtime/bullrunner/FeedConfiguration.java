@@ -0,0 +1,126 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * One feed hosted by the process, as read from the --feeds file. The file is a
+ * JSON array with one object per feed:
+ *
+ * <pre>
+ * [
+ *   {
+ *     "id": "uwi",
+ *     "gtfsPath": "../GTFS",
+ *     "upstreamUrl": "http://juandissimo.adkintegrations.com:8082",
+ *     "username": "admin",
+ *     "password": "admin",
+ *     "refreshInterval": 30,
+ *     "interpolationInterval": 2,
+ *     "tripUpdatesUrl": "http://localhost:8088/uwi/trip-updates",
+ *     "vehiclePositionsUrl": "http://localhost:8088/uwi/vehicle-positions",
+ *     "tripUpdatesPath": "/var/www/uwi/trip-updates.pb",
+ *     "vehiclePositionsPath": "/var/www/uwi/vehicle-positions.pb",
+ *     "alertsUrl": "http://localhost:8088/uwi/alerts",
+ *     "alertsPath": "/var/www/uwi/alerts.pb",
+ *     "mixedFeedUrl": "http://localhost:8088/uwi/feed",
+ *     "routeStatsUrl": "http://localhost:8088/uwi/route-stats",
+ *     "historyPath": "/var/lib/uwi/history",
+ *     "archivePath": "/var/lib/uwi/archive"
+ *   }
+ * ]
+ * </pre>
+ *
+ * Only the id is required. The GTFS directory, upstream URL and credentials
+ * default to the ones a single feed uses, and the output URLs and paths and
+ * the history and archive directories are optional, like the matching command
+ * line arguments.
+ */
+public class FeedConfiguration {
+
+	public String id;
+
+	public String gtfsPath = "../GTFS";
+
+	public String upstreamUrl = "http://juandissimo.adkintegrations.com:8082";
+
+	public String username = "admin";
+
+	public String password = "admin";
+
+	/** how often vehicle data is downloaded, in seconds */
+	public int refreshInterval = 30;
+
+	/** how often interpolated vehicle positions are published, in seconds, 0 for never */
+	public int interpolationInterval;
+
+	public String tripUpdatesUrl;
+
+	public String tripUpdatesPath;
+
+	public String vehiclePositionsUrl;
+
+	public String vehiclePositionsPath;
+
+	public String alertsUrl;
+
+	public String alertsPath;
+
+	/** where the feed mixing the trip updates, vehicle positions and alerts is served */
+	public String mixedFeedUrl;
+
+	public String mixedFeedPath;
+
+	public String routeStatsUrl;
+
+	/** directory of the position history, none is kept if null */
+	public String historyPath;
+
+	/** directory the published snapshots are archived in, none are if null */
+	public String archivePath;
+
+	public static List<FeedConfiguration> load(File file) throws IOException, JSONException {
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		JSONArray array;
+		try {
+			array = (JSONArray) new JSONTokener(reader).nextValue();
+		} finally {
+			reader.close();
+		}
+		List<FeedConfiguration> feeds = new ArrayList<FeedConfiguration>();
+		for (int i = 0; i < array.length(); i++) {
+			JSONObject obj = array.getJSONObject(i);
+			FeedConfiguration feed = new FeedConfiguration();
+			feed.id = obj.getString("id");
+			feed.gtfsPath = obj.optString("gtfsPath", feed.gtfsPath);
+			feed.upstreamUrl = obj.optString("upstreamUrl", feed.upstreamUrl);
+			feed.username = obj.optString("username", feed.username);
+			feed.password = obj.optString("password", feed.password);
+			feed.refreshInterval = obj.optInt("refreshInterval", feed.refreshInterval);
+			feed.interpolationInterval = obj.optInt("interpolationInterval", feed.interpolationInterval);
+			feed.tripUpdatesUrl = obj.optString("tripUpdatesUrl", null);
+			feed.tripUpdatesPath = obj.optString("tripUpdatesPath", null);
+			feed.vehiclePositionsUrl = obj.optString("vehiclePositionsUrl", null);
+			feed.vehiclePositionsPath = obj.optString("vehiclePositionsPath", null);
+			feed.alertsUrl = obj.optString("alertsUrl", null);
+			feed.alertsPath = obj.optString("alertsPath", null);
+			feed.mixedFeedUrl = obj.optString("mixedFeedUrl", null);
+			feed.mixedFeedPath = obj.optString("mixedFeedPath", null);
+			feed.routeStatsUrl = obj.optString("routeStatsUrl", null);
+			feed.historyPath = obj.optString("historyPath", null);
+			feed.archivePath = obj.optString("archivePath", null);
+			feeds.add(feed);
+		}
+		return feeds;
+	}
+}
@@ -0,0 +1,239 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalListener;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeOneBusAway;
+
+/**
+ * Writes a feed to a file each time the exporter publishes a new snapshot,
+ * instead of rewriting it on a timer like GtfsRealtimeFileWriter. A snapshot
+ * whose incremental index was already written is skipped, so nothing touches
+ * the disk while the feed doesn't change.
+ *
+ * The feed is serialized into a direct buffer reused across writes, written to
+ * a temporary file next to the target and renamed over it, so readers of the
+ * file never see a partial feed. A gzip copy can be kept at path + ".gz" the
+ * same way. Writes run on their own thread; if snapshots arrive faster than
+ * they are written, only the latest one is written.
+ */
+public class FeedFileWriter implements GtfsRealtimeIncrementalListener {
+
+	private static final Logger _log = LoggerFactory.getLogger(FeedFileWriter.class);
+
+	/**
+	 * When the written data is forced to the disk before the rename.
+	 */
+	public enum FsyncPolicy {
+		/** leave it to the operating system */
+		NEVER,
+		/** the temporary file is forced to disk before it is renamed */
+		FILE,
+		/** as FILE, and the directory is forced after the rename */
+		DIRECTORY
+	}
+
+	private final GtfsRealtimeSource _source;
+
+	private final Path _path;
+
+	private final Path _tempPath;
+
+	private final Path _gzipPath;
+
+	private final Path _gzipTempPath;
+
+	private FsyncPolicy _fsyncPolicy = FsyncPolicy.NEVER;
+
+	private final AtomicReference<FeedMessage> _pending = new AtomicReference<FeedMessage>();
+
+	private final ExecutorService _executor;
+
+	private ByteBuffer _buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+	private final byte[] _chunk = new byte[8192];
+
+	private long _writtenIndex = -1;
+
+	/** set when a differential arrives, whose entities are already in the source before its index moves */
+	private volatile boolean _forceWrite;
+
+	private long _writeCount;
+
+	/**
+	 * @param gzip
+	 *            whether to also keep a gzip copy at path + ".gz"
+	 */
+	public FeedFileWriter(GtfsRealtimeSource source, File path, boolean gzip) {
+		_source = source;
+		_path = path.getAbsoluteFile().toPath();
+		_tempPath = _path.resolveSibling("." + _path.getFileName() + ".tmp");
+		_gzipPath = gzip ? _path.resolveSibling(_path.getFileName() + ".gz") : null;
+		_gzipTempPath = gzip ? _path.resolveSibling("." + _path.getFileName() + ".gz.tmp") : null;
+		_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "feed-writer-" + _path.getFileName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+		_fsyncPolicy = fsyncPolicy;
+	}
+
+	/**
+	 * Registers with the source; the current snapshot is written right away.
+	 */
+	public void start() {
+		_source.addIncrementalListener(this);
+	}
+
+	public void stop() {
+		_source.removeIncrementalListener(this);
+		_executor.shutdown();
+	}
+
+	/**
+	 * @return how many snapshots were written to the file
+	 */
+	public long getWriteCount() {
+		return _writeCount;
+	}
+
+	@Override
+	public void handleFeed(FeedMessage feed) {
+		// differential feeds are followed by a full snapshot from the source
+		if (feed.getHeader().getIncrementality() == Incrementality.DIFFERENTIAL) {
+			feed = _source.getFeed();
+			_forceWrite = true;
+		}
+		if (_pending.getAndSet(feed) == null)
+			_executor.execute(new WriteTask());
+	}
+
+	private class WriteTask implements Runnable {
+		@Override
+		public void run() {
+			FeedMessage feed = _pending.getAndSet(null);
+			if (feed == null)
+				return;
+			long index = getIncrementalIndex(feed);
+			boolean force = _forceWrite;
+			_forceWrite = false;
+			if (!force && index >= 0 && index == _writtenIndex)
+				return;
+			try {
+				write(feed);
+				_writtenIndex = index;
+				_writeCount++;
+			} catch (IOException ex) {
+				_log.warn("error writing feed to " + _path, ex);
+			}
+		}
+	}
+
+	private void write(FeedMessage feed) throws IOException {
+		int size = feed.getSerializedSize();
+		if (_buffer.capacity() < size)
+			_buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(size) << 1);
+		_buffer.clear();
+		CodedOutputStream output = CodedOutputStream.newInstance(new BufferOutputStream());
+		feed.writeTo(output);
+		output.flush();
+		_buffer.flip();
+
+		try (FileChannel channel = FileChannel.open(_tempPath, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (_buffer.hasRemaining())
+				channel.write(_buffer);
+			if (_fsyncPolicy != FsyncPolicy.NEVER)
+				channel.force(false);
+		}
+		rename(_tempPath, _path);
+
+		if (_gzipPath != null) {
+			_buffer.rewind();
+			try (FileChannel channel = FileChannel.open(_gzipTempPath, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				GZIPOutputStream gzip = new GZIPOutputStream(Channels.newOutputStream(channel), _chunk.length);
+				while (_buffer.hasRemaining()) {
+					int length = Math.min(_chunk.length, _buffer.remaining());
+					_buffer.get(_chunk, 0, length);
+					gzip.write(_chunk, 0, length);
+				}
+				gzip.finish();
+				gzip.flush();
+				if (_fsyncPolicy != FsyncPolicy.NEVER)
+					channel.force(false);
+			}
+			rename(_gzipTempPath, _gzipPath);
+		}
+
+		if (_fsyncPolicy == FsyncPolicy.DIRECTORY) {
+			try (FileChannel directory = FileChannel.open(_path.getParent(), StandardOpenOption.READ)) {
+				directory.force(true);
+			} catch (IOException ex) {
+				// not every platform can open a directory for syncing
+				_log.debug("can't sync directory " + _path.getParent(), ex);
+			}
+		}
+	}
+
+	private static void rename(Path from, Path to) throws IOException {
+		try {
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * @return the OneBusAway incremental index of the snapshot, or -1 if it
+	 *         has none
+	 */
+	static long getIncrementalIndex(FeedMessage feed) {
+		if (!feed.getHeader().hasExtension(GtfsRealtimeOneBusAway.obaFeedHeader))
+			return -1;
+		return feed.getHeader().getExtension(GtfsRealtimeOneBusAway.obaFeedHeader).getIncrementalIndex();
+	}
+
+	/**
+	 * Lets protobuf serialize straight into the direct buffer.
+	 */
+	private class BufferOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+			_buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			_buffer.put(bytes, offset, length);
+		}
+	}
+}
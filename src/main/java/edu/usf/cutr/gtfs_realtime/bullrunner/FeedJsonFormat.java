@@ -0,0 +1,116 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.MessageOrBuilder;
+
+/**
+ * Prints a protobuf message such as a GTFS-realtime FeedMessage as JSON, using
+ * the field names of the .proto file. The protobuf version the exporter is built
+ * on has no JSON support of its own.
+ *
+ * Enums are printed by name, 64 bit integers as numbers, bytes as a UTF-8
+ * string and extensions under their full name in brackets, e.g.
+ * "[transit_realtime.obaFeedHeader]".
+ */
+public class FeedJsonFormat {
+
+	public static String printToString(MessageOrBuilder message) {
+		StringBuilder builder = new StringBuilder(1024);
+		print(message, builder);
+		return builder.toString();
+	}
+
+	public static void print(MessageOrBuilder message, StringBuilder out) {
+		out.append('{');
+		boolean first = true;
+		for (Map.Entry<FieldDescriptor, Object> entry : message.getAllFields().entrySet()) {
+			FieldDescriptor field = entry.getKey();
+			if (!first)
+				out.append(',');
+			first = false;
+			printString(field.isExtension() ? "[" + field.getFullName() + "]" : field.getName(), out);
+			out.append(':');
+			if (field.isRepeated()) {
+				out.append('[');
+				List<?> values = (List<?>) entry.getValue();
+				for (int i = 0; i < values.size(); i++) {
+					if (i > 0)
+						out.append(',');
+					printValue(field, values.get(i), out);
+				}
+				out.append(']');
+			} else {
+				printValue(field, entry.getValue(), out);
+			}
+		}
+		out.append('}');
+	}
+
+	private static void printValue(FieldDescriptor field, Object value, StringBuilder out) {
+		switch (field.getJavaType()) {
+		case MESSAGE:
+			print((MessageOrBuilder) value, out);
+			break;
+		case ENUM:
+			printString(((EnumValueDescriptor) value).getName(), out);
+			break;
+		case STRING:
+			printString((String) value, out);
+			break;
+		case BYTE_STRING:
+			printString(((ByteString) value).toStringUtf8(), out);
+			break;
+		case FLOAT:
+		case DOUBLE:
+			double number = ((Number) value).doubleValue();
+			// JSON has no NaN or infinity
+			if (Double.isNaN(number) || Double.isInfinite(number))
+				out.append("null");
+			else
+				out.append(value);
+			break;
+		default:
+			out.append(value);
+		}
+	}
+
+	private static void printString(String value, StringBuilder out) {
+		out.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				out.append("\\\"");
+				break;
+			case '\\':
+				out.append("\\\\");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			case '\t':
+				out.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					String hex = Integer.toHexString(c);
+					out.append("\\u");
+					for (int j = hex.length(); j < 4; j++)
+						out.append('0');
+					out.append(hex);
+				} else {
+					out.append(c);
+				}
+			}
+		}
+		out.append('"');
+	}
+}
@@ -0,0 +1,184 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ExtensionRegistry;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeOneBusAway;
+
+/**
+ * A read replica of the feeds of a primary, which it follows through the
+ * primary's {@link FeedReplicaServer}. The full feed received on connecting
+ * and every DIFFERENTIAL feed after it are applied to local exporters, whose
+ * servlets then serve the full feed and the route and stop slices like the
+ * primary does, serialized as soon as each update is applied. A replica never
+ * talks to the upstream server, so any number of them can sit behind a load
+ * balancer without adding to the polling.
+ *
+ * The incremental index of each differential must follow the previous one; a
+ * gap, a connection lost or the primary staying silent for the timeout makes
+ * the replica reconnect and start over from the full feed, serving its last
+ * snapshot meanwhile.
+ */
+public class FeedReplica {
+
+	private static final Logger _log = LoggerFactory.getLogger(FeedReplica.class);
+
+	private final Map<String, GtfsRealtimeExporterCutr> _feeds;
+
+	private final InetSocketAddress _primary;
+
+	private final ExtensionRegistry _registry = ExtensionRegistry.newInstance();
+
+	/** the incremental index expected next for each feed */
+	private final Map<String, Long> _nextIndexes = new HashMap<String, Long>();
+
+	private int _timeoutMillis = 5000;
+
+	private Thread _thread;
+
+	private volatile Socket _socket;
+
+	private volatile boolean _stopped;
+
+	/**
+	 * @param feeds
+	 *            the local exporters by the names the primary streams them as
+	 * @param primary
+	 *            host:port of the primary's replica port
+	 */
+	public FeedReplica(Map<String, GtfsRealtimeExporterCutr> feeds, String primary) {
+		_feeds = feeds;
+		int colon = primary.lastIndexOf(':');
+		_primary = new InetSocketAddress(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)));
+		GtfsRealtimeOneBusAway.registerAllExtensions(_registry);
+	}
+
+	/**
+	 * @param millis
+	 *            how long the primary may stay silent before reconnecting
+	 */
+	public void setTimeout(int millis) {
+		_timeoutMillis = millis;
+	}
+
+	public void start() {
+		_thread = new Thread("feed-replica") {
+			@Override
+			public void run() {
+				follow();
+			}
+		};
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	public void stop() {
+		_stopped = true;
+		closeSocket();
+		if (_thread != null)
+			_thread.interrupt();
+	}
+
+	private void follow() {
+		while (!_stopped) {
+			try {
+				replicate();
+			} catch (IOException ex) {
+				if (!_stopped)
+					_log.info("lost the primary at " + _primary + ": " + ex.getMessage());
+			} finally {
+				closeSocket();
+			}
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException ex) {
+				return;
+			}
+		}
+	}
+
+	private void replicate() throws IOException {
+		Socket socket = new Socket();
+		_socket = socket;
+		socket.connect(_primary, _timeoutMillis);
+		socket.setSoTimeout(_timeoutMillis);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		if (in.readInt() != FeedReplicaServer.MAGIC)
+			throw new IOException("not a replica port");
+		_log.info("replicating the primary at " + _primary);
+		_nextIndexes.clear();
+		while (!_stopped) {
+			byte type = in.readByte();
+			switch (type) {
+			case FeedReplicaServer.HEARTBEAT:
+				in.readLong();
+				break;
+			case FeedReplicaServer.FEED:
+				String name = in.readUTF();
+				byte[] message = new byte[in.readInt()];
+				in.readFully(message);
+				GtfsRealtimeExporterCutr exporter = _feeds.get(name);
+				if (exporter != null)
+					apply(name, exporter, FeedMessage.parseFrom(message, _registry));
+				break;
+			default:
+				throw new IOException("unknown frame " + type);
+			}
+		}
+	}
+
+	/**
+	 * Applies a full or differential feed to the exporter and renders the new
+	 * snapshot, so no request has to wait for it.
+	 */
+	private void apply(String name, GtfsRealtimeExporterCutr exporter, FeedMessage feed) throws IOException {
+		long index = feed.getHeader().getExtension(GtfsRealtimeOneBusAway.obaFeedHeader).getIncrementalIndex();
+		if (feed.getHeader().getIncrementality() == Incrementality.DIFFERENTIAL) {
+			Long next = _nextIndexes.get(name);
+			if (next == null || index != next)
+				throw new IOException("missed an update of " + name + ", expected " + next + " and got " + index);
+			GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+			for (FeedEntity entity : feed.getEntityList()) {
+				if (entity.getIsDeleted())
+					update.addDeletedEntity(entity.getId());
+				else
+					update.addUpdatedEntity(entity);
+			}
+			exporter.handleIncrementalUpdate(update);
+		} else {
+			GtfsRealtimeFullUpdate update = new GtfsRealtimeFullUpdate();
+			for (FeedEntity entity : feed.getEntityList())
+				update.addEntity(entity);
+			exporter.handleFullUpdate(update);
+		}
+		_nextIndexes.put(name, index + 1);
+		FeedSnapshot snapshot = exporter.getSnapshot();
+		snapshot.partition();
+		snapshot.getBinary();
+	}
+
+	private void closeSocket() {
+		Socket socket = _socket;
+		if (socket == null)
+			return;
+		try {
+			socket.close();
+		} catch (IOException ex) {
+			_log.debug("Error closing the replica connection", ex);
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * Streams the feeds of this node to read replicas ({@link FeedReplica}) over a
+ * plain TCP connection, as the incremental stream of the exporters: the full
+ * feed when a replica connects, and after that one DIFFERENTIAL feed per
+ * update with the entities that changed and those deleted, each carrying the
+ * OneBusAway incremental index. A replica keeps its own copy of the entities
+ * from that, so it never needs the upstream server.
+ *
+ * A connection starts with {@link #MAGIC} and is then a sequence of frames,
+ * each a type byte followed by
+ * <ul>
+ * <li>HEARTBEAT: the time on the primary, in milliseconds since the epoch</li>
+ * <li>FEED: the name of the feed, the length of the feed message and its
+ * protobuf bytes</li>
+ * </ul>
+ * Each differential is serialized once however many replicas there are. A
+ * replica that falls a queue length behind is disconnected and starts over
+ * from the full feed when it reconnects.
+ */
+public class FeedReplicaServer {
+
+	private static final Logger _log = LoggerFactory.getLogger(FeedReplicaServer.class);
+
+	static final int MAGIC = 0x47524431;
+
+	static final byte HEARTBEAT = 0, FEED = 1;
+
+	private static final int QUEUE_LENGTH = 256;
+
+	private final List<FeedChannel> _channels = new ArrayList<FeedChannel>();
+
+	private final List<Replica> _replicas = new CopyOnWriteArrayList<Replica>();
+
+	private int _heartbeatMillis = 1000;
+
+	private ServerSocket _serverSocket;
+
+	private ScheduledExecutorService _heartbeats;
+
+	/**
+	 * @param feeds
+	 *            the exporters to stream by name; the replicas must use the
+	 *            same names
+	 */
+	public FeedReplicaServer(Map<String, GtfsRealtimeExporterCutr> feeds) {
+		for (Map.Entry<String, GtfsRealtimeExporterCutr> feed : feeds.entrySet())
+			_channels.add(new FeedChannel(feed.getKey(), feed.getValue()));
+	}
+
+	public void setHeartbeatInterval(int millis) {
+		_heartbeatMillis = millis;
+	}
+
+	public void start(int port) throws IOException {
+		_serverSocket = new ServerSocket(port);
+		Thread acceptor = new Thread("replica-accept") {
+			@Override
+			public void run() {
+				acceptReplicas();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		_heartbeats = Executors.newSingleThreadScheduledExecutor();
+		_heartbeats.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+				DataOutputStream out = new DataOutputStream(bytes);
+				try {
+					out.writeByte(HEARTBEAT);
+					out.writeLong(System.currentTimeMillis());
+				} catch (IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+				byte[] frame = bytes.toByteArray();
+				for (Replica replica : _replicas)
+					replica.send(frame);
+			}
+		}, _heartbeatMillis, _heartbeatMillis, TimeUnit.MILLISECONDS);
+		_log.info("serving read replicas on port " + _serverSocket.getLocalPort());
+	}
+
+	public void stop() {
+		if (_heartbeats != null)
+			_heartbeats.shutdownNow();
+		try {
+			if (_serverSocket != null)
+				_serverSocket.close();
+		} catch (IOException ex) {
+			_log.warn("Error closing the replica port", ex);
+		}
+		for (Replica replica : _replicas)
+			replica.close();
+	}
+
+	/**
+	 * @return how many replicas are connected
+	 */
+	public int getReplicaCount() {
+		return _replicas.size();
+	}
+
+	private void acceptReplicas() {
+		while (!_serverSocket.isClosed()) {
+			Socket socket;
+			try {
+				socket = _serverSocket.accept();
+				socket.setTcpNoDelay(true);
+			} catch (IOException ex) {
+				if (!_serverSocket.isClosed())
+					_log.warn("Error accepting a replica", ex);
+				continue;
+			}
+			_log.info("replica connected from " + socket.getRemoteSocketAddress());
+			Replica replica = new Replica(socket);
+			// each exporter queues its full feed on registration, under the
+			// same lock as its updates, so no differential is missed or doubled
+			for (FeedChannel channel : _channels)
+				replica.subscribe(channel);
+			_replicas.add(replica);
+			replica.start();
+		}
+	}
+
+	/**
+	 * A feed and the frame of its latest message, shared by the replicas.
+	 */
+	private static class FeedChannel {
+
+		private final String _name;
+
+		private final GtfsRealtimeExporterCutr _exporter;
+
+		private FeedMessage _lastFeed;
+
+		private byte[] _lastFrame;
+
+		public FeedChannel(String name, GtfsRealtimeExporterCutr exporter) {
+			_name = name;
+			_exporter = exporter;
+		}
+
+		public synchronized byte[] encode(FeedMessage feed) {
+			if (feed != _lastFeed) {
+				byte[] message = feed.toByteArray();
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length + 64);
+				DataOutputStream out = new DataOutputStream(bytes);
+				try {
+					out.writeByte(FEED);
+					out.writeUTF(_name);
+					out.writeInt(message.length);
+					out.write(message);
+				} catch (IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+				_lastFeed = feed;
+				_lastFrame = bytes.toByteArray();
+			}
+			return _lastFrame;
+		}
+	}
+
+	/**
+	 * One connected replica, written to by its own thread so a slow replica
+	 * never holds up the exporters.
+	 */
+	private class Replica extends Thread {
+
+		private final Socket _socket;
+
+		private final BlockingQueue<byte[]> _queue = new LinkedBlockingQueue<byte[]>(QUEUE_LENGTH);
+
+		private final List<GtfsRealtimeExporterCutr> _exporters = new ArrayList<GtfsRealtimeExporterCutr>();
+
+		private final List<GtfsRealtimeIncrementalListener> _listeners = new ArrayList<GtfsRealtimeIncrementalListener>();
+
+		public Replica(Socket socket) {
+			super("replica-" + socket.getRemoteSocketAddress());
+			setDaemon(true);
+			_socket = socket;
+		}
+
+		/**
+		 * Called before the replica's thread starts, which unsubscribes it when
+		 * the connection ends.
+		 */
+		public void subscribe(final FeedChannel channel) {
+			GtfsRealtimeIncrementalListener listener = new GtfsRealtimeIncrementalListener() {
+				@Override
+				public void handleFeed(FeedMessage feed) {
+					send(channel.encode(feed));
+				}
+			};
+			_exporters.add(channel._exporter);
+			_listeners.add(listener);
+			channel._exporter.addDifferentialListener(listener);
+		}
+
+		public void send(byte[] frame) {
+			if (!_queue.offer(frame)) {
+				_log.warn("replica " + _socket.getRemoteSocketAddress() + " fell behind, disconnecting it");
+				close();
+			}
+		}
+
+		public void close() {
+			try {
+				_socket.close();
+			} catch (IOException ex) {
+				_log.debug("Error closing a replica connection", ex);
+			}
+			interrupt();
+		}
+
+		@Override
+		public void run() {
+			try {
+				OutputStream out = new BufferedOutputStream(_socket.getOutputStream());
+				new DataOutputStream(out).writeInt(MAGIC);
+				while (!_socket.isClosed()) {
+					byte[] frame = _queue.poll();
+					if (frame == null) {
+						out.flush();
+						frame = _queue.take();
+					}
+					out.write(frame);
+				}
+			} catch (IOException ex) {
+				_log.info("replica " + _socket.getRemoteSocketAddress() + " disconnected: " + ex.getMessage());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} finally {
+				close();
+				_replicas.remove(this);
+				for (int i = 0; i < _exporters.size(); i++)
+					_exporters.get(i).removeDifferentialListener(_listeners.get(i));
+			}
+		}
+	}
+}
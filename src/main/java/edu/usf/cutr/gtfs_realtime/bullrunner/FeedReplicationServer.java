@@ -0,0 +1,273 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * Streams what the primary node publishes to its standbys over a plain TCP
+ * connection: the protobuf bytes of every snapshot of every feed, exactly as
+ * they are served, and a heartbeat every second.
+ *
+ * The state the provider keeps between refreshes, such as the progress of each
+ * vehicle along its trip and the arrivals seen on the current runs, is not
+ * replicated. A standby that takes over starts from the next fixes it polls:
+ * its first feeds predict from the fixes alone and carry no observed arrivals
+ * or departures until the vehicles reach their next stops.
+ *
+ * A connection starts with {@link #MAGIC} and is then a sequence of frames,
+ * each a type byte followed by
+ * <ul>
+ * <li>HEARTBEAT: the time on the primary, in milliseconds since the epoch</li>
+ * <li>SNAPSHOT: the name of the feed, the length of the snapshot and its
+ * bytes</li>
+ * </ul>
+ * Each frame is encoded once however many standbys there are. A standby that
+ * connects is sent the latest snapshot of every feed first. Every standby has a bounded queue of frames, and one that falls
+ * that far behind is disconnected; it gets the whole state again when it
+ * reconnects.
+ */
+public class FeedReplicationServer {
+
+	private static final Logger _log = LoggerFactory.getLogger(FeedReplicationServer.class);
+
+	static final int MAGIC = 0x47525232;
+
+	static final byte HEARTBEAT = 0, SNAPSHOT = 1;
+
+	private static final int QUEUE_LENGTH = 64;
+
+	private final Map<String, GtfsRealtimeExporterCutr> _feeds;
+
+	/** guards the standbys and the latest frames, so a standby joins between two frames */
+	private final Object _lock = new Object();
+
+	private final List<Standby> _standbys = new ArrayList<Standby>();
+
+	private final Map<String, byte[]> _latestSnapshots = new LinkedHashMap<String, byte[]>();
+
+	private int _heartbeatMillis = 1000;
+
+	private ServerSocket _serverSocket;
+
+	private ScheduledExecutorService _heartbeats;
+
+	/**
+	 * @param feeds
+	 *            the exporters to replicate by name; the standby must use the
+	 *            same names
+	 */
+	public FeedReplicationServer(Map<String, GtfsRealtimeExporterCutr> feeds) {
+		_feeds = feeds;
+	}
+
+	public void setHeartbeatInterval(int millis) {
+		_heartbeatMillis = millis;
+	}
+
+	/**
+	 * Starts listening for standbys on the port.
+	 */
+	public void start(int port) throws IOException {
+		for (Map.Entry<String, GtfsRealtimeExporterCutr> feed : _feeds.entrySet())
+			feed.getValue().addIncrementalListener(new FeedListener(feed.getKey(), feed.getValue()));
+
+		_serverSocket = new ServerSocket(port);
+		Thread acceptor = new Thread("replication-accept") {
+			@Override
+			public void run() {
+				acceptStandbys();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		_heartbeats = Executors.newSingleThreadScheduledExecutor();
+		_heartbeats.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+				DataOutputStream out = new DataOutputStream(bytes);
+				try {
+					out.writeByte(HEARTBEAT);
+					out.writeLong(System.currentTimeMillis());
+				} catch (IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+				broadcast(bytes.toByteArray());
+			}
+		}, _heartbeatMillis, _heartbeatMillis, TimeUnit.MILLISECONDS);
+		_log.info("replicating to standbys on port " + _serverSocket.getLocalPort());
+	}
+
+	public void stop() {
+		if (_heartbeats != null)
+			_heartbeats.shutdownNow();
+		try {
+			if (_serverSocket != null)
+				_serverSocket.close();
+		} catch (IOException ex) {
+			_log.warn("Error closing the replication port", ex);
+		}
+		synchronized (_lock) {
+			for (Standby standby : _standbys)
+				standby.close();
+			_standbys.clear();
+		}
+	}
+
+	/**
+	 * @return how many standbys are connected
+	 */
+	public int getStandbyCount() {
+		synchronized (_lock) {
+			return _standbys.size();
+		}
+	}
+
+	private void acceptStandbys() {
+		while (!_serverSocket.isClosed()) {
+			Socket socket;
+			try {
+				socket = _serverSocket.accept();
+				socket.setTcpNoDelay(true);
+			} catch (IOException ex) {
+				if (!_serverSocket.isClosed())
+					_log.warn("Error accepting a standby", ex);
+				continue;
+			}
+			_log.info("standby connected from " + socket.getRemoteSocketAddress());
+			Standby standby = new Standby(socket);
+			synchronized (_lock) {
+				for (byte[] frame : _latestSnapshots.values())
+					standby.send(frame);
+				_standbys.add(standby);
+			}
+			standby.start();
+		}
+	}
+
+	private void broadcast(byte[] frame) {
+		synchronized (_lock) {
+			for (Standby standby : _standbys)
+				standby.send(frame);
+		}
+	}
+
+	/**
+	 * Called on the publishing thread as each feed is published.
+	 */
+	private void publish(String name, byte[] snapshot) {
+		byte[] snapshotFrame;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(snapshot.length + 64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(SNAPSHOT);
+			out.writeUTF(name);
+			out.writeInt(snapshot.length);
+			out.write(snapshot);
+			snapshotFrame = bytes.toByteArray();
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		synchronized (_lock) {
+			_latestSnapshots.put(name, snapshotFrame);
+			for (Standby standby : _standbys)
+				standby.send(snapshotFrame);
+		}
+	}
+
+	private class FeedListener implements GtfsRealtimeIncrementalListener {
+
+		private final String _name;
+
+		private final GtfsRealtimeExporterCutr _exporter;
+
+		public FeedListener(String name, GtfsRealtimeExporterCutr exporter) {
+			_name = name;
+			_exporter = exporter;
+		}
+
+		@Override
+		public void handleFeed(FeedMessage feed) {
+			publish(_name, _exporter.getSnapshot().getBinary());
+		}
+	}
+
+	/**
+	 * One connected standby, written to by its own thread so a slow standby
+	 * never holds up the refresh.
+	 */
+	private class Standby extends Thread {
+
+		private final Socket _socket;
+
+		private final BlockingQueue<byte[]> _queue = new LinkedBlockingQueue<byte[]>(QUEUE_LENGTH);
+
+		public Standby(Socket socket) {
+			super("replication-" + socket.getRemoteSocketAddress());
+			setDaemon(true);
+			_socket = socket;
+		}
+
+		public void send(byte[] frame) {
+			if (!_queue.offer(frame)) {
+				_log.warn("standby " + _socket.getRemoteSocketAddress() + " fell behind, disconnecting it");
+				close();
+			}
+		}
+
+		public void close() {
+			try {
+				_socket.close();
+			} catch (IOException ex) {
+				_log.debug("Error closing a standby connection", ex);
+			}
+			interrupt();
+		}
+
+		@Override
+		public void run() {
+			try {
+				OutputStream out = new BufferedOutputStream(_socket.getOutputStream());
+				new DataOutputStream(out).writeInt(MAGIC);
+				while (!_socket.isClosed()) {
+					byte[] frame = _queue.poll();
+					if (frame == null) {
+						out.flush();
+						frame = _queue.take();
+					}
+					out.write(frame);
+				}
+			} catch (IOException ex) {
+				_log.info("standby " + _socket.getRemoteSocketAddress() + " disconnected: " + ex.getMessage());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} finally {
+				close();
+				synchronized (_lock) {
+					_standbys.remove(this);
+				}
+			}
+		}
+	}
+}
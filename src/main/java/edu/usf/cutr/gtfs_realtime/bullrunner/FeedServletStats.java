@@ -0,0 +1,107 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the requests of every {@link GtfsRealtimeServletCutr} together with
+ * the rate limiter and the coalesced renderings, and publishes the counts as
+ * the MXBean edu.usf.cutr.gtfs_realtime.bullrunner:type=FeedServletStats.
+ */
+@Singleton
+public class FeedServletStats implements FeedServletStatsMXBean {
+
+  private static final Logger _log = LoggerFactory.getLogger(FeedServletStats.class);
+
+  private final AtomicLong _requests = new AtomicLong();
+
+  private final AtomicLong _notModified = new AtomicLong();
+
+  private final AtomicInteger _inFlight = new AtomicInteger();
+
+  private ClientRateLimiter _rateLimiter;
+
+  @Inject
+  public void setRateLimiter(ClientRateLimiter rateLimiter) {
+    _rateLimiter = rateLimiter;
+  }
+
+  /**
+   * Registers the counters with the platform MBean server.
+   */
+  public void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(
+          "edu.usf.cutr.gtfs_realtime.bullrunner:type=FeedServletStats");
+      if (!server.isRegistered(name)) {
+        server.registerMBean(this, name);
+      }
+    } catch (JMException ex) {
+      _log.warn("can't register the feed servlet counters", ex);
+    }
+  }
+
+  void requestStarted() {
+    _requests.incrementAndGet();
+    _inFlight.incrementAndGet();
+  }
+
+  void requestFinished() {
+    _inFlight.decrementAndGet();
+  }
+
+  void notModified() {
+    _notModified.incrementAndGet();
+  }
+
+  @Override
+  public long getRequests() {
+    return _requests.get();
+  }
+
+  @Override
+  public long getNotModified() {
+    return _notModified.get();
+  }
+
+  @Override
+  public long getRateLimited() {
+    return _rateLimiter.getRejected();
+  }
+
+  @Override
+  public int getClients() {
+    return _rateLimiter.getClientCount();
+  }
+
+  @Override
+  public long getEvictedClients() {
+    return _rateLimiter.getEvicted();
+  }
+
+  @Override
+  public long getCoalescedRequests() {
+    return FeedSnapshot.getCoalescedRequests();
+  }
+
+  @Override
+  public int getWaitingRequests() {
+    return FeedSnapshot.getWaitingRequests();
+  }
+
+  @Override
+  public int getInFlightRequests() {
+    return _inFlight.get();
+  }
+}
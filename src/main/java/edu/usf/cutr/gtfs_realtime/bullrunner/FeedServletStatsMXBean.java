@@ -0,0 +1,32 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+/**
+ * Counters of the feed endpoints, published over JMX by
+ * {@link FeedServletStats}.
+ */
+public interface FeedServletStatsMXBean {
+
+  /** requests received by the feed endpoints */
+  long getRequests();
+
+  /** requests answered with 304 Not Modified */
+  long getNotModified();
+
+  /** requests rejected by the per-client rate limiter */
+  long getRateLimited();
+
+  /** clients currently tracked by the rate limiter */
+  int getClients();
+
+  /** clients dropped from the rate limiter after being idle */
+  long getEvictedClients();
+
+  /** requests that waited for a rendering already in progress */
+  long getCoalescedRequests();
+
+  /** requests currently waiting for a rendering */
+  int getWaitingRequests();
+
+  /** requests currently being served */
+  int getInFlightRequests();
+}
@@ -0,0 +1,324 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.protobuf.TextFormat;
+import com.google.transit.realtime.GtfsRealtime.EntitySelector;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+
+/**
+ * One published snapshot of a feed together with the encodings it is served
+ * in. The protobuf bytes, the text shown by ?debug and the JSON encoding are
+ * each rendered the first time they are asked for and then kept, so however
+ * often a snapshot is polled, it is rendered at most once per encoding.
+ * Identical requests arriving during that first rendering wait for its result.
+ * The gzip copy of an encoding, for clients that accept it, is kept the same
+ * way.
+ *
+ * A new snapshot is made each time the exporter's incremental index moves on;
+ * the index is part of the ETag, so a client polling with If-None-Match gets a
+ * 304 until then.
+ *
+ * The snapshot can also be partitioned into slices, one per route_id and one
+ * per stop_id, each a snapshot of its own holding the entities that refer to
+ * that route or stop, already serialized. A slice shares the tag of the full
+ * snapshot, which is enough since it is served at a different URL.
+ */
+public class FeedSnapshot {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final FeedMessage _feed;
+
+	private final long _incrementalIndex;
+
+	private final String _etag;
+
+	private static final int BINARY = 0, TEXT = 1, JSON = 2;
+
+	/** added to an encoding for its gzip copy */
+	private static final int GZIP = 3;
+
+	private static final AtomicLong _coalesced = new AtomicLong();
+
+	private static final AtomicInteger _waiting = new AtomicInteger();
+
+	@SuppressWarnings("unchecked")
+	private final FutureTask<byte[]>[] _encodings = new FutureTask[6];
+
+	private Map<String, FeedSnapshot> _routeSlices;
+
+	private Map<String, FeedSnapshot> _stopSlices;
+
+	private FeedSnapshot _emptySlice;
+
+	/**
+	 * @param etagPrefix
+	 *            tells apart the snapshots of exporters that started at
+	 *            different times, whose indexes both count from 0
+	 */
+	public FeedSnapshot(FeedMessage feed, long incrementalIndex, String etagPrefix) {
+		this(feed, incrementalIndex, etagPrefix, true);
+	}
+
+	/**
+	 * A snapshot whose protobuf bytes are already known, such as one
+	 * replicated from another node, so they are served as they are rather than
+	 * serialized again.
+	 */
+	public FeedSnapshot(FeedMessage feed, long incrementalIndex, String etagPrefix, byte[] binary) {
+		this(feed, incrementalIndex, etagPrefix, true);
+		FutureTask<byte[]> task = new FutureTask<byte[]>(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}, binary);
+		task.run();
+		_encodings[BINARY] = task;
+	}
+
+	private FeedSnapshot(FeedMessage feed, long incrementalIndex, String etag, boolean prefixOnly) {
+		_feed = feed;
+		_incrementalIndex = incrementalIndex;
+		_etag = prefixOnly ? etag + "-" + incrementalIndex : etag;
+	}
+
+	public FeedMessage getFeed() {
+		return _feed;
+	}
+
+	public long getIncrementalIndex() {
+		return _incrementalIndex;
+	}
+
+	/**
+	 * @param encoding
+	 *            told apart in the tag, since each encoding is a different
+	 *            representation
+	 * @return the quoted entity tag of the snapshot in the encoding
+	 */
+	public String getETag(String encoding) {
+		return "\"" + _etag + "-" + encoding + "\"";
+	}
+
+	/**
+	 * @return the entities of the snapshot that refer to the route, an empty
+	 *         feed if there are none
+	 */
+	public FeedSnapshot getRouteSlice(String routeId) {
+		partition();
+		FeedSnapshot slice = _routeSlices.get(routeId);
+		return slice != null ? slice : _emptySlice;
+	}
+
+	/**
+	 * @return the entities of the snapshot that refer to the stop, an empty feed
+	 *         if there are none
+	 */
+	public FeedSnapshot getStopSlice(String stopId) {
+		partition();
+		FeedSnapshot slice = _stopSlices.get(stopId);
+		return slice != null ? slice : _emptySlice;
+	}
+
+	/**
+	 * Splits the entities by the route_ids and stop_ids they refer to and
+	 * serializes every slice; done once, normally when the snapshot is
+	 * published.
+	 */
+	public synchronized void partition() {
+		if (_routeSlices != null)
+			return;
+		Map<String, List<FeedEntity>> byRoute = new HashMap<String, List<FeedEntity>>();
+		Map<String, List<FeedEntity>> byStop = new HashMap<String, List<FeedEntity>>();
+		Set<String> routes = new HashSet<String>();
+		Set<String> stops = new HashSet<String>();
+		for (FeedEntity entity : _feed.getEntityList()) {
+			routes.clear();
+			stops.clear();
+			collectKeys(entity, routes, stops);
+			for (String route : routes)
+				addEntity(byRoute, route, entity);
+			for (String stop : stops)
+				addEntity(byStop, stop, entity);
+		}
+		Map<String, FeedSnapshot> routeSlices = new HashMap<String, FeedSnapshot>(byRoute.size() * 2);
+		for (Map.Entry<String, List<FeedEntity>> entry : byRoute.entrySet())
+			routeSlices.put(entry.getKey(), createSlice(entry.getValue()));
+		Map<String, FeedSnapshot> stopSlices = new HashMap<String, FeedSnapshot>(byStop.size() * 2);
+		for (Map.Entry<String, List<FeedEntity>> entry : byStop.entrySet())
+			stopSlices.put(entry.getKey(), createSlice(entry.getValue()));
+		_emptySlice = createSlice(new ArrayList<FeedEntity>(0));
+		_stopSlices = stopSlices;
+		_routeSlices = routeSlices;
+	}
+
+	private FeedSnapshot createSlice(List<FeedEntity> entities) {
+		FeedMessage.Builder feed = FeedMessage.newBuilder();
+		feed.setHeader(_feed.getHeader());
+		feed.addAllEntity(entities);
+		FeedSnapshot slice = new FeedSnapshot(feed.build(), _incrementalIndex, _etag, false);
+		slice.getBinary();
+		return slice;
+	}
+
+	private static void addEntity(Map<String, List<FeedEntity>> slices, String key, FeedEntity entity) {
+		List<FeedEntity> entities = slices.get(key);
+		if (entities == null) {
+			entities = new ArrayList<FeedEntity>();
+			slices.put(key, entities);
+		}
+		entities.add(entity);
+	}
+
+	/**
+	 * this function collects the route_ids and stop_ids a trip update, vehicle
+	 * position or alert refers to
+	 */
+	private static void collectKeys(FeedEntity entity, Set<String> routes, Set<String> stops) {
+		if (entity.hasTripUpdate()) {
+			TripUpdate tripUpdate = entity.getTripUpdate();
+			if (tripUpdate.getTrip().hasRouteId())
+				routes.add(tripUpdate.getTrip().getRouteId());
+			for (StopTimeUpdate stopTimeUpdate : tripUpdate.getStopTimeUpdateList()) {
+				if (stopTimeUpdate.hasStopId())
+					stops.add(stopTimeUpdate.getStopId());
+			}
+		}
+		if (entity.hasVehicle()) {
+			if (entity.getVehicle().hasTrip() && entity.getVehicle().getTrip().hasRouteId())
+				routes.add(entity.getVehicle().getTrip().getRouteId());
+			if (entity.getVehicle().hasStopId())
+				stops.add(entity.getVehicle().getStopId());
+		}
+		if (entity.hasAlert()) {
+			for (EntitySelector selector : entity.getAlert().getInformedEntityList()) {
+				if (selector.hasRouteId())
+					routes.add(selector.getRouteId());
+				if (selector.hasTrip() && selector.getTrip().hasRouteId())
+					routes.add(selector.getTrip().getRouteId());
+				if (selector.hasStopId())
+					stops.add(selector.getStopId());
+			}
+		}
+	}
+
+	public byte[] getBinary() {
+		return encode(BINARY);
+	}
+
+	public byte[] getText() {
+		return encode(TEXT);
+	}
+
+	public byte[] getJson() {
+		return encode(JSON);
+	}
+
+	/**
+	 * @param encoding
+	 *            pb, text or json, as in the tags
+	 * @param gzip
+	 *            whether to return the gzip copy of the encoding
+	 */
+	public byte[] getEncoded(String encoding, boolean gzip) {
+		int index = encoding.equals("text") ? TEXT : encoding.equals("json") ? JSON : BINARY;
+		return encode(gzip ? index + GZIP : index);
+	}
+
+	/**
+	 * @return how many requests found their encoding being rendered for
+	 *         another request and waited for it instead
+	 */
+	public static long getCoalescedRequests() {
+		return _coalesced.get();
+	}
+
+	/**
+	 * @return how many requests are waiting for an encoding right now
+	 */
+	public static int getWaitingRequests() {
+		return _waiting.get();
+	}
+
+	/**
+	 * Renders the encoding on the first request for it; requests arriving
+	 * while it is rendered wait for that result rather than rendering again.
+	 */
+	private byte[] encode(final int encoding) {
+		FutureTask<byte[]> task;
+		boolean render = false;
+		synchronized (this) {
+			task = _encodings[encoding];
+			if (task == null) {
+				task = new FutureTask<byte[]>(new Callable<byte[]>() {
+					@Override
+					public byte[] call() {
+						return render(encoding);
+					}
+				});
+				_encodings[encoding] = task;
+				render = true;
+			}
+		}
+		if (render) {
+			task.run();
+		} else if (!task.isDone()) {
+			_coalesced.incrementAndGet();
+		}
+		boolean waiting = !task.isDone();
+		if (waiting)
+			_waiting.incrementAndGet();
+		try {
+			return task.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for the feed", ex);
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException("can't encode the feed", ex.getCause());
+		} finally {
+			if (waiting)
+				_waiting.decrementAndGet();
+		}
+	}
+
+	private byte[] render(int encoding) {
+		if (encoding >= GZIP)
+			return gzip(encode(encoding - GZIP));
+		switch (encoding) {
+		case TEXT:
+			return TextFormat.printToString(_feed).getBytes(UTF8);
+		case JSON:
+			return FeedJsonFormat.printToString(_feed).getBytes(UTF8);
+		default:
+			return _feed.toByteArray();
+		}
+	}
+
+	private static byte[] gzip(byte[] plain) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(plain.length / 4 + 64);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+			gzip.write(plain);
+		} catch (IOException ex) {
+			throw new IllegalStateException("can't compress the feed", ex);
+		}
+		return bytes.toByteArray();
+	}
+}
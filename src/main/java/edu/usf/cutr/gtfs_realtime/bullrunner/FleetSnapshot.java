@@ -0,0 +1,119 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Arrays;
+
+/**
+ * One fix per vehicle for a whole fleet, as parallel primitive arrays indexed
+ * from 0 to size - 1. Vehicle and route ids are kept as handles of a
+ * {@link SymbolTable}, so walking the fleet touches only a few contiguous
+ * arrays and no per-vehicle objects.
+ *
+ * Snapshots are reused: {@link #clear()} empties one without freeing its
+ * arrays, which only grow when the fleet does.
+ */
+public class FleetSnapshot {
+
+	private final SymbolTable _symbols;
+
+	public int size;
+
+	/** vehicle id handles */
+	public int[] vehicles = new int[0];
+
+	/** route id handles, -1 if the route is unknown */
+	public int[] routes = new int[0];
+
+	/** in seconds since the epoch */
+	public long[] fixTimes = new long[0];
+
+	public double[] lats = new double[0];
+
+	public double[] lons = new double[0];
+
+	/** in degrees clockwise from north */
+	public float[] bearings = new float[0];
+
+	/** in knots, as Traccar reports it */
+	public float[] speeds = new float[0];
+
+	/** in percent */
+	public int[] occupancy = new int[0];
+
+	/** index of each vehicle in the snapshot by its handle, -1 if it is not in it */
+	private int[] _indexByVehicle = new int[0];
+
+	public FleetSnapshot(SymbolTable symbols) {
+		_symbols = symbols;
+	}
+
+	public SymbolTable getSymbols() {
+		return _symbols;
+	}
+
+	public void clear() {
+		for (int i = 0; i < size; i++)
+			_indexByVehicle[vehicles[i]] = -1;
+		size = 0;
+	}
+
+	/**
+	 * Appends the fix of a vehicle; a vehicle added twice is found at its
+	 * latest index.
+	 *
+	 * @return the index of the fix
+	 */
+	public int add(int vehicle, int route, long fixTime, double lat, double lon, float bearing, float speed,
+			int occupancy) {
+		if (size == vehicles.length)
+			grow(Math.max(16, size * 2));
+		if (vehicle >= _indexByVehicle.length) {
+			int length = _indexByVehicle.length;
+			_indexByVehicle = Arrays.copyOf(_indexByVehicle, Math.max(vehicle + 1, length * 2));
+			Arrays.fill(_indexByVehicle, length, _indexByVehicle.length, -1);
+		}
+		vehicles[size] = vehicle;
+		routes[size] = route;
+		fixTimes[size] = fixTime;
+		lats[size] = lat;
+		lons[size] = lon;
+		bearings[size] = bearing;
+		speeds[size] = speed;
+		this.occupancy[size] = occupancy;
+		_indexByVehicle[vehicle] = size;
+		return size++;
+	}
+
+	private void grow(int capacity) {
+		vehicles = Arrays.copyOf(vehicles, capacity);
+		routes = Arrays.copyOf(routes, capacity);
+		fixTimes = Arrays.copyOf(fixTimes, capacity);
+		lats = Arrays.copyOf(lats, capacity);
+		lons = Arrays.copyOf(lons, capacity);
+		bearings = Arrays.copyOf(bearings, capacity);
+		speeds = Arrays.copyOf(speeds, capacity);
+		occupancy = Arrays.copyOf(occupancy, capacity);
+	}
+
+	/**
+	 * @return the index of the vehicle in the snapshot, or -1 if it is not in
+	 *         it
+	 */
+	public int indexOf(int vehicle) {
+		return vehicle >= 0 && vehicle < _indexByVehicle.length ? _indexByVehicle[vehicle] : -1;
+	}
+
+	public int indexOf(String vehicleId) {
+		return indexOf(_symbols.find(vehicleId));
+	}
+
+	public String getVehicleId(int index) {
+		return _symbols.get(vehicles[index]);
+	}
+
+	/**
+	 * @return the route id of the fix, or null if the route is unknown
+	 */
+	public String getRouteId(int index) {
+		return routes[index] < 0 ? null : _symbols.get(routes[index]);
+	}
+}
@@ -0,0 +1,189 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every instance of every trip in a service day, expanded once from
+ * frequencies.txt: a window from start_time to end_time with a headway of
+ * headway_secs yields one instance per headway, and a trip without frequencies
+ * yields a single instance at its first scheduled arrival.
+ *
+ * The start times of trip i are stored sorted in starts[tripFirst[i]] ..
+ * starts[tripFirst[i + 1] - 1], in seconds after midnight of the service day,
+ * so finding the instance a vehicle is running is a binary search.
+ */
+public class FrequencyTripTable {
+
+	private final Map<String, List<int[]>> _windowsByTrip = new LinkedHashMap<String, List<int[]>>();
+
+	private final HashMap<String, Integer> _tripIndex = new HashMap<String, Integer>();
+
+	private String[] _tripIds = new String[0];
+
+	private int[] _tripFirst = new int[1];
+
+	private int[] _starts = new int[0];
+
+	/**
+	 * Adds one row of frequencies.txt. Several windows of the same trip are all
+	 * kept.
+	 */
+	public void addFrequency(String tripId, int startTime, int endTime, int headwaySecs) {
+		List<int[]> windows = _windowsByTrip.get(tripId);
+		if (windows == null) {
+			windows = new ArrayList<int[]>();
+			_windowsByTrip.put(tripId, windows);
+		}
+		// a window without a usable headway still runs once
+		windows.add(new int[] {startTime, endTime, headwaySecs > 0 ? headwaySecs : Math.max(1, endTime - startTime)});
+	}
+
+	/**
+	 * Adds a trip that runs once at the time given in stop_times.txt; ignored if
+	 * the trip has frequencies.
+	 */
+	public void addScheduledTrip(String tripId, int startTime) {
+		if (!_windowsByTrip.containsKey(tripId)) {
+			List<int[]> windows = new ArrayList<int[]>();
+			windows.add(new int[] {startTime, startTime + 1, 1});
+			_windowsByTrip.put(tripId, windows);
+		}
+	}
+
+	/**
+	 * @return the windows added so far by trip, each as start time, end time
+	 *         and headway
+	 */
+	Map<String, List<int[]>> getWindows() {
+		return _windowsByTrip;
+	}
+
+	/**
+	 * Expands the windows added so far into the instance table.
+	 */
+	public void build() {
+		int total = 0;
+		for (List<int[]> windows : _windowsByTrip.values()) {
+			for (int[] window : windows)
+				total += countInstances(window);
+		}
+		_tripIds = new String[_windowsByTrip.size()];
+		_tripFirst = new int[_tripIds.length + 1];
+		_starts = new int[total];
+		_tripIndex.clear();
+
+		int trip = 0, next = 0;
+		for (Map.Entry<String, List<int[]>> entry : _windowsByTrip.entrySet()) {
+			_tripIds[trip] = entry.getKey();
+			_tripIndex.put(entry.getKey(), trip);
+			_tripFirst[trip] = next;
+			for (int[] window : entry.getValue()) {
+				for (int start = window[0]; start < window[1]; start += window[2])
+					_starts[next++] = start;
+			}
+			Arrays.sort(_starts, _tripFirst[trip], next);
+			trip++;
+		}
+		_tripFirst[trip] = next;
+	}
+
+	public int size() {
+		return _starts.length;
+	}
+
+	/**
+	 * @return the number of instances of the trip, 0 for an unknown trip
+	 */
+	public int getInstanceCount(String tripId) {
+		Integer trip = _tripIndex.get(tripId);
+		return trip == null ? 0 : _tripFirst[trip + 1] - _tripFirst[trip];
+	}
+
+	/**
+	 * @return the start time of an instance returned by one of the find
+	 *         methods, in seconds after midnight
+	 */
+	public int getStartTime(int instance) {
+		return _starts[instance];
+	}
+
+	/**
+	 * @param estimatedStart
+	 *            when the vehicle is estimated to have left the first stop, in
+	 *            seconds after midnight
+	 * @return the instance of the trip whose start time is closest to the
+	 *         estimate, or -1 if the trip is unknown
+	 */
+	public int findInstance(String tripId, int estimatedStart) {
+		Integer trip = _tripIndex.get(tripId);
+		if (trip == null)
+			return -1;
+		int from = _tripFirst[trip], to = _tripFirst[trip + 1];
+		if (from == to)
+			return -1;
+		int found = Arrays.binarySearch(_starts, from, to, estimatedStart);
+		if (found >= 0)
+			return found;
+		int after = -found - 1;
+		if (after == from)
+			return from;
+		if (after == to)
+			return to - 1;
+		return estimatedStart - _starts[after - 1] <= _starts[after] - estimatedStart ? after - 1 : after;
+	}
+
+	/**
+	 * @param duration
+	 *            running time of the trip, in seconds
+	 * @return the latest instance of the trip that started at or before the
+	 *         given time and has not finished yet, or -1 if none is running
+	 */
+	public int findRunningInstance(String tripId, int secondsOfDay, int duration) {
+		Integer trip = _tripIndex.get(tripId);
+		if (trip == null)
+			return -1;
+		int from = _tripFirst[trip], to = _tripFirst[trip + 1];
+		int found = Arrays.binarySearch(_starts, from, to, secondsOfDay);
+		int latest = found >= 0 ? found : -found - 2;
+		if (latest < from || secondsOfDay > _starts[latest] + duration)
+			return -1;
+		return latest;
+	}
+
+	/**
+	 * @return true if one of the frequencies.txt windows of the trip covers the
+	 *         time; the one second windows of trips without frequencies never
+	 *         do
+	 */
+	public boolean isInWindow(String tripId, int secondsOfDay) {
+		List<int[]> windows = _windowsByTrip.get(tripId);
+		if (windows == null)
+			return false;
+		for (int[] window : windows) {
+			if (window[1] - window[0] > 1 && secondsOfDay >= window[0] && secondsOfDay < window[1])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the time formatted as HH:mm:ss, with hours past 24 for trips that
+	 *         run after midnight as in GTFS
+	 */
+	public static String formatTime(int secondsOfDay) {
+		int hours = secondsOfDay / 3600;
+		int minutes = secondsOfDay / 60 % 60;
+		int seconds = secondsOfDay % 60;
+		return (hours < 10 ? "0" : "") + hours + (minutes < 10 ? ":0" : ":") + minutes
+				+ (seconds < 10 ? ":0" : ":") + seconds;
+	}
+
+	private static int countInstances(int[] window) {
+		return window[1] <= window[0] ? 0 : (window[1] - window[0] + window[2] - 1) / window[2];
+	}
+}
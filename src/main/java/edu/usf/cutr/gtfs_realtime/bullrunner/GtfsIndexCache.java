@@ -0,0 +1,425 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.joda.time.DateTimeZone;
+
+/**
+ * The tables read from the GTFS files by {@link BullRunnerConfigExtract},
+ * saved in a binary file so later starts don't parse the CSV files again.
+ *
+ * The file starts with a magic number, the format version, the SHA-256 of the
+ * GTFS files it was made from and the length and CRC32 of the payload. A file
+ * whose version, hash or checksum doesn't match is ignored and rewritten, so
+ * editing the GTFS invalidates the cache by itself.
+ *
+ * The payload is a table of every distinct string followed by the tables as
+ * arrays of numbers and string references. It is memory-mapped and decoded
+ * straight into the maps of the config, whose build steps (the trip instance
+ * table and the spatial indexes) then run as they do after parsing.
+ */
+public class GtfsIndexCache {
+
+	private static final int MAGIC = 0x42524749;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_LENGTH = 4 + 4 + 32 + 4 + 8;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** the GTFS files the tables are read from */
+	private static final String[] SOURCE_FILES = {"agency.txt", "calendar.txt", "calendar_dates.txt", "trips.txt",
+			"stop_times.txt", "frequencies.txt", "stops.txt", "shapes.txt"};
+
+	private final File _file;
+
+	public GtfsIndexCache(File file) {
+		_file = file;
+	}
+
+	public File getFile() {
+		return _file;
+	}
+
+	/**
+	 * @return the SHA-256 of the names and contents of the GTFS files the
+	 *         tables are read from
+	 */
+	public static byte[] hashSource(BullRunnerConfigExtract config) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+		byte[] buffer = new byte[8192];
+		for (String name : SOURCE_FILES) {
+			digest.update(name.getBytes(UTF8));
+			File file = new File(config.gtfsFile(name));
+			if (!file.exists())
+				continue;
+			try (InputStream in = new FileInputStream(file)) {
+				int read;
+				while ((read = in.read(buffer)) != -1)
+					digest.update(buffer, 0, read);
+			}
+			digest.update((byte) 0);
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Fills the config with the tables of the cache file.
+	 *
+	 * @return false, leaving the config untouched, if there is no cache file or
+	 *         it was made from other GTFS files or by another version
+	 */
+	public boolean load(BullRunnerConfigExtract config, byte[] sourceHash) throws IOException {
+		MappedByteBuffer buffer;
+		try (RandomAccessFile file = new RandomAccessFile(_file, "r")) {
+			if (file.length() < HEADER_LENGTH)
+				return false;
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		} catch (FileNotFoundException ex) {
+			return false;
+		}
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+			return false;
+		byte[] hash = new byte[32];
+		buffer.get(hash);
+		if (!Arrays.equals(hash, sourceHash))
+			return false;
+		int length = buffer.getInt();
+		long checksum = buffer.getLong();
+		if (length != buffer.remaining())
+			return false;
+		ByteBuffer payload = buffer.slice();
+		if (checksum(payload) != checksum)
+			return false;
+		// a payload that fails halfway must not leave the config half filled
+		// for the CSV parse that follows, so it is decoded into a scratch one
+		BullRunnerConfigExtract decoded = new BullRunnerConfigExtract();
+		new Decoder(payload).decode(decoded);
+		config.serviceCalendar = decoded.serviceCalendar;
+		config.tripIDMap = decoded.tripIDMap;
+		config.routeTripsMap = decoded.routeTripsMap;
+		config.tripShapeIdMap = decoded.tripShapeIdMap;
+		config.startTimeByTripIDMap = decoded.startTimeByTripIDMap;
+		config.frequencyTrips = decoded.frequencyTrips;
+		config.stopLocationMap = decoded.stopLocationMap;
+		config.stopSeqIDMap = decoded.stopSeqIDMap;
+		config.tripStopTimesMap = decoded.tripStopTimesMap;
+		config.polylines = decoded.polylines;
+		return true;
+	}
+
+	/**
+	 * Writes the tables of a config that has just parsed the GTFS, before its
+	 * build steps ran, to a temporary file renamed over the cache file.
+	 */
+	public void save(BullRunnerConfigExtract config, byte[] sourceHash) throws IOException {
+		byte[] payload = new Encoder().encode(config);
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+
+		File temp = new File(_file.getAbsoluteFile().getParentFile(), "." + _file.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.write(sourceHash);
+			out.writeInt(payload.length);
+			out.writeLong(crc.getValue());
+			out.write(payload);
+		}
+		try {
+			Files.move(temp.toPath(), _file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(temp.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static long checksum(ByteBuffer payload) {
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[8192];
+		ByteBuffer view = payload.duplicate();
+		while (view.hasRemaining()) {
+			int length = Math.min(chunk.length, view.remaining());
+			view.get(chunk, 0, length);
+			crc.update(chunk, 0, length);
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Writes the tables with every string replaced by its index in the string
+	 * table, which is written in front of them.
+	 */
+	private static class Encoder {
+
+		private final Map<String, Integer> _strings = new LinkedHashMap<String, Integer>();
+
+		private final ByteArrayOutputStream _bytes = new ByteArrayOutputStream(64 * 1024);
+
+		private final DataOutputStream _out = new DataOutputStream(_bytes);
+
+		byte[] encode(BullRunnerConfigExtract config) throws IOException {
+			ServiceCalendar calendar = config.serviceCalendar;
+			string(calendar.getTimeZone().getID());
+			_out.writeInt(calendar.getServiceCount());
+			for (int service = 0; service < calendar.getServiceCount(); service++) {
+				string(calendar.getServiceId(service));
+				for (int value : calendar.getCalendar(service))
+					_out.writeInt(value);
+			}
+			_out.writeInt(calendar.getExceptionCount());
+			for (int i = 0; i < calendar.getExceptionCount(); i++) {
+				int[] exception = calendar.getException(i);
+				string(calendar.getServiceId(exception[0]));
+				_out.writeInt(exception[1]);
+				_out.writeInt(exception[2]);
+			}
+
+			// trips by route and service, in the order of trips.txt
+			List<String[]> trips = new ArrayList<String[]>();
+			for (Map.Entry<String, Map<String, List<String>>> route : config.routeTripsMap.entrySet()) {
+				for (Map.Entry<String, List<String>> service : route.getValue().entrySet()) {
+					for (String trip : service.getValue())
+						trips.add(new String[] {route.getKey(), service.getKey(), trip});
+				}
+			}
+			_out.writeInt(trips.size());
+			for (String[] trip : trips) {
+				string(trip[0]);
+				string(trip[1]);
+				string(trip[2]);
+				string(config.tripShapeIdMap.get(trip[2]));
+			}
+
+			_out.writeInt(config.startTimeByTripIDMap.size());
+			for (Map.Entry<String, String> entry : config.startTimeByTripIDMap.entrySet()) {
+				string(entry.getKey());
+				string(entry.getValue());
+			}
+
+			Map<String, List<int[]>> windows = config.frequencyTrips.getWindows();
+			_out.writeInt(windows.size());
+			for (Map.Entry<String, List<int[]>> entry : windows.entrySet()) {
+				string(entry.getKey());
+				_out.writeInt(entry.getValue().size());
+				for (int[] window : entry.getValue()) {
+					_out.writeInt(window[0]);
+					_out.writeInt(window[1]);
+					_out.writeInt(window[2]);
+				}
+			}
+
+			_out.writeInt(config.stopLocationMap.size());
+			for (Map.Entry<String, double[]> entry : config.stopLocationMap.entrySet()) {
+				string(entry.getKey());
+				_out.writeDouble(entry.getValue()[0]);
+				_out.writeDouble(entry.getValue()[1]);
+			}
+
+			int sequences = 0;
+			for (Map.Entry<String, Map<String, String>> trip : config.stopSeqIDMap.entrySet())
+				sequences += trip.getValue().size();
+			_out.writeInt(sequences);
+			for (Map.Entry<String, Map<String, String>> trip : config.stopSeqIDMap.entrySet()) {
+				for (Map.Entry<String, String> stop : trip.getValue().entrySet()) {
+					string(trip.getKey());
+					string(stop.getKey());
+					string(stop.getValue());
+				}
+			}
+
+			_out.writeInt(config.tripStopTimesMap.size());
+			for (TripStopTimes stopTimes : config.tripStopTimesMap.values()) {
+				string(stopTimes.tripId);
+				_out.writeInt(stopTimes.size());
+				for (int i = 0; i < stopTimes.size(); i++) {
+					string(stopTimes.stopIds[i]);
+					_out.writeInt(stopTimes.stopSequences[i]);
+					_out.writeInt(stopTimes.firstArrivalTime + stopTimes.arrivalOffsets[i]);
+				}
+			}
+
+			PolylineIndex polylines = config.polylines;
+			_out.writeInt(polylines.size());
+			for (int polyline = 0; polyline < polylines.size(); polyline++) {
+				string(polylines.getId(polyline));
+				int count = polylines.getPointCount(polyline);
+				_out.writeInt(count);
+				for (int point = 0; point < count; point++) {
+					_out.writeDouble(polylines.getLat(polyline, point));
+					_out.writeDouble(polylines.getLon(polyline, point));
+				}
+			}
+			_out.flush();
+
+			ByteArrayOutputStream payload = new ByteArrayOutputStream(_bytes.size() + _strings.size() * 16);
+			DataOutputStream out = new DataOutputStream(payload);
+			out.writeInt(_strings.size());
+			for (String value : _strings.keySet()) {
+				byte[] bytes = value.getBytes(UTF8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			_bytes.writeTo(out);
+			out.flush();
+			return payload.toByteArray();
+		}
+
+		private void string(String value) throws IOException {
+			if (value == null) {
+				_out.writeInt(-1);
+				return;
+			}
+			Integer index = _strings.get(value);
+			if (index == null) {
+				index = _strings.size();
+				_strings.put(value, index);
+			}
+			_out.writeInt(index);
+		}
+	}
+
+	/**
+	 * Reads the tables back in the order the {@link Encoder} wrote them.
+	 */
+	private static class Decoder {
+
+		private final ByteBuffer _in;
+
+		private String[] _strings;
+
+		Decoder(ByteBuffer in) {
+			_in = in;
+		}
+
+		void decode(BullRunnerConfigExtract config) {
+			_strings = new String[_in.getInt()];
+			byte[] bytes = new byte[256];
+			for (int i = 0; i < _strings.length; i++) {
+				int length = _in.getInt();
+				if (bytes.length < length)
+					bytes = new byte[length * 2];
+				_in.get(bytes, 0, length);
+				_strings[i] = new String(bytes, 0, length, UTF8);
+			}
+
+			ServiceCalendar calendar = new ServiceCalendar(DateTimeZone.forID(string()));
+			int services = _in.getInt();
+			for (int service = 0; service < services; service++) {
+				String serviceId = string();
+				int[] days = new int[9];
+				for (int i = 0; i < days.length; i++)
+					days[i] = _in.getInt();
+				calendar.addCalendar(serviceId, days);
+			}
+			int exceptions = _in.getInt();
+			for (int i = 0; i < exceptions; i++)
+				calendar.addException(string(), _in.getInt(), _in.getInt());
+			calendar.build();
+			config.serviceCalendar = calendar;
+
+			int trips = _in.getInt();
+			for (int i = 0; i < trips; i++) {
+				String route = string(), service = string(), trip = string(), shape = string();
+				config.tripIDMap.put(route, service, trip);
+				List<String> routeTrips = config.routeTripsMap.get(route, service);
+				if (routeTrips == null) {
+					routeTrips = new ArrayList<String>();
+					config.routeTripsMap.put(route, service, routeTrips);
+				}
+				routeTrips.add(trip);
+				if (shape != null)
+					config.tripShapeIdMap.put(trip, shape);
+			}
+
+			int startTimes = _in.getInt();
+			for (int i = 0; i < startTimes; i++)
+				config.startTimeByTripIDMap.put(string(), string());
+
+			int frequencyTrips = _in.getInt();
+			for (int i = 0; i < frequencyTrips; i++) {
+				String trip = string();
+				int windows = _in.getInt();
+				for (int j = 0; j < windows; j++)
+					config.frequencyTrips.addFrequency(trip, _in.getInt(), _in.getInt(), _in.getInt());
+			}
+
+			int stops = _in.getInt();
+			for (int i = 0; i < stops; i++)
+				config.stopLocationMap.put(string(), new double[] {_in.getDouble(), _in.getDouble()});
+
+			int sequences = _in.getInt();
+			for (int i = 0; i < sequences; i++)
+				config.stopSeqIDMap.put(string(), string(), string());
+
+			int stopTimesCount = _in.getInt();
+			for (int i = 0; i < stopTimesCount; i++) {
+				String trip = string();
+				int n = _in.getInt();
+				String[] stopIds = new String[n];
+				int[] stopSequences = new int[n];
+				int[] arrivalTimes = new int[n];
+				double[] lats = new double[n];
+				double[] lons = new double[n];
+				for (int j = 0; j < n; j++) {
+					stopIds[j] = string();
+					stopSequences[j] = _in.getInt();
+					arrivalTimes[j] = _in.getInt();
+					double[] location = config.stopLocationMap.get(stopIds[j]);
+					lats[j] = location == null ? Double.NaN : location[0];
+					lons[j] = location == null ? Double.NaN : location[1];
+				}
+				config.tripStopTimesMap.put(trip, new TripStopTimes(trip, stopIds, stopSequences, arrivalTimes, lats, lons));
+			}
+
+			int polylines = _in.getInt();
+			for (int i = 0; i < polylines; i++) {
+				String id = string();
+				int count = _in.getInt();
+				double[] lats = new double[count];
+				double[] lons = new double[count];
+				for (int j = 0; j < count; j++) {
+					lats[j] = _in.getDouble();
+					lons[j] = _in.getDouble();
+				}
+				config.polylines.add(id, lats, lons, count);
+			}
+		}
+
+		private String string() {
+			int index = _in.getInt();
+			return index < 0 ? null : _strings[index];
+		}
+	}
+}
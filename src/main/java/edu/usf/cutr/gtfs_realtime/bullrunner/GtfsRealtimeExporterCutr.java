@@ -32,12 +32,18 @@ class GtfsRealtimeExporterCutr implements AlertsExporter, TripUpdatesExporter,
 
   private List<GtfsRealtimeIncrementalListener> _listeners = new CopyOnWriteArrayList<GtfsRealtimeIncrementalListener>();
 
+  private List<GtfsRealtimeIncrementalListener> _differentialListeners = new CopyOnWriteArrayList<GtfsRealtimeIncrementalListener>();
+
   private FeedHeader _header;
 
   private Map<String, FeedEntity> _feedEntities = new HashMap<String, FeedEntity>();
 
   private FeedMessage _cachedFeed = null;
 
+  private FeedSnapshot _snapshot = null;
+
+  private final String _etagPrefix = Long.toString(System.currentTimeMillis(), 36);
+
   private long _incrementalIndex = 1;
 
   private int _incrementalHeartbeatInterval = 60;
@@ -50,26 +56,66 @@ class GtfsRealtimeExporterCutr implements AlertsExporter, TripUpdatesExporter,
   public synchronized void setFeedHeaderDefaults(FeedHeader header) {
     _header = header;
     _cachedFeed = null;
+    _snapshot = null;
   }
 
   @Override
-  public synchronized void handleFullUpdate(GtfsRealtimeFullUpdate update) {
-    _cachedFeed = null;
-    _feedEntities.clear();
+  public void handleFullUpdate(GtfsRealtimeFullUpdate update) {
+    long start = System.nanoTime();
+    FeedSnapshot snapshot;
+    synchronized (this) {
+      start = PipelineEvents.record(PipelineEvents.Stage.EXPORTER_LOCK, start, 0, 0);
+      snapshot = handleFullUpdateLocked(update);
+      PipelineEvents.record(PipelineEvents.Stage.EXPORTER_UPDATE, start,
+          update.getEntities().size(), 0);
+    }
+    // slice the snapshot per route and stop now rather than on the first
+    // request, but outside the lock: the snapshot is immutable and swaps the
+    // slices in under its own lock once they are all built
+    if (snapshot != null)
+      snapshot.partition();
+  }
+
+  /**
+   * @return the snapshot that was published, or null if it was unchanged
+   */
+  private FeedSnapshot handleFullUpdateLocked(GtfsRealtimeFullUpdate update) {
+    Map<String, FeedEntity> feedEntities = new HashMap<String, FeedEntity>();
     for (FeedEntity entity : update.getEntities()) {
-      _feedEntities.put(entity.getId(), entity);
+      feedEntities.put(entity.getId(), entity);
     }
+    // an unchanged snapshot is kept as it is, with its index, tag and bytes,
+    // until it is as old as the heartbeat interval; it is then published
+    // again under a new index so its header timestamp doesn't fall behind
+    if (_incrementalIndex > 1 && feedEntities.equals(_feedEntities)
+        && System.currentTimeMillis() / 1000
+            - getFeed().getHeader().getTimestamp() < _incrementalHeartbeatInterval)
+      return null;
+    FeedMessage differentialFeed = null;
+    if (!_differentialListeners.isEmpty())
+      differentialFeed = createDifferentialFeed(_feedEntities, feedEntities);
+    _cachedFeed = null;
+    _snapshot = null;
+    _feedEntities = feedEntities;
     _incrementalIndex++;
-    FeedMessage feed = getFeed();
+    FeedSnapshot snapshot = getSnapshot();
+    FeedMessage feed = snapshot.getFeed();
     for (GtfsRealtimeIncrementalListener listener : _listeners) {
       listener.handleFeed(feed);
     }
+    if (differentialFeed != null) {
+      for (GtfsRealtimeIncrementalListener listener : _differentialListeners) {
+        listener.handleFeed(differentialFeed);
+      }
+    }
+    return snapshot;
   }
 
   @Override
   public synchronized void handleIncrementalUpdate(
       GtfsRealtimeIncrementalUpdate update) {
     _cachedFeed = null;
+    _snapshot = null;
 
     for (FeedEntity toAdd : update.getUpdatedEntities()) {
       _feedEntities.put(toAdd.getId(), toAdd);
@@ -89,10 +135,50 @@ class GtfsRealtimeExporterCutr implements AlertsExporter, TripUpdatesExporter,
     }
 
     FeedMessage differentialFeed = feed.build();
+    // the index moves on before the listeners are called, so a listener that
+    // takes the full snapshot gets the one the differential feed leads to
+    _incrementalIndex++;
     for (GtfsRealtimeIncrementalListener listener : _listeners) {
       listener.handleFeed(differentialFeed);
     }
-    _incrementalIndex++;
+    for (GtfsRealtimeIncrementalListener listener : _differentialListeners) {
+      listener.handleFeed(differentialFeed);
+    }
+  }
+
+  /**
+   * Installs a snapshot replicated from the primary node as it was published
+   * there: the feed keeps the primary's header, and the bytes it was received
+   * as are the ones served. The differential listeners, such as the replicas
+   * following this node, are sent what changed since the previous one. The
+   * snapshot is sliced once the lock is released, as in
+   * {@link #handleFullUpdate}.
+   */
+  public void handleReplicatedFeed(FeedMessage feed, byte[] binary) {
+    Map<String, FeedEntity> feedEntities = new HashMap<String, FeedEntity>();
+    for (FeedEntity entity : feed.getEntityList()) {
+      feedEntities.put(entity.getId(), entity);
+    }
+    FeedSnapshot snapshot;
+    synchronized (this) {
+      FeedMessage differentialFeed = null;
+      if (!_differentialListeners.isEmpty())
+        differentialFeed = createDifferentialFeed(_feedEntities, feedEntities);
+      _feedEntities = feedEntities;
+      _incrementalIndex++;
+      _cachedFeed = feed;
+      _snapshot = new FeedSnapshot(feed, _incrementalIndex - 1, _etagPrefix, binary);
+      snapshot = _snapshot;
+      for (GtfsRealtimeIncrementalListener listener : _listeners) {
+        listener.handleFeed(feed);
+      }
+      if (differentialFeed != null) {
+        for (GtfsRealtimeIncrementalListener listener : _differentialListeners) {
+          listener.handleFeed(differentialFeed);
+        }
+      }
+    }
+    snapshot.partition();
   }
 
   /****
@@ -102,6 +188,7 @@ class GtfsRealtimeExporterCutr implements AlertsExporter, TripUpdatesExporter,
   @Override
   public synchronized FeedMessage getFeed() {
     if (_cachedFeed == null) {
+      long start = System.nanoTime();
       FeedHeader.Builder header = FeedHeader.newBuilder();
       if (_header != null) {
         header.mergeFrom(_header);
@@ -116,10 +203,22 @@ class GtfsRealtimeExporterCutr implements AlertsExporter, TripUpdatesExporter,
       feed.setHeader(header);
       feed.addAllEntity(_feedEntities.values());
       _cachedFeed = feed.build();
+      PipelineEvents.record(PipelineEvents.Stage.EXPORTER_FEED, start,
+          _cachedFeed.getEntityCount(), _cachedFeed.getSerializedSize());
     }
     return _cachedFeed;
   }
 
+  /**
+   * @return the current snapshot with its cached encodings
+   */
+  public synchronized FeedSnapshot getSnapshot() {
+    if (_snapshot == null) {
+      _snapshot = new FeedSnapshot(getFeed(), _incrementalIndex - 1, _etagPrefix);
+    }
+    return _snapshot;
+  }
+
   @Override
   public void addIncrementalListener(GtfsRealtimeIncrementalListener listener) {
     _listeners.add(listener);
@@ -131,6 +230,21 @@ class GtfsRealtimeExporterCutr implements AlertsExporter, TripUpdatesExporter,
     _listeners.remove(listener);
   }
 
+  /**
+   * Registers a listener that is sent the full feed right away and from then
+   * on only what changed: a DIFFERENTIAL feed per update, whose OneBusAway
+   * incremental index is the index of the full feed it brings the listener
+   * to. A listener that sees a gap in the indexes missed an update.
+   */
+  public synchronized void addDifferentialListener(GtfsRealtimeIncrementalListener listener) {
+    _differentialListeners.add(listener);
+    listener.handleFeed(getFeed());
+  }
+
+  public void removeDifferentialListener(GtfsRealtimeIncrementalListener listener) {
+    _differentialListeners.remove(listener);
+  }
+
   /***
    * Private Methods
    ****/
@@ -149,6 +263,30 @@ class GtfsRealtimeExporterCutr implements AlertsExporter, TripUpdatesExporter,
     return header.build();
   }
 
+  /**
+   * The entities added or changed between two snapshots, and the deleted ones
+   * marked isDeleted, as of the index the new snapshot is about to get.
+   */
+  private FeedMessage createDifferentialFeed(Map<String, FeedEntity> previous,
+      Map<String, FeedEntity> current) {
+    FeedMessage.Builder feed = FeedMessage.newBuilder();
+    feed.setHeader(createIncrementalHeader());
+    for (FeedEntity entity : current.values()) {
+      if (!entity.equals(previous.get(entity.getId()))) {
+        feed.addEntity(entity);
+      }
+    }
+    for (String id : previous.keySet()) {
+      if (!current.containsKey(id)) {
+        FeedEntity.Builder entity = FeedEntity.newBuilder();
+        entity.setIsDeleted(true);
+        entity.setId(id);
+        feed.addEntity(entity);
+      }
+    }
+    return feed.build();
+  }
+
   private void setIncrementalIndex(FeedHeader.Builder header,
       long incrementalIndex) {
     OneBusAwayFeedHeader.Builder obaHeader = OneBusAwayFeedHeader.newBuilder();
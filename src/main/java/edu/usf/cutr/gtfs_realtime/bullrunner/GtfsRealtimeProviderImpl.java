@@ -27,11 +27,15 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.text.ParsePosition;
 
@@ -47,6 +51,7 @@ import org.apache.commons.codec.binary.Base64;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -60,6 +65,7 @@ import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.VehiclePositions;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.Alerts;
 import org.onebusaway.guice.jsr250.JSR250Module;
 import org.onebusaway.guice.jsr250.LifecycleService;
 import org.slf4j.Logger;
@@ -102,20 +108,39 @@ public class GtfsRealtimeProviderImpl {
  
 	private static final Logger _log = LoggerFactory
 			.getLogger(GtfsRealtimeProviderImpl.class);
-	private String responseTimeStamp;
 	private ScheduledExecutorService _executor;
+	private boolean _ownsExecutor;
+	private ScheduledFuture<?> _refreshTask;
+	private static final float KNOTS_TO_METERS_PER_SECOND = 1852 / 3600f;
+	private String _upstreamUrl = "http://juandissimo.adkintegrations.com:8082";
+	private long _startNanos;
+	private boolean _firstFeedPublished;
+	private boolean _devicesLoaded;
 
 	private GtfsRealtimeExporterCutr _gtfsRealtimeProvider;
 	private URL _url;
 	private URL _vehiclePositionURL;
-	private BiHashMap<String, String, Float> routeVehiDirMap;
-	private BiHashMap<String, String, vehicleInfo> tripVehicleInfoMap;
-	private BiHashMap<String, String, StartTimes> routeVehicleStartTimeMap;
+	private VehicleStateStore _vehicleStates = new VehicleStateStore();
+	private final FleetSnapshot _decodedFixes = new FleetSnapshot(_vehicleStates.getSymbols());
+	private PositionHistory _history;
+	/** time of the last fix of each vehicle written to the history, by handle */
+	private long[] _historyFixTimes = new long[0];
+	private ScheduleEtaPredictor _etaPredictor;
+	private DeadReckoning _deadReckoning;
+	private StopEventDetector _stopEvents;
+	private ServiceAlertsEngine _alertsEngine;
+	private final RouteStatistics _routeStatistics = new RouteStatistics(_vehicleStates.getSymbols());
+	private final RecordQuarantine _quarantine = new RecordQuarantine();
+	/** the vehicle position entities of the last refresh, indexed like the dead reckoning */
+	private FeedEntity[] _vehicleEntities = new FeedEntity[0];
+	private int _interpolationInterval;
+	private ScheduledFuture<?> _interpolationTask;
 	
 	/**
 	 * How often vehicle data will be downloaded, in seconds.
 	 */
 	private int _refreshInterval = 30;
+	private volatile boolean _standby;
 	private BullRunnerConfigExtract _providerConfig;
 
 	@Inject
@@ -141,6 +166,88 @@ public class GtfsRealtimeProviderImpl {
 		_refreshInterval = refreshInterval;
 	}
 
+	/**
+	 * @param upstreamUrl
+	 *            the base URL of the Traccar server, e.g.
+	 *            http://juandissimo.adkintegrations.com:8082
+	 */
+	public void setUpstreamUrl(String upstreamUrl) {
+		_upstreamUrl = upstreamUrl.endsWith("/") ? upstreamUrl.substring(0, upstreamUrl.length() - 1) : upstreamUrl;
+	}
+
+	/**
+	 * @param seconds
+	 *            how often the vehicle positions are republished moved forward
+	 *            along their trips between two refreshes, 0 for never
+	 */
+	public void setInterpolationInterval(int seconds) {
+		_interpolationInterval = seconds;
+	}
+
+	/**
+	 * @param seconds
+	 *            how long a vehicle that stopped reporting new fixes is kept
+	 */
+	public void setVehicleTimeToLive(int seconds) {
+		_vehicleStates.setTimeToLive(seconds);
+	}
+
+	/**
+	 * @param history
+	 *            where every new fix is recorded along with the predicted
+	 *            arrival at the vehicle's next stop, opened already
+	 */
+	public void setPositionHistory(PositionHistory history) {
+		_history = history;
+	}
+
+	/**
+	 * @param standby
+	 *            if true, {@link #start()} leaves upstream alone until the
+	 *            provider is promoted
+	 */
+	public void setStandby(boolean standby) {
+		_standby = standby;
+	}
+
+	/**
+	 * Starts polling upstream if the provider was standing by.
+	 */
+	public synchronized void promote() {
+		if (!_standby)
+			return;
+		_standby = false;
+		start();
+	}
+
+	public VehicleStateStore getVehicleStates() {
+		return _vehicleStates;
+	}
+
+	/**
+	 * @return the occupancy and headways of each route over the last minutes,
+	 *         rendered after each refresh
+	 */
+	public RouteStatistics getRouteStatistics() {
+		return _routeStatistics;
+	}
+
+	/**
+	 * @return the counters of the upstream records rejected by the refreshes
+	 */
+	public RecordQuarantine getRecordQuarantine() {
+		return _quarantine;
+	}
+
+	/**
+	 * @param executor
+	 *            a scheduler shared with the other feeds hosted in the process;
+	 *            without one the provider starts its own single thread
+	 */
+	public void setScheduledExecutorService(ScheduledExecutorService executor) {
+		_executor = executor;
+	}
+
 	/**
 	 * The start method automatically starts up a recurring task that
 	 * periodically downloads the latest vehicle data from the SEPTA vehicle
@@ -152,421 +259,554 @@ public class GtfsRealtimeProviderImpl {
 	}
 
 
-        private GtfsRealtimeSink _vehiclePositionsSink;
-	private GtfsRealtimeSink _tripUpdatesSink;
+        private GtfsRealtimeExporterCutr _vehiclePositionsSink;
+	private GtfsRealtimeExporterCutr _tripUpdatesSink;
 
         @Inject
-        public void setVehiclePositionsSink(@VehiclePositions GtfsRealtimeSink vehiclePositionsSink) {
+        public void setVehiclePositionsSink(@VehiclePositions GtfsRealtimeExporterCutr vehiclePositionsSink) {
   	     _vehiclePositionsSink = vehiclePositionsSink;
 	}
 
         @Inject
-        public void setTripUpdatesSink(@TripUpdates GtfsRealtimeSink tripUpdatesSink) {
+        public void setTripUpdatesSink(@TripUpdates GtfsRealtimeExporterCutr tripUpdatesSink) {
              _tripUpdatesSink = tripUpdatesSink;
         }
 
+	private GtfsRealtimeExporterCutr _alertsSink;
+
+	@Inject
+	public void setAlertsSink(@Alerts GtfsRealtimeExporterCutr alertsSink) {
+		_alertsSink = alertsSink;
+	}
+
   
 	@PostConstruct
 	public void start() {
-		
-		routeVehicleStartTimeMap = new BiHashMap<String, String, StartTimes>();
-		
-		try {
-			//_providerConfig .setUrl(new URL( "http://usfbullrunner.com/region/0/routes"));
-			//_providerConfig.generatesRouteMap(new URL( "https://usfbullrunner.com/region/0/routes"));
-			_providerConfig.generatesRouteMap(new URL( "http://juandissimo.adkintegrations.com:8082/api/devices"));
-			_providerConfig.generateTripMap();
-			_providerConfig.generateServiceMap();
-			_providerConfig.extractSeqId();
-			_providerConfig.extractStartTime();
-			
-			
-		} catch (Exception ex) {
-			_log.warn("Error in retriving confirmation data!", ex);
+		if (_standby) {
+			_log.info("standing by, not polling upstream");
+			return;
 		}
+		_startNanos = System.nanoTime();
+		loadConfiguration();
 		_log.info("starting GTFS-realtime service");
-		_executor = Executors.newSingleThreadScheduledExecutor();
-		_executor.scheduleAtFixedRate(new VehiclesRefreshTask(), 0,
+		if (_executor == null) {
+			_executor = Executors.newSingleThreadScheduledExecutor();
+			_ownsExecutor = true;
+		}
+		_refreshTask = _executor.scheduleAtFixedRate(new VehiclesRefreshTask(), 0,
 				_refreshInterval, TimeUnit.SECONDS);
+		if (_interpolationInterval > 0)
+			_interpolationTask = _executor.scheduleAtFixedRate(new InterpolationTask(), _interpolationInterval,
+					_interpolationInterval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Reads the static GTFS and the devices from Traccar, without scheduling
+	 * any refresh. The GTFS needs no network, so it is read first and on its
+	 * own; devices that can't be read now are read again by the refreshes.
+	 */
+	void loadConfiguration() {
+		try {
+			_providerConfig.loadStaticIndex();
+		} catch (Exception ex) {
+			_log.error("Error reading the static GTFS", ex);
+		}
+		loadDevices();
+		ServiceCalendar calendar = _providerConfig.serviceCalendar;
+		if (calendar != null && !calendar.isInValidityRange(calendar.getDay(System.currentTimeMillis())))
+			_log.warn("calendar.txt doesn't cover today, resolving services from the weekly pattern only");
+		_etaPredictor = new ScheduleEtaPredictor(_providerConfig.polylines);
+		_deadReckoning = new DeadReckoning(_providerConfig.polylines);
+		if (_providerConfig.stopIndex != null)
+			_stopEvents = new StopEventDetector(_providerConfig.stopIndex);
+		_deadReckoning.setHorizon(Math.max(_refreshInterval * 2, 10));
+		_alertsEngine = new ServiceAlertsEngine(_providerConfig, _etaPredictor);
+		_alertsEngine.setOutageThreshold(Math.max(_refreshInterval * 3, 120));
 	}
 
 	/**
-	 * The stop method cancels the recurring vehicle data downloader task.
+	 * Runs one refresh on the calling thread, for the load driver that times
+	 * the refreshes itself.
+	 */
+	void refresh() throws IOException, JSONException {
+		refreshTripVehicle();
+	}
+
+	/**
+	 * The stop method cancels the recurring vehicle data downloader task. A
+	 * shared scheduler is left running for the other feeds.
 	 */
 	@PreDestroy
 	public void stop() {
 		_log.info("stopping GTFS-realtime service");
-		_executor.shutdownNow();
+		if (_refreshTask != null)
+			_refreshTask.cancel(true);
+		if (_interpolationTask != null)
+			_interpolationTask.cancel(true);
+		if (_ownsExecutor)
+			_executor.shutdownNow();
+		if (_history != null) {
+			try {
+				_history.close();
+			} catch (IOException ex) {
+				_log.warn("Error writing the position history", ex);
+			}
+		}
 	}
 
 	/****
 	 * Private Methods - Here is where the real work happens
 	 ****/
 
+	/**
+	 * this function reads the route of every device from Traccar, until it
+	 * succeeds once
+	 */
+	private void loadDevices() {
+		if (_devicesLoaded)
+			return;
+		try {
+			//_providerConfig .setUrl(new URL( "http://usfbullrunner.com/region/0/routes"));
+			//_providerConfig.generatesRouteMap(new URL( "https://usfbullrunner.com/region/0/routes"));
+			_providerConfig.generatesRouteMap(new URL(_upstreamUrl + "/api/devices"));
+			_devicesLoaded = true;
+		} catch (Exception ex) {
+			_log.warn("Error in retriving confirmation data!", ex);
+		}
+	}
+
 	/**
 	 * This method downloads the latest vehicle data, processes each vehicle in
 	 * turn, and create a GTFS-realtime feed of trip updates and vehicle
 	 * positions as a result.
 	 */
 	private void refreshTripVehicle() throws IOException, JSONException {
-		 
-		Pair pair = downloadVehicleDetails();
-		JSONArray stopIDsArray = pair.getArray1();
-		JSONArray vehicleArray = pair.getArray2();
-		 
-		if (stopIDsArray.length() == 0) {
-			routeVehicleStartTimeMap.clear();
+		loadDevices();
+		if (_providerConfig.serviceCalendar == null) {
+			_log.warn("no static GTFS was read, nothing to predict from");
+			return;
 		}
-		Calendar cal = Calendar.getInstance();
-		int dayOfWeek = cal.get(Calendar.DAY_OF_WEEK) -1;
-		String serviceID = _providerConfig.serviceIds[dayOfWeek];
+		long millis = System.currentTimeMillis();
+		List<String> serviceIds = _providerConfig.serviceCalendar.getActiveServiceIds(millis);
+		List<String> previousServiceIds = _providerConfig.serviceCalendar.getPreviousServiceIds(millis);
+		refreshPredictedTripUpdates(serviceIds, previousServiceIds);
+	}
  
-		GtfsRealtimeFullUpdate tripUpdates = new GtfsRealtimeFullUpdate();		
-  		GtfsRealtimeFullUpdate vehiclePositions = new GtfsRealtimeFullUpdate();
-
-		 VehicleDescriptor.Builder vehicleDescriptor = null;
-		 String route, trip;
-		 int entity = 0;
-		 int vehicleFeedID = 0;
-		 String stopId = "";
-		 String startTime = "";
-		 String stopSeq;
-		 long predictTime = 0;
-		 TripUpdate.Builder tripUpdate = null;
-		 TripDescriptor.Builder tripDescriptor = null;
-		 
-		 
-		 List <TripUpdate.Builder> tripUpdateArr = new ArrayList<>();
-		 List <stopTimeUpdateRecord> records = new ArrayList<stopTimeUpdateRecord>();
-		 routeVehiDirMap = new BiHashMap<String, String, Float>();
-		 tripVehicleInfoMap = new BiHashMap<String, String, vehicleInfo>();
-		 BiHashMap<String, String, TripUpdate.Builder> tripUpdateMap =  new BiHashMap<String, String, TripUpdate.Builder>();
-			 
-		 for (int i = 0; i < stopIDsArray.length(); i ++) {
-				JSONObject obj = stopIDsArray.getJSONObject(i);
-				route = obj.getString("route").substring(6); 			
-				trip = _providerConfig.tripIDMap.get(route, serviceID);	
-				if (trip == null || trip.equals(""))
-					_log.error("Route "+ route+ "dosn't exit in GTFS file");
-				int stopId_int = obj.getInt("stop");
-				stopId = Integer.toString(stopId_int);
-				JSONArray childArray = obj.getJSONArray("Ptimes");			 
-				
-				for (int j = 0; j < childArray.length(); j++) {
-					
-					JSONObject child = childArray.getJSONObject(j);
-					String predTimeStamp = child.getString("PredictionTime");
-					predictTime = convertTime(predTimeStamp);
-					String vehicleId = child.getString("VehicleId");
-					
-					if (!tripUpdateMap.containsKey(route, vehicleId)){
-						tripUpdate = TripUpdate.newBuilder();
-						vehicleDescriptor = VehicleDescriptor.newBuilder();
-						vehicleDescriptor.setId(vehicleId);
-						tripDescriptor = TripDescriptor.newBuilder();					
-						tripDescriptor.setRouteId(route);
-						tripDescriptor.setTripId(trip);
-						tripUpdate.setVehicle(vehicleDescriptor);
-						tripUpdate.setTrip(tripDescriptor);	
-						tripUpdateMap.put(route, vehicleId, tripUpdate);
-						tripUpdateArr.add(tripUpdate);					 
-					}else{
-						tripUpdate = tripUpdateMap.get(route, vehicleId);		
-					}
-					
-					StopTimeEvent.Builder arrival = StopTimeEvent.newBuilder();
-					arrival.setTime(predictTime);
-					StopTimeUpdate.Builder stopTimeUpdate = StopTimeUpdate.newBuilder();
-					stopTimeUpdate.setArrival(arrival);
-					stopTimeUpdate.setStopId(stopId);					
-					
-					stopSeq = _providerConfig.stopSeqIDMap.get(trip, stopId);
-					 if( stopSeq == null){
-						stopSeq = "0";
-						_log.warn("Error stopID: "+ stopId+ " is not available in GTFS files");
-						System.out.println("Error: stopID: "+ stopId+ " is not available in GTFS files");
-					}
-					 
-					if (stopSeq.equals("1")){
-						startTime = convert2FormattedTime(predTimeStamp);						 
-						//System.out.println("stopSeq =1,  route "+ route+ ", vehicleID = "+ vehicleId);
-						tripDescriptor.setStartTime(startTime);	
-						tripDescriptor.setScheduleRelationship(ScheduleRelationship.UNSCHEDULED);
-						tripUpdate.setTrip(tripDescriptor);
-						 
-						if (routeVehicleStartTimeMap.containsKeys(route, vehicleId)){
-							StartTimes startTimes= routeVehicleStartTimeMap.get(route, vehicleId);
-							startTimes.previousStartT = startTimes.currentStartT;
-							startTimes.currentStartT = startTime;
-						} else{
-							StartTimes startTInstance = new StartTimes(startTime, "0");
-							routeVehicleStartTimeMap.put(route, vehicleId, startTInstance);
-						}
-						//System.out.println("current starttime = "+ tripUpdate.getTrip().getStartTime());
-					}
-					stopTimeUpdate.setStopSequence(Integer.parseInt(stopSeq));
-					records.add(new stopTimeUpdateRecord(tripUpdate, stopTimeUpdate));
-					//tripUpdate.addStopTimeUpdate(stopTimeUpdate);							
-				}				
-		 }
-		 Collections.sort(records);
-		 
-		
-		 for (int i=0; i< records.size();i++){  
-			 records.get(i).tripUpdate.addStopTimeUpdate(records.get(i).stopTimeUpdate);
-		 }
-		 
-		/**
-		 * Create a new feed entity to wrap the trip update and add it
-		 * to the GTFS-realtime trip updates feed.
-		 */	
-		
-		 for (int j = 0; j < tripUpdateArr.size(); j++){
-			FeedEntity.Builder tripUpdateEntity = FeedEntity.newBuilder();
-			tripUpdate = tripUpdateArr.get(j);
-			//System.out.println("-----size of trip Updates = " + tripUpdate.getStopTimeUpdateList().size());
-			
-			int noStopTimes = tripUpdate.getStopTimeUpdateList().size();
-			route = tripUpdate.getTrip().getRouteId();
-			trip = tripUpdate.getTrip().getTripId();
-			String vehicleId = tripUpdate.getVehicle().getId();
-			 
-			if (tripUpdate.getStopTimeUpdate(0).getStopSequence() != 1){
-				StartTimes startTInstance;
-				if (routeVehicleStartTimeMap.containsKeys(route, vehicleId)){
-					startTInstance = routeVehicleStartTimeMap.get(route, vehicleId);
-				} else {
-					//cold start
-					startTInstance = new StartTimes("0", "0");	 
-					routeVehicleStartTimeMap.put(route, vehicleId, startTInstance);
+ 
+	/**
+	 * Builds the trip updates from the latest Traccar position of every device:
+	 * each fix is matched against the stop_times.txt pattern of the trip its
+	 * route runs, and the downstream stops are predicted from the schedule.
+	 * Vehicles whose fix didn't change since the last refresh reuse their
+	 * previous trip update.
+	 *
+	 * The fixes go through the vehicle state store first, so repeated and out
+	 * of order fixes are dropped there, and a vehicle missing from one response
+	 * keeps its predictions until it has been silent for the time to live. The
+	 * vehicle positions are published from the same snapshot of the store.
+	 */
+	private void refreshPredictedTripUpdates(List<String> serviceIds, List<String> previousServiceIds)
+			throws IOException, JSONException {
+
+		JSONArray positionsArray = downloadPositions();
+		GtfsRealtimeFullUpdate tripUpdates = new GtfsRealtimeFullUpdate();
+		Set<String> reportedVehicles = new HashSet<String>();
+		int entity = 0;
+		long now = System.currentTimeMillis() / 1000;
+
+		_vehicleStates.evictIdle(now);
+		decodePositions(positionsArray, _decodedFixes, now);
+		_vehicleStates.record(_decodedFixes);
+		FleetSnapshot snapshot = _vehicleStates.snapshot();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < snapshot.size; i++) {
+			String vehicleId = snapshot.getVehicleId(i);
+			String route = snapshot.getRouteId(i);
+			long fixTime = snapshot.fixTimes[i];
+			if (_quarantine.isQuarantined("prediction", vehicleId, now))
+				continue;
+			ScheduleEtaPredictor.VehicleProgress progress;
+			try {
+				TripStopTimes stopTimes = resolveTrip(vehicleId, route, serviceIds, previousServiceIds, fixTime);
+				if (stopTimes == null) {
+					_quarantine.reject("prediction", vehicleId, "route without a trip", now);
+					continue;
 				}
 
-				TripDescriptor.Builder newTripDescriptor = TripDescriptor.newBuilder();
-				newTripDescriptor.setTripId(trip);
-				newTripDescriptor.setRouteId(route);
-				newTripDescriptor.setStartTime(startTInstance.currentStartT);
-				newTripDescriptor.setScheduleRelationship(ScheduleRelationship.UNSCHEDULED);
-				tripUpdate.setTrip(newTripDescriptor);
-
-				}
-//			System.out.println("responseTimeStamp: "+ responseTimeStamp + "change it to unix: "+ responseTimeStamp); 
-			int delay;
-			long preTime = 0;
-			for(int h = 0; h < noStopTimes; h++){
-				long timeStamp = tripUpdate.getStopTimeUpdate(h).getArrival().getTime();
-				if (timeStamp < preTime){
-					delay = calcDelayTime(timeStamp );
-					if ( 60 < delay  ){
-						 
-						StopTimeEvent.Builder arrival = StopTimeEvent.newBuilder();
-						arrival.setTime(timeStamp);
-						
-						StopTimeUpdate preStopTime = tripUpdate.getStopTimeUpdate(h-1);
-						StopTimeUpdate.Builder newStopTimeUpdate = StopTimeUpdate.newBuilder(preStopTime);
-						newStopTimeUpdate.setArrival(arrival);
-						tripUpdate.setStopTimeUpdate(h-1, newStopTimeUpdate);
-						preTime = timeStamp;
-//						System.out.println("** h = "+ h+ " is "+ timeStamp+ " routeID: "+tripUpdate.getTrip().getRouteId()+ " vehicle: "+tripUpdate.getVehicle().getId());
-//						System.out.println("\t DELAY:"+ delay + ", stop time of h-1 change to "+ tripUpdate.getStopTimeUpdate(h-1).getArrival().getTime()+ " from "+ preTime);
-						
-					} else {
-//						System.out.println(" h = " + h+" routeID: "+tripUpdate.getTrip().getRouteId()+ " vehicle: "+tripUpdate.getVehicle().getId());
-						
-						List <StopTimeUpdate> allStopUpdates = tripUpdate.getStopTimeUpdateList();
-						tripUpdate.clearStopTimeUpdate();
-						TripUpdate.Builder newTripUpdate = tripUpdate.clone();
-						 
-						// we have to send out the old tripUpdate, but before that the rest of stopTimes should be deleted from it		
-						newTripUpdate.addAllStopTimeUpdate(allStopUpdates.subList(0, h));
-						entity ++; 
-						tripUpdateEntity.setId(Integer.toString(entity));
-						tripUpdateEntity.setTripUpdate(newTripUpdate);
-						tripUpdates.addEntity(tripUpdateEntity.build());
-						//System.out.println("what has been sent: size = "+ newTripUpdate.getStopTimeUpdateList().size()+ " stoptime");
-						
-						tripUpdate.addAllStopTimeUpdate(allStopUpdates.subList(h, noStopTimes));
-						//System.out.println("current tripUpdate size = "+ tripUpdate.getStopTimeUpdateList().size()+ " stoptime");
-						preTime = 0;
-						noStopTimes = noStopTimes - h;
-						h = -1; 
-						StartTimes startTimes;
-						if (routeVehicleStartTimeMap.containsKeys(route, vehicleId))
-							startTimes = routeVehicleStartTimeMap.get(route, vehicleId);
-						else{
-							startTimes = new StartTimes(startTime, "0");						 
-							routeVehicleStartTimeMap.put(route, vehicleId, startTimes);
-						}
-						 
-						String previousStartT = startTimes.previousStartT; 
-						TripDescriptor.Builder newTripDescriptor = TripDescriptor.newBuilder();
-						newTripDescriptor.setTripId(trip);
-						newTripDescriptor.setRouteId(route);
-						newTripDescriptor.setStartTime(previousStartT);
-						newTripDescriptor.setScheduleRelationship(ScheduleRelationship.UNSCHEDULED);
-						tripUpdate.setTrip(newTripDescriptor);
-						//System.out.println("second startTime = "+ tripUpdate.getTrip().getStartTime()+ "  &&&& first startTime = "+ newTripUpdate.getTrip().getStartTime());
-					}
-				}
-				else
-					preTime = timeStamp;
+				progress = _etaPredictor.update(vehicleId, stopTimes, snapshot.lats[i], snapshot.lons[i], fixTime);
+				StopEventDetector.TripEvents events = _stopEvents == null ? null
+						: _stopEvents.update(snapshot.vehicles[i], stopTimes, fixTime, snapshot.lats[i], snapshot.lons[i]);
+				if (events != null && events.arrivedAt >= 0)
+					_routeStatistics.recordArrival(snapshot.routes[i], stopTimes.stopIndexes[events.arrivedAt],
+							events.arrivals[events.arrivedAt]);
+				reportedVehicles.add(vehicleId);
+				if (progress.nextStop >= stopTimes.size())
+					continue;
+				if (progress.tripUpdate == null)
+					progress.tripUpdate = buildPredictedTripUpdate(route, vehicleId, progress, events);
+			} catch (RuntimeException ex) {
+				_quarantine.reject("prediction", vehicleId, ex, now);
+				continue;
 			}
-			 
+			_quarantine.accept("prediction", vehicleId);
+
 			entity ++;
-			 
+			FeedEntity.Builder tripUpdateEntity = FeedEntity.newBuilder();
 			tripUpdateEntity.setId(Integer.toString(entity));
-			tripUpdateEntity.setTripUpdate(tripUpdate);
+			tripUpdateEntity.setTripUpdate(progress.tripUpdate);
 			tripUpdates.addEntity(tripUpdateEntity.build());
-		 }
-		 _tripUpdatesSink.handleFullUpdate(tripUpdates);
-		  
-			 _log.info("stoIDs extracted: " + tripUpdates.getEntities().size());
-			// System.out.println("stoIDs extracted: " + tripUpdates.getEntityCount());
-			
-			 
-			 
-			 float bearing;
-			 for (int k = 0; k < vehicleArray.length(); k++) {
-					JSONObject vehicleObj = vehicleArray.getJSONObject(k);
-
-					// We only operate on "Route X" routes and ignore other strings
-					if (vehicleObj.getString("route").length() != 7) continue; 
-
-					route = vehicleObj.getString("route").substring(6);		 			
-					JSONArray vehicleLocsArray = vehicleObj .getJSONArray("VehicleLocation");
-					
-					for (int l = 0; l < vehicleLocsArray.length(); ++l) {
-						JSONObject child = vehicleLocsArray.getJSONObject(l);
-						double lat = child.getDouble("vehicleLat");
-						double lon = child.getDouble("vehicleLong");
-						/**
-						 * To construct our VehiclePosition, we create a position for
-						 * the vehicle. We add the position to a VehiclePosition
-						 * builder, along with the trip and vehicle descriptors.
-						 */
-						tripDescriptor = TripDescriptor.newBuilder();
-						tripDescriptor.setRouteId(route);
-						Position.Builder position = Position.newBuilder();
-						//position.setLatitude((float) lat);
-						//position.setLongitude((float) lon);
-
-						FeedEntity.Builder vehiclePositionEntity = FeedEntity
-								.newBuilder();
-						//int tripID_int = child.getInt("tripId"); 
-						String vehicleId = child.getString("VehicleId");	
-						if (!routeVehiDirMap.containsKey(route))						
-							extractHeading(route);
-
-						vehicleInfo info = tripVehicleInfoMap.get(route, vehicleId);
-						
-						//_log.info("vehicles' info: " + info); 
-						bearing = info.bearing;
-						
-								//routeVehiDirMap.get(route, vehicleId);	
-						position.setBearing(bearing);
-						position.setLatitude(info.lat);
-						position.setLongitude(info.longi);
-						VehiclePosition.Builder vehiclePosition = VehiclePosition.newBuilder();
-						vehiclePosition.setPosition(position);
-						vehiclePosition.setTrip(tripDescriptor);
-
-						if (info.APCPercentage <= 0) vehiclePosition.setOccupancyStatus( VehiclePosition.OccupancyStatus.EMPTY );
-						else if (info.APCPercentage <= 50) vehiclePosition.setOccupancyStatus( VehiclePosition.OccupancyStatus.MANY_SEATS_AVAILABLE );
-						else if (info.APCPercentage <= 70) vehiclePosition.setOccupancyStatus( VehiclePosition.OccupancyStatus.FEW_SEATS_AVAILABLE );
-						else if (info.APCPercentage <= 90) vehiclePosition.setOccupancyStatus( VehiclePosition.OccupancyStatus.STANDING_ROOM_ONLY );
-						else if (info.APCPercentage <= 95) vehiclePosition.setOccupancyStatus( VehiclePosition.OccupancyStatus.CRUSHED_STANDING_ROOM_ONLY );
-						else vehiclePosition.setOccupancyStatus( VehiclePosition.OccupancyStatus.FULL );
-
-						vehicleDescriptor = VehicleDescriptor.newBuilder();
-						vehicleDescriptor.setId(vehicleId);
-						
-						vehicleFeedID ++;
-
-						vehiclePositionEntity.setId(Integer.toString(vehicleFeedID));
-						vehiclePosition.setVehicle(vehicleDescriptor);
-						vehiclePositionEntity.setVehicle(vehiclePosition);
-						
-						vehiclePositions.addEntity(vehiclePositionEntity.build());
-						
-					}
-		 		}
-			 _vehiclePositionsSink.handleFullUpdate(vehiclePositions);
-			 _log.info("vehicles' location extracted: " + vehiclePositions.getEntities().size());	
-			 //System.out.println("vehicles' location extracted: " + vehiclePositions.getEntityCount());
+		}
+		_etaPredictor.retainAll(reportedVehicles);
+		PipelineEvents.record(PipelineEvents.Stage.PREDICT, start, entity, 0);
+
+		_tripUpdatesSink.handleFullUpdate(tripUpdates);
+		_log.info("trip updates predicted: " + tripUpdates.getEntities().size());
+
+		publishVehiclePositions(snapshot);
+		if (_history != null)
+			recordHistory(snapshot);
+		_routeStatistics.record(snapshot, now);
+		_routeStatistics.render(now);
+		if (_alertsEngine.update(snapshot, serviceIds, previousServiceIds, now))
+			publishAlerts();
 	}
- 
- 
+
 	/**
-	 * @return a JSON array parsed from the data pulled from the SEPTA vehicle
-	 *         data API.
+	 * Publishes the alerts, which the engine only asks for when one was raised
+	 * or cleared.
 	 */
-	public class Pair {
-		private JSONArray array1;
-		private JSONArray array2;
+	private void publishAlerts() {
+		if (_alertsSink == null)
+			return;
+		GtfsRealtimeFullUpdate alerts = _alertsEngine.getFullUpdate();
+		_alertsSink.handleFullUpdate(alerts);
+		_log.info("alerts published: " + alerts.getEntities().size());
+	}
 
-		public Pair(JSONArray array1, JSONArray array2) {
-			this.array1 = array1;
-			this.array2 = array2;
+	/**
+	 * Writes the fixes that are new since the last refresh to the history,
+	 * with the predicted arrival at the next stop of the vehicle.
+	 */
+	private void recordHistory(FleetSnapshot snapshot) {
+		try {
+			for (int i = 0; i < snapshot.size; i++) {
+				int vehicle = snapshot.vehicles[i];
+				if (vehicle >= _historyFixTimes.length)
+					_historyFixTimes = Arrays.copyOf(_historyFixTimes, Math.max(vehicle + 1, _historyFixTimes.length * 2));
+				if (_historyFixTimes[vehicle] == snapshot.fixTimes[i])
+					continue;
+				_historyFixTimes[vehicle] = snapshot.fixTimes[i];
+
+				String vehicleId = snapshot.getVehicleId(i);
+				ScheduleEtaPredictor.VehicleProgress progress = _etaPredictor.getProgress(vehicleId);
+				boolean predicted = progress != null && progress.nextStop < progress.trip.size();
+				_history.append(snapshot.fixTimes[i], vehicleId, snapshot.getRouteId(i), snapshot.lats[i],
+						snapshot.lons[i], snapshot.bearings[i], snapshot.occupancy[i],
+						predicted ? progress.trip.stopIds[progress.nextStop] : null,
+						predicted ? progress.arrivalTimes[progress.nextStop] : 0);
+			}
+			_history.flushIfDue();
+		} catch (IOException ex) {
+			_log.warn("Error writing the position history", ex);
+		}
+	}
+
+	/**
+	 * Reads the Traccar positions of the devices of known routes straight into
+	 * the arrays of the snapshot. A position that can't be read is rejected on
+	 * its own and the others are still read.
+	 */
+	private void decodePositions(JSONArray positionsArray, FleetSnapshot fixes, long now) {
+		long start = System.nanoTime();
+		SymbolTable symbols = fixes.getSymbols();
+		fixes.clear();
+		for (int i = 0; i < positionsArray.length(); i++) {
+			JSONObject position = positionsArray.optJSONObject(i);
+			String vehicleId = position == null ? null : position.optString("deviceId", null);
+			if (vehicleId == null) {
+				_quarantine.reject("position", null, "no deviceId", now);
+				continue;
+			}
+			String route = _providerConfig.deviceRouteMap.get(vehicleId);
+			if (route == null || _quarantine.isQuarantined("position", vehicleId, now))
+				continue;
+			try {
+				fixes.add(symbols.intern(vehicleId), symbols.intern(route),
+						convertFixTime(position.optString("fixTime", null)),
+						position.getDouble("latitude"), position.getDouble("longitude"),
+						(float) position.optDouble("course", 0), (float) position.optDouble("speed", 0),
+						position.optInt("APCPercentage", 0));
+			} catch (JSONException | RuntimeException ex) {
+				_quarantine.reject("position", vehicleId, ex, now);
+			}
+		}
+		PipelineEvents.record(PipelineEvents.Stage.DECODE, start, fixes.size, 0);
+	}
+
+	/**
+	 * Builds the vehicle positions feed from the latest fix of every vehicle,
+	 * with the trip the vehicle was matched to when there is one. The entities
+	 * and matches are kept for the interpolated positions published until the
+	 * next refresh.
+	 */
+	private void publishVehiclePositions(FleetSnapshot snapshot) {
+		synchronized (_deadReckoning) {
+			long start = System.nanoTime();
+			GtfsRealtimeFullUpdate vehiclePositions = new GtfsRealtimeFullUpdate();
+			if (_vehicleEntities.length < snapshot.size)
+				_vehicleEntities = new FeedEntity[Math.max(snapshot.size, _vehicleEntities.length * 2)];
+			_deadReckoning.clear();
+			for (int i = 0; i < snapshot.size; i++) {
+				String vehicleId = snapshot.getVehicleId(i);
+				try {
+					TripDescriptor.Builder tripDescriptor = TripDescriptor.newBuilder();
+					tripDescriptor.setRouteId(snapshot.getRouteId(i));
+					ScheduleEtaPredictor.VehicleProgress progress = _etaPredictor.getProgress(vehicleId);
+					if (progress != null)
+						tripDescriptor.setTripId(progress.trip.tripId);
+
+					Position.Builder position = Position.newBuilder();
+					position.setLatitude((float) snapshot.lats[i]);
+					position.setLongitude((float) snapshot.lons[i]);
+					position.setBearing(snapshot.bearings[i]);
+					position.setSpeed(snapshot.speeds[i] * KNOTS_TO_METERS_PER_SECOND);
+
+					VehicleDescriptor.Builder vehicleDescriptor = VehicleDescriptor.newBuilder();
+					vehicleDescriptor.setId(vehicleId);
+
+					VehiclePosition.Builder vehiclePosition = VehiclePosition.newBuilder();
+					vehiclePosition.setTrip(tripDescriptor);
+					vehiclePosition.setVehicle(vehicleDescriptor);
+					vehiclePosition.setPosition(position);
+					vehiclePosition.setTimestamp(snapshot.fixTimes[i]);
+					vehiclePosition.setOccupancyStatus(occupancyStatus(snapshot.occupancy[i]));
+
+					FeedEntity.Builder vehiclePositionEntity = FeedEntity.newBuilder();
+					vehiclePositionEntity.setId(Integer.toString(i + 1));
+					vehiclePositionEntity.setVehicle(vehiclePosition);
+					// indexed like the dead reckoning, which skips the vehicles rejected here
+					_vehicleEntities[_deadReckoning.size] = vehiclePositionEntity.build();
+					addToDeadReckoning(snapshot, i, progress);
+				} catch (RuntimeException ex) {
+					_quarantine.reject("position", vehicleId, ex, System.currentTimeMillis() / 1000);
+					continue;
+				}
+				vehiclePositions.addEntity(_vehicleEntities[_deadReckoning.size - 1]);
+				_quarantine.accept("position", vehicleId);
+			}
+			PipelineEvents.record(PipelineEvents.Stage.POSITIONS, start, vehiclePositions.getEntities().size(), 0);
+			_vehiclePositionsSink.handleFullUpdate(vehiclePositions);
+			_log.info("vehicles' location extracted: " + vehiclePositions.getEntities().size());
+		}
+	}
+
+	/**
+	 * this function hands a vehicle of the refresh to the dead reckoning, with
+	 * where its fix was matched along its trip if it was
+	 */
+	private void addToDeadReckoning(FleetSnapshot snapshot, int i, ScheduleEtaPredictor.VehicleProgress progress) {
+		int polyline = -1;
+		double distance = 0, limit = 0;
+		if (progress != null && progress.fixTime == snapshot.fixTimes[i] && progress.nextStop < progress.trip.size()) {
+			polyline = progress.trip.polyline;
+			distance = progress.distanceAlong;
+			limit = progress.trip.stopDistances[progress.nextStop];
+		}
+		_deadReckoning.add(snapshot.vehicles[i], snapshot.fixTimes[i], snapshot.lats[i], snapshot.lons[i],
+				snapshot.bearings[i], snapshot.speeds[i] * KNOTS_TO_METERS_PER_SECOND, polyline, distance, limit);
+	}
 
+	/**
+	 * This method republishes the vehicle positions of the last refresh with
+	 * every vehicle that was matched to its trip moved forward to where it is
+	 * estimated to be now. Those are stamped with the time they were moved to,
+	 * which is never further past their fix than the horizon, and the others
+	 * keep the time of their fix.
+	 */
+	private void publishInterpolatedPositions() {
+		synchronized (_deadReckoning) {
+			long now = System.currentTimeMillis();
+			if (_deadReckoning.project(now) == 0)
+				return;
+			GtfsRealtimeFullUpdate vehiclePositions = new GtfsRealtimeFullUpdate();
+			for (int i = 0; i < _deadReckoning.size; i++) {
+				FeedEntity entity = _vehicleEntities[i];
+				if (_deadReckoning.moved[i]) {
+					VehiclePosition fix = entity.getVehicle();
+					Position.Builder position = Position.newBuilder(fix.getPosition());
+					position.setLatitude((float) _deadReckoning.lats[i]);
+					position.setLongitude((float) _deadReckoning.lons[i]);
+					position.setBearing(_deadReckoning.bearings[i]);
+					VehiclePosition.Builder vehiclePosition = VehiclePosition.newBuilder(fix);
+					vehiclePosition.setPosition(position);
+					vehiclePosition.setTimestamp(_deadReckoning.times[i]);
+					FeedEntity.Builder vehiclePositionEntity = FeedEntity.newBuilder(entity);
+					vehiclePositionEntity.setVehicle(vehiclePosition);
+					entity = vehiclePositionEntity.build();
+				}
+				vehiclePositions.addEntity(entity);
+			}
+			_vehiclePositionsSink.handleFullUpdate(vehiclePositions);
 		}
+	}
+
+	// This method maps the occupancy in percent reported by the bus to the GTFS-realtime status
+	private static OccupancyStatus occupancyStatus(int percentage) {
+		if (percentage <= 0) return OccupancyStatus.EMPTY;
+		else if (percentage <= 50) return OccupancyStatus.MANY_SEATS_AVAILABLE;
+		else if (percentage <= 70) return OccupancyStatus.FEW_SEATS_AVAILABLE;
+		else if (percentage <= 90) return OccupancyStatus.STANDING_ROOM_ONLY;
+		else if (percentage <= 95) return OccupancyStatus.CRUSHED_STANDING_ROOM_ONLY;
+		else return OccupancyStatus.FULL;
+	}
 
-		public JSONArray getArray1() {
-			return array1;
+	/**
+	 * Picks the trip of the route that has an instance running at the time of
+	 * the fix, keeping the trip the vehicle is already matched to when several
+	 * are running. Trips past midnight are looked for under the services of
+	 * the previous service day, 24 hours later in its frequencies.txt windows.
+	 * Routes with nothing running fall back to the trip of the service in
+	 * trips.txt.
+	 */
+	private TripStopTimes resolveTrip(String vehicleId, String route, List<String> serviceIds,
+			List<String> previousServiceIds, long fixTime) {
+		ScheduleEtaPredictor.VehicleProgress progress = _etaPredictor.getProgress(vehicleId);
+		TripStopTimes running = null;
+		for (int previousDay = 0; previousDay < 2; previousDay++) {
+			int secondsOfDay = secondsOfDay(fixTime) + previousDay * 86400;
+			for (String serviceID : previousDay == 0 ? serviceIds : previousServiceIds) {
+				List<String> trips = _providerConfig.routeTripsMap.get(route, serviceID);
+				if (trips == null)
+					continue;
+				for (String trip : trips) {
+					TripStopTimes stopTimes = _providerConfig.tripStopTimesMap.get(trip);
+					if (stopTimes == null || _providerConfig.frequencyTrips.findRunningInstance(trip, secondsOfDay,
+							stopTimes.getDuration()) < 0)
+						continue;
+					if (progress != null && progress.trip == stopTimes)
+						return stopTimes;
+					if (running == null)
+						running = stopTimes;
+				}
+			}
 		}
+		if (running != null)
+			return running;
+		String trip = findTrip(route, serviceIds);
+		return trip == null ? null : _providerConfig.tripStopTimesMap.get(trip);
+	}
 
-		public JSONArray getArray2() {
-			return array2;
+	/**
+	 * @return the trip trips.txt gives the route under the first active service
+	 *         that has one, or null
+	 */
+	private String findTrip(String route, List<String> serviceIds) {
+		for (String serviceID : serviceIds) {
+			String trip = _providerConfig.tripIDMap.get(route, serviceID);
+			if (trip != null)
+				return trip;
 		}
+		return null;
+	}
+
+	/**
+	 * @param estimatedStart
+	 *            when the vehicle left, or will leave, the first stop, in
+	 *            seconds since the epoch
+	 * @return the start_time of the instance of the trip closest to the
+	 *         estimate, from the table expanded out of frequencies.txt
+	 */
+	private String instanceStartTime(String tripId, long estimatedStart) {
+		int secondsOfDay = secondsOfDay(estimatedStart);
+		FrequencyTripTable instances = _providerConfig.frequencyTrips;
+		int instance = instances.findInstance(tripId, secondsOfDay);
+		return FrequencyTripTable.formatTime(instance < 0 ? secondsOfDay : instances.getStartTime(instance));
+	}
+
+	private int secondsOfDay(long time) {
+		return new DateTime(time * 1000, _providerConfig.serviceCalendar.getTimeZone()).getSecondOfDay();
 	}
 
+	/**
+	 * Builds the trip update of a vehicle: the observed arrival and departure
+	 * times at the stops it was seen at on this run of the trip, then the
+	 * predicted arrivals at the stops ahead of it.
+	 */
+	private TripUpdate buildPredictedTripUpdate(String route, String vehicleId,
+			ScheduleEtaPredictor.VehicleProgress progress, StopEventDetector.TripEvents events) {
+
+		TripStopTimes stopTimes = progress.trip;
+		TripDescriptor.Builder tripDescriptor = TripDescriptor.newBuilder();
+		tripDescriptor.setTripId(stopTimes.tripId);
+		tripDescriptor.setRouteId(route);
+		tripDescriptor.setStartTime(instanceStartTime(stopTimes.tripId, progress.getEstimatedStartTime()));
+		tripDescriptor.setStartDate(new DateTime(progress.getEstimatedStartTime() * 1000,
+				_providerConfig.serviceCalendar.getTimeZone()).toString("yyyyMMdd"));
+		tripDescriptor.setScheduleRelationship(ScheduleRelationship.UNSCHEDULED);
+
+		VehicleDescriptor.Builder vehicleDescriptor = VehicleDescriptor.newBuilder();
+		vehicleDescriptor.setId(vehicleId);
+
+		TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+		tripUpdate.setTrip(tripDescriptor);
+		tripUpdate.setVehicle(vehicleDescriptor);
+		tripUpdate.setTimestamp(progress.fixTime);
+		// observed times older than half a trip belong to the previous run of the trip
+		long observedSince = progress.getEstimatedStartTime() - stopTimes.getDuration() / 2;
+		int first = progress.nextStop;
+		for (int k = 0; events != null && k < first; k++) {
+			if (events.arrivals[k] >= observedSince)
+				first = k;
+		}
+		for (int k = first; k < stopTimes.size(); k++) {
+			StopTimeUpdate.Builder stopTimeUpdate = StopTimeUpdate.newBuilder();
+			StopTimeEvent.Builder arrival = StopTimeEvent.newBuilder();
+			if (events != null && events.arrivals[k] >= observedSince) {
+				arrival.setTime(events.arrivals[k]);
+				if (events.hasDeparted(k)) {
+					StopTimeEvent.Builder departure = StopTimeEvent.newBuilder();
+					departure.setTime(events.departures[k]);
+					stopTimeUpdate.setDeparture(departure);
+				}
+			} else if (k >= progress.nextStop) {
+				arrival.setTime(progress.arrivalTimes[k]);
+			} else {
+				continue;
+			}
+			stopTimeUpdate.setArrival(arrival);
+			stopTimeUpdate.setStopId(stopTimes.stopIds[k]);
+			stopTimeUpdate.setStopSequence(stopTimes.stopSequences[k]);
+			tripUpdate.addStopTimeUpdate(stopTimeUpdate);
+		}
+		return tripUpdate.build();
+	}
+ 
 	public URLConnection setUsernamePassword(URL url) throws IOException {
-        URLConnection urlConnection = url.openConnection();
-        String authString = "admin" + ":" + "admin";
-        String authStringEnc = new String(Base64.encodeBase64(authString.getBytes()));
-        urlConnection.setRequestProperty("Authorization", "Basic " + authStringEnc);
-        return urlConnection;
-    }
-		
-	
-	private Pair downloadVehicleDetails() throws IOException, JSONException {
-		URL _vehiclePositionURL = new URL("http://juandissimo.adkintegrations.com:8082/api/positions");
+		return _providerConfig.setUsernamePassword(url);
+	}
 		
-		URLConnection urlConnection = setUsernamePassword(_vehiclePositionURL);
-		  urlConnection.setConnectTimeout(10000);  // connectTimeout is time out in miliseconds
-		  urlConnection.setReadTimeout(10000);
-		  java.io.InputStream in =  urlConnection.getInputStream();
 	
-			  
-
-		  BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-
-		  StringBuilder builder = new StringBuilder();
-		  String inputLine;
-		  JSONArray stopIDsArray;
-		  JSONArray vehicleArray;
-	/*	  try {
-		    while ((inputLine = reader.readLine()) != null)
-		      builder.append(inputLine).append("\n");
-
-		   /* JSONObject object = (JSONObject) new JSONTokener(builder.toString())
-		            .nextValue();
-
-		    String data = object.getString("PredictionData");
-		    JSONObject child2_obj = new JSONObject(data);
-		    responseTimeStamp = child2_obj.getString("TimeStamp");
-		     stopIDsArray = child2_obj.getJSONArray("StopPredictions");
-		     vehicleArray = child2_obj.getJSONArray("VehicleLocationData");
-
-		  } catch (java.net.SocketTimeoutException ex) {
-			  _log.error("Error readline, server dosn't close the connection.", ex);
-		    stopIDsArray = null;
-		    vehicleArray = null;
-		  }*/
-		    stopIDsArray = null;
-		    vehicleArray = null;
-		  
-		  return new Pair(stopIDsArray, vehicleArray);
-		  
-	 
+	/**
+	 * @return the latest position of every device, as served by /api/positions
+	 */
+	private JSONArray downloadPositions() throws IOException, JSONException {
+		return _providerConfig.downloadCofiguration(new URL(_upstreamUrl + "/api/positions"));
+	}
+
+	/**
+	 * Task that republishes the vehicle positions moved forward to the present.
+	 */
+	private class InterpolationTask implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				publishInterpolatedPositions();
+			} catch (Exception ex) {
+				_log.warn("Error in vehicle interpolation task", ex);
+			}
+		}
 	}
 
 	/**
@@ -577,54 +817,32 @@ public class GtfsRealtimeProviderImpl {
 
 		@Override
 		public void run() {
+			long start = PipelineEvents.beginCycle();
 			try {
 				_log.info("refreshing vehicles");
 				refreshTripVehicle();
+				if (!_firstFeedPublished) {
+					_firstFeedPublished = true;
+					_log.info(String.format("first feed published %.1f ms after start",
+							(System.nanoTime() - _startNanos) / 1e6));
+				}
 				//test_refreshVehicles();
+			} catch (IOException ex) {
+				_log.warn("Error in vehicle refresh task", ex);
+				if (_alertsEngine != null && _alertsEngine.upstreamFailed(System.currentTimeMillis() / 1000))
+					publishAlerts();
 			} catch (Exception ex) {
 				_log.warn("Error in vehicle refresh task", ex);
+			} finally {
+				PipelineEvents.endCycle(_upstreamUrl, start);
 			}
 		}
 	}
-	private int calcDelayTime(long arrivalTime){
-		int diff;
-		String pattern = "yyyy-MM-dd'T'HH:mm:ssZ";
-		DateTimeFormatter dtf = DateTimeFormat.forPattern(pattern);
-		DateTime parsedDate = dtf.parseDateTime(responseTimeStamp);	 
-		diff = (int) (arrivalTime - parsedDate.getMillis()/1000);
-		return diff;
-	}
-	private String convert2FormattedTime(String myTimeStamp){
-		
-		   DateTimeFormatter dtf = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ssZ");
-		   DateTime jodatime = dtf.parseDateTime(myTimeStamp);
-		   DateTimeFormatter dtfOut = DateTimeFormat.forPattern("HH:mm:ss"); 
-		   return dtfOut.print(jodatime);
-	   }
-   
-	// This method extract time from timestamp
-	private long convertTime(String myTimeStamp) {
-
-		//final SimpleDateFormat sdf = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ssXXX");
-		DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ"){ 
-		    public Date parse(String source,ParsePosition pos) {    
-		        return super.parse(source.replaceFirst(":(?=[0-9]{2}$)",""),pos);
-		    }
-		};
-		Date time;// = new Date();
-		long result = 0;
-		try {
-			//dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-			//dateFormat.setTimeZone(dateFormat.getTimeZone());
-			time = dateFormat.parse(myTimeStamp);
-			result = time.getTime()/1000; 
-		} catch (ParseException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-
-		return result;
-
+	// This method extracts the fix time of a Traccar position, in seconds
+	private long convertFixTime(String fixTime) {
+		if (fixTime == null || fixTime.isEmpty())
+			return System.currentTimeMillis() / 1000;
+		return ISODateTimeFormat.dateTimeParser().parseMillis(fixTime) / 1000;
 	}
 
 	 
@@ -647,75 +865,10 @@ public class GtfsRealtimeProviderImpl {
 	      case "NW":
 	          return 315;
 	      default:{
-	    	  System.out.println("this dierection is not available : "+ direction);
 	    	  _log.error("this dierection is not supported : "+ direction);
 	    	  return 0;
 	      }
 	         
       }
 	}
-	class vehicleInfo {
-	    public float lat;
-	    public float longi;
-	    public float bearing;
-	    public int APCPercentage;
-	}
-	private void extractHeading (String route) throws IOException, JSONException{
-		int routeID = _providerConfig.routesMap.get(route);	
-		Timestamp timestamp = new Timestamp(System.currentTimeMillis());
-		String urlStr = "http://juandissimo.adkintegrations.com:8082/api/positions?deviceId="+ routeID + "&from="+convertTime(timestamp.toString())+"&to="+convertTime(timestamp.toString());
-		System.out.println(urlStr);
-		JSONArray jsonVehicle = _providerConfig.downloadCofiguration(new URL( urlStr ));
-		
-		for (int i= 0; i < jsonVehicle.length(); i++ ){
-			
-			JSONObject child = jsonVehicle.getJSONObject(i);
-			float direction = child.getLong("course");
-			//float direction = getDirVal(heading);
-			String vehicleID = child.getString("deviceId");
-			routeVehiDirMap.put(route, vehicleID, direction);
-			
-			//JSONObject coordinate = child.getJSONObject("Coordinate");
-			vehicleInfo info = new vehicleInfo();
-			info.lat = child.getLong("latitude");
-			info.longi = child.getLong("longitude");
-			info.bearing = direction;
-
-			info.APCPercentage = child.getInt("APCPercentage");
-			 
-			tripVehicleInfoMap.put(route, vehicleID, info);		 
-		}
-		
-	
-	}
-	private class stopTimeUpdateRecord implements Comparable<stopTimeUpdateRecord> {
-		public StopTimeUpdate.Builder stopTimeUpdate;
-		public TripUpdate.Builder tripUpdate;
-		public stopTimeUpdateRecord(TripUpdate.Builder t, StopTimeUpdate.Builder s){
-			tripUpdate = t;
-			stopTimeUpdate = s;
-		}
-		@Override
-		public int compareTo(stopTimeUpdateRecord other) {
-			int currentStopSeq = this.stopTimeUpdate.getStopSequence();
-			int otherStopSeq = other.stopTimeUpdate.getStopSequence();
-		
-			 if (currentStopSeq == otherStopSeq)
-		            return 0;
-		        else if (currentStopSeq > otherStopSeq)
-		            return 1;
-		        else
-		            return -1;
-		}
-	}
-    
-	private class StartTimes{
-		public String currentStartT;
-		public String previousStartT;
-		//constructor
-		public StartTimes(String currentStartT, String previousStartT){
-			this.currentStartT = currentStartT;
-			this.previousStartT = previousStartT;
-		}
-	}
 }
@@ -0,0 +1,266 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import javax.inject.Inject;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeServlet;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.ISODateTimeFormat;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSource;
+
+/**
+ * Serves a feed from the cached encodings of the exporter's current
+ * {@link FeedSnapshot}, instead of rendering the feed on every request:
+ *
+ * <ul>
+ * <li>the protobuf feed by default</li>
+ * <li>the text format with ?debug, as text/plain</li>
+ * <li>JSON with ?json or an Accept header asking for application/json</li>
+ * </ul>
+ *
+ * ?route=route_id or ?stop=stop_id narrows the feed to the entities that refer
+ * to the route or stop, from the slices made when the snapshot was published.
+ *
+ * Every response carries an ETag, and a request whose If-None-Match names the
+ * current snapshot gets a 304 without a body. A client sending
+ * Accept-Encoding: gzip gets the gzip copy kept by the snapshot, under a tag
+ * of its own.
+ *
+ * ?at=time, an ISO 8601 time such as 2026-10-16T08:15:00 in the agency time
+ * zone of the GTFS unless it has an offset, serves the protobuf feed exactly as it was
+ * served at that time, from the {@link FeedArchive} of the feed if it has one.
+ *
+ * Each client, known by the key parameter or X-API-Key header if it sends a
+ * configured key and by its address otherwise, is held to its share of
+ * requests by the {@link ClientRateLimiter} if a rate is set; beyond that it
+ * gets a 429 Too Many Requests.
+ */
+public class GtfsRealtimeServletCutr extends GtfsRealtimeServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final String CONTENT_TYPE_PROTOBUF = "application/x-google-protobuf";
+
+  private static final String CONTENT_TYPE_TEXT = "text/plain; charset=utf-8";
+
+  private static final String CONTENT_TYPE_JSON = "application/json; charset=utf-8";
+
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
+  private GtfsRealtimeExporterCutr _exporter;
+
+  private ClientRateLimiter _rateLimiter;
+
+  private FeedServletStats _stats;
+
+  private FeedArchive _archive;
+
+  private DateTimeZone _timeZone = DateTimeZone.getDefault();
+
+  @Inject
+  public void setRateLimiter(ClientRateLimiter rateLimiter) {
+    _rateLimiter = rateLimiter;
+  }
+
+  @Inject
+  public void setStats(FeedServletStats stats) {
+    _stats = stats;
+  }
+
+  /**
+   * @param archive
+   *          of the source, to serve ?at from
+   */
+  public void setArchive(FeedArchive archive) {
+    _archive = archive;
+  }
+
+  /**
+   * @param timeZone
+   *          of the agency, which ?at times without an offset are in
+   */
+  public void setTimeZone(DateTimeZone timeZone) {
+    _timeZone = timeZone;
+  }
+
+  @Override
+  public void setSource(GtfsRealtimeSource source) {
+    super.setSource(source);
+    _exporter = source instanceof GtfsRealtimeExporterCutr
+        ? (GtfsRealtimeExporterCutr) source : null;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    long start = System.nanoTime();
+    int bytes = 0;
+    _stats.requestStarted();
+    try {
+      if (!_rateLimiter.tryAcquire(_rateLimiter.getClient(req))) {
+        resp.setIntHeader("Retry-After", _rateLimiter.getRetryAfter());
+        resp.sendError(SC_TOO_MANY_REQUESTS);
+        return;
+      }
+      if (_exporter == null) {
+        super.doGet(req, resp);
+        return;
+      }
+      bytes = serve(req, resp);
+    } finally {
+      _stats.requestFinished();
+      PipelineEvents.record(PipelineEvents.Stage.SERVE, start, 0, bytes);
+    }
+  }
+
+  /**
+   * @return the bytes of the body written
+   */
+  private int serve(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    String at = req.getParameter("at");
+    if (at != null) {
+      return serveArchived(req, resp, at);
+    }
+
+    FeedSnapshot snapshot = _exporter.getSnapshot();
+
+    String route = req.getParameter("route");
+    String stop = req.getParameter("stop");
+    if (route != null && stop != null) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "filter by either route or stop");
+      return 0;
+    }
+    if (route != null) {
+      snapshot = snapshot.getRouteSlice(route);
+    } else if (stop != null) {
+      snapshot = snapshot.getStopSlice(stop);
+    }
+
+    String encoding;
+    if (req.getParameter("debug") != null) {
+      encoding = "text";
+    } else if (req.getParameter("json") != null || acceptsJson(req)) {
+      encoding = "json";
+    } else {
+      encoding = "pb";
+    }
+    return writeSnapshot(req, resp, snapshot, encoding);
+  }
+
+  /**
+   * Writes the snapshot in the encoding, or a 304 if the client has it.
+   *
+   * @return the bytes of the body written
+   */
+  private int writeSnapshot(HttpServletRequest req, HttpServletResponse resp,
+      FeedSnapshot snapshot, String encoding) throws IOException {
+    boolean gzip = acceptsGzip(req);
+    String etag = snapshot.getETag(gzip ? encoding + "-gzip" : encoding);
+    resp.setHeader("ETag", etag);
+    resp.setHeader("Cache-Control", "no-cache");
+    resp.setHeader("Vary", "Accept-Encoding");
+    if (matches(req.getHeader("If-None-Match"), etag)) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      _stats.notModified();
+      return 0;
+    }
+
+    if (encoding.equals("text")) {
+      resp.setContentType(CONTENT_TYPE_TEXT);
+    } else if (encoding.equals("json")) {
+      resp.setContentType(CONTENT_TYPE_JSON);
+    } else {
+      resp.setContentType(CONTENT_TYPE_PROTOBUF);
+    }
+    if (gzip) {
+      resp.setHeader("Content-Encoding", "gzip");
+    }
+    byte[] body = snapshot.getEncoded(encoding, gzip);
+    resp.setContentLength(body.length);
+    resp.getOutputStream().write(body);
+    return body.length;
+  }
+
+  /**
+   * Writes the protobuf feed as it was served at the time, or a 304 if the
+   * client has it.
+   *
+   * @return the bytes of the body written
+   */
+  private int serveArchived(HttpServletRequest req, HttpServletResponse resp,
+      String at) throws IOException {
+    if (_archive == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND,
+          "this feed is not archived");
+      return 0;
+    }
+    long time;
+    try {
+      time = ISODateTimeFormat.dateTimeParser().withZone(_timeZone)
+          .parseMillis(at);
+    } catch (IllegalArgumentException ex) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "at must be an ISO 8601 time");
+      return 0;
+    }
+    FeedArchive.Snapshot snapshot = _archive.find(time);
+    if (snapshot == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND,
+          "nothing archived at " + at);
+      return 0;
+    }
+
+    String etag = "\"archive-" + Long.toString(snapshot.time, 36) + "\"";
+    resp.setHeader("ETag", etag);
+    resp.setDateHeader("Last-Modified", snapshot.time);
+    resp.setHeader("Cache-Control", "no-cache");
+    if (matches(req.getHeader("If-None-Match"), etag)) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      _stats.notModified();
+      return 0;
+    }
+    resp.setContentType(CONTENT_TYPE_PROTOBUF);
+    int length = snapshot.binary.remaining();
+    resp.setContentLength(length);
+    // the slice of the mapped segment, through the response stream
+    WritableByteChannel channel = Channels.newChannel(resp.getOutputStream());
+    while (snapshot.binary.hasRemaining()) {
+      channel.write(snapshot.binary);
+    }
+    return length;
+  }
+
+  private static boolean acceptsJson(HttpServletRequest req) {
+    String accept = req.getHeader("Accept");
+    return accept != null && accept.contains("application/json");
+  }
+
+  private static boolean acceptsGzip(HttpServletRequest req) {
+    String acceptEncoding = req.getHeader("Accept-Encoding");
+    return acceptEncoding != null && acceptEncoding.contains("gzip");
+  }
+
+  /**
+   * @return true if the If-None-Match header lists the tag or is *
+   */
+  static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
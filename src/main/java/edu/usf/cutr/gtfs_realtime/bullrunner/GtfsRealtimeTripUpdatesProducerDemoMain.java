@@ -17,25 +17,35 @@ package edu.usf.cutr.gtfs_realtime.bullrunner;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.Parser;
+import org.joda.time.DateTimeZone;
 import org.json.JSONException;
 import org.onebusaway.cli.CommandLineInterfaceLibrary;
-import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFileWriter;
-import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeServlet;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSource;
 
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.VehiclePositions;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.Alerts;
 import org.onebusaway.guice.jsr250.JSR250Module;
 import org.onebusaway.guice.jsr250.LifecycleService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.inject.Guice;
 import com.google.inject.Inject;
@@ -44,6 +54,8 @@ import com.google.inject.Module;
 
 public class GtfsRealtimeTripUpdatesProducerDemoMain {
 
+	private static final Logger _log = LoggerFactory.getLogger(GtfsRealtimeTripUpdatesProducerDemoMain.class);
+
 	private static final String ARG_TRIP_UPDATES_PATH = "tripUpdatesPath";
 
 	private static final String ARG_TRIP_UPDATES_URL = "tripUpdatesUrl";
@@ -52,6 +64,56 @@ public class GtfsRealtimeTripUpdatesProducerDemoMain {
 
 	private static final String ARG_VEHICLE_POSITIONS_URL = "vehiclePositionsUrl";
 
+	private static final String ARG_FEEDS = "feeds";
+
+	private static final String ARG_GZIP_FEED_FILES = "gzipFeedFiles";
+
+	private static final String ARG_FSYNC = "fsync";
+
+	private static final String ARG_RATE_LIMIT = "rateLimit";
+
+	private static final String ARG_UPSTREAM_URL = "upstreamUrl";
+
+	private static final String ARG_RATE_BURST = "rateBurst";
+
+	private static final String ARG_API_KEYS = "apiKeys";
+
+	private static final String ARG_TRUSTED_PROXIES = "trustedProxies";
+
+	private static final String ARG_HISTORY_DIR = "historyDir";
+
+	private static final String ARG_HISTORY_RETENTION = "historyRetentionDays";
+
+	private static final String ARG_LEASE_FILE = "leaseFile";
+
+	private static final String ARG_REPLICATION_PORT = "replicationPort";
+
+	private static final String ARG_REPLICATION_PEER = "replicationPeer";
+
+	private static final String ARG_REPLICA_PORT = "replicaPort";
+
+	private static final String ARG_REPLICA_OF = "replicaOf";
+
+	private static final String ARG_INTERPOLATION_INTERVAL = "interpolationInterval";
+
+	private static final String ARG_ROUTE_STATS_URL = "routeStatsUrl";
+
+	private static final String ARG_ALERTS_PATH = "alertsPath";
+
+	private static final String ARG_ALERTS_URL = "alertsUrl";
+
+	private static final String ARG_MIXED_FEED_PATH = "mixedFeedPath";
+
+	private static final String ARG_MIXED_FEED_URL = "mixedFeedUrl";
+
+	private static final String ARG_FLIGHT_RECORDING_DIR = "flightRecordingDir";
+
+	private static final String ARG_SLOW_REFRESH = "slowRefreshMillis";
+
+	private static final String ARG_ARCHIVE_DIR = "archiveDir";
+
+	private static final String ARG_ARCHIVE_RETENTION = "archiveRetentionHours";
+
 	public static void main(String[] args) throws Exception {
 		GtfsRealtimeTripUpdatesProducerDemoMain m = new GtfsRealtimeTripUpdatesProducerDemoMain();
 		m.run(args);
@@ -65,8 +127,23 @@ public class GtfsRealtimeTripUpdatesProducerDemoMain {
 //		_providerConfig = providerConfig;
 //	}
 
-	private GtfsRealtimeSource _tripUpdates;
- 	private GtfsRealtimeSource _vehiclePositions;
+	private GtfsRealtimeExporterCutr _tripUpdates;
+ 	private GtfsRealtimeExporterCutr _vehiclePositions;
+	private GtfsRealtimeExporterCutr _alerts;
+
+	private List<GtfsRealtimeProviderImpl> _feedProviders = new ArrayList<GtfsRealtimeProviderImpl>();
+
+	private ScheduledExecutorService _feedExecutor;
+
+	private boolean _gzipFeedFiles;
+
+	private FeedFileWriter.FsyncPolicy _fsyncPolicy = FeedFileWriter.FsyncPolicy.NEVER;
+
+	private int _historyRetentionDays = 30;
+
+	private String _archiveDir;
+
+	private int _archiveRetentionHours = 24;
 
 /*
 	@Inject
@@ -76,7 +153,7 @@ public class GtfsRealtimeTripUpdatesProducerDemoMain {
 */
   
 	@Inject
-	public void setVehiclePositionsSource(@VehiclePositions GtfsRealtimeSource vehiclePositionsSource) {
+	public void setVehiclePositionsSource(@VehiclePositions GtfsRealtimeExporterCutr vehiclePositionsSource) {
 	    _vehiclePositions = vehiclePositionsSource;
    	}
  
@@ -88,11 +165,15 @@ public class GtfsRealtimeTripUpdatesProducerDemoMain {
 */
 
         @Inject
-        public void setTripUpdatesSource(@TripUpdates GtfsRealtimeSource tripUpdatesSource) {
+        public void setTripUpdatesSource(@TripUpdates GtfsRealtimeExporterCutr tripUpdatesSource) {
             _tripUpdates = tripUpdatesSource;
         }
 
 	@Inject
+	public void setAlertsSource(@Alerts GtfsRealtimeExporterCutr alertsSource) {
+		_alerts = alertsSource;
+	}
+
 	public void setProvider(GtfsRealtimeProviderImpl provider) {
 		_provider = provider;
 	}
@@ -122,42 +203,303 @@ public class GtfsRealtimeTripUpdatesProducerDemoMain {
 		Injector injector = Guice.createInjector(modules);
 		injector.injectMembers(this);
 
-		 
+		_gzipFeedFiles = cli.hasOption(ARG_GZIP_FEED_FILES);
+		if (cli.hasOption(ARG_FSYNC))
+			_fsyncPolicy = FeedFileWriter.FsyncPolicy.valueOf(cli.getOptionValue(ARG_FSYNC).toUpperCase());
+
+		ClientRateLimiter rateLimiter = injector.getInstance(ClientRateLimiter.class);
+		if (cli.hasOption(ARG_RATE_LIMIT))
+			rateLimiter.setRate(Double.parseDouble(cli.getOptionValue(ARG_RATE_LIMIT)));
+		if (cli.hasOption(ARG_RATE_BURST))
+			rateLimiter.setBurst(Integer.parseInt(cli.getOptionValue(ARG_RATE_BURST)));
+		if (cli.hasOption(ARG_API_KEYS))
+			rateLimiter.setApiKeys(Arrays.asList(cli.getOptionValue(ARG_API_KEYS).split(",")));
+		if (cli.hasOption(ARG_TRUSTED_PROXIES))
+			rateLimiter.setTrustedProxies(Arrays.asList(cli.getOptionValue(ARG_TRUSTED_PROXIES).split(",")));
+		if (cli.hasOption(ARG_HISTORY_RETENTION))
+			_historyRetentionDays = Integer.parseInt(cli.getOptionValue(ARG_HISTORY_RETENTION));
+		_archiveDir = cli.getOptionValue(ARG_ARCHIVE_DIR);
+		if (cli.hasOption(ARG_ARCHIVE_RETENTION))
+			_archiveRetentionHours = Integer.parseInt(cli.getOptionValue(ARG_ARCHIVE_RETENTION));
+		injector.getInstance(FeedServletStats.class).register();
+		PipelineEvents.register();
+		if (cli.hasOption(ARG_SLOW_REFRESH))
+			PipelineEvents.setSlowCycleThreshold(Integer.parseInt(cli.getOptionValue(ARG_SLOW_REFRESH)));
+		if (cli.hasOption(ARG_FLIGHT_RECORDING_DIR))
+			PipelineEvents.startFlightRecording(new File(cli.getOptionValue(ARG_FLIGHT_RECORDING_DIR)), 10);
+
+		if (cli.hasOption(ARG_FEEDS)) {
+			runFeeds(injector, new File(cli.getOptionValue(ARG_FEEDS)));
+			return;
+		}
+
+		if (cli.hasOption(ARG_REPLICA_OF)) {
+			runReplica(injector, cli);
+			return;
+		}
+
+		// the provider is only instantiated here, so that it is not started
+		// when the feeds come from the --feeds file or a primary
+		setProvider(injector.getInstance(GtfsRealtimeProviderImpl.class));
+		if (cli.hasOption(ARG_UPSTREAM_URL))
+			_provider.setUpstreamUrl(cli.getOptionValue(ARG_UPSTREAM_URL));
+		if (cli.hasOption(ARG_INTERPOLATION_INTERVAL))
+			_provider.setInterpolationInterval(Integer.parseInt(cli.getOptionValue(ARG_INTERPOLATION_INTERVAL)));
+		if (cli.hasOption(ARG_HISTORY_DIR))
+			_provider.setPositionHistory(openHistory(cli.getOptionValue(ARG_HISTORY_DIR)));
 		 
 		_provider.setUrl(new URL( "http://api.syncromatics.com/feed/511/Prediction/?api_key=593e3f10de49d7fec7c8ace98f0ee6d1&format=json"));
 		//only for test, creat a static json for 8:32pm, August 5th, 2014
 	    //_provider.setUrl(new URL( "http://myweb.usf.edu/~mona2/syncromticOffLine_8_32August5.json"));
 			
+		// the provider reads the GTFS of the default path
+		BullRunnerConfigExtract gtfs = new BullRunnerConfigExtract();
+		export(injector, _tripUpdates, cli.getOptionValue(ARG_TRIP_UPDATES_URL),
+				cli.getOptionValue(ARG_TRIP_UPDATES_PATH), archiveDir(_archiveDir, "trip-updates"), gtfs);
+		export(injector, _vehiclePositions, cli.getOptionValue(ARG_VEHICLE_POSITIONS_URL),
+				cli.getOptionValue(ARG_VEHICLE_POSITIONS_PATH), archiveDir(_archiveDir, "vehicle-positions"), gtfs);
+		export(injector, _alerts, cli.getOptionValue(ARG_ALERTS_URL), cli.getOptionValue(ARG_ALERTS_PATH),
+				archiveDir(_archiveDir, "alerts"), gtfs);
+		exportMixedFeed(injector, getFeeds(), cli.getOptionValue(ARG_MIXED_FEED_URL),
+				cli.getOptionValue(ARG_MIXED_FEED_PATH), archiveDir(_archiveDir, "feed"), gtfs);
+		exportStatistics(injector, _provider, cli.getOptionValue(ARG_ROUTE_STATS_URL));
+		_provider.getRecordQuarantine().register(null);
 
-		if (cli.hasOption(ARG_TRIP_UPDATES_URL)) {
-			URL url = new URL(cli.getOptionValue(ARG_TRIP_UPDATES_URL));
-			GtfsRealtimeServlet servlet = injector.getInstance(GtfsRealtimeServlet.class);
-			servlet.setSource(_tripUpdates);
-			servlet.setUrl(url);
+		HotStandby standby = null;
+		if (cli.hasOption(ARG_LEASE_FILE)) {
+			standby = new HotStandby(_provider, getFeeds(), new File(cli.getOptionValue(ARG_LEASE_FILE)));
+			if (cli.hasOption(ARG_REPLICATION_PORT))
+				standby.setPort(Integer.parseInt(cli.getOptionValue(ARG_REPLICATION_PORT)));
+			standby.setPeer(cli.getOptionValue(ARG_REPLICATION_PEER));
 		}
-		if (cli.hasOption(ARG_TRIP_UPDATES_PATH)) {
-			File path = new File(cli.getOptionValue(ARG_TRIP_UPDATES_PATH));
 
-			GtfsRealtimeFileWriter writer = injector.getInstance(GtfsRealtimeFileWriter.class);
-			writer.setSource(_tripUpdates);
-			writer.setPath(path);
+		_lifecycleService.start();
+		if (standby != null)
+			startStandby(standby);
+		if (cli.hasOption(ARG_REPLICA_PORT)) {
+			FeedReplicaServer replicaServer = new FeedReplicaServer(getFeeds());
+			replicaServer.start(Integer.parseInt(cli.getOptionValue(ARG_REPLICA_PORT)));
 		}
+	}
 
-		if (cli.hasOption(ARG_VEHICLE_POSITIONS_URL)) {
-			URL url = new URL(cli.getOptionValue(ARG_VEHICLE_POSITIONS_URL));
+	/**
+	 * Serves the feeds of the primary given by --replicaOf without a provider
+	 * of its own.
+	 */
+	private void runReplica(Injector injector, CommandLine cli) throws IOException {
+		// a replica may have no GTFS of its own, only the feeds of the primary
+		BullRunnerConfigExtract gtfs = new BullRunnerConfigExtract();
+		export(injector, _tripUpdates, cli.getOptionValue(ARG_TRIP_UPDATES_URL),
+				cli.getOptionValue(ARG_TRIP_UPDATES_PATH), archiveDir(_archiveDir, "trip-updates"), gtfs);
+		export(injector, _vehiclePositions, cli.getOptionValue(ARG_VEHICLE_POSITIONS_URL),
+				cli.getOptionValue(ARG_VEHICLE_POSITIONS_PATH), archiveDir(_archiveDir, "vehicle-positions"), gtfs);
+		export(injector, _alerts, cli.getOptionValue(ARG_ALERTS_URL), cli.getOptionValue(ARG_ALERTS_PATH),
+				archiveDir(_archiveDir, "alerts"), gtfs);
+		exportMixedFeed(injector, getFeeds(), cli.getOptionValue(ARG_MIXED_FEED_URL),
+				cli.getOptionValue(ARG_MIXED_FEED_PATH), archiveDir(_archiveDir, "feed"), gtfs);
+		_lifecycleService.start();
+		final FeedReplica replica = new FeedReplica(getFeeds(), cli.getOptionValue(ARG_REPLICA_OF));
+		replica.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				replica.stop();
+			}
+		});
+	}
 
-			GtfsRealtimeServlet servlet = injector.getInstance(GtfsRealtimeServlet.class);
-			servlet.setSource(_vehiclePositions);
-			servlet.setUrl(url);
-		}
-		if (cli.hasOption(ARG_VEHICLE_POSITIONS_PATH)) {
-			File path = new File(cli.getOptionValue(ARG_VEHICLE_POSITIONS_PATH));
-		 	GtfsRealtimeFileWriter writer = injector.getInstance(GtfsRealtimeFileWriter.class);
-			writer.setSource(_vehiclePositions);
-			writer.setPath(path);
+	/**
+	 * @return the exporters of the single feed by the names they are
+	 *         replicated as
+	 */
+	private Map<String, GtfsRealtimeExporterCutr> getFeeds() {
+		return getFeeds(_tripUpdates, _vehiclePositions, _alerts);
+	}
+
+	private static Map<String, GtfsRealtimeExporterCutr> getFeeds(GtfsRealtimeExporterCutr tripUpdates,
+			GtfsRealtimeExporterCutr vehiclePositions, GtfsRealtimeExporterCutr alerts) {
+		Map<String, GtfsRealtimeExporterCutr> feeds = new LinkedHashMap<String, GtfsRealtimeExporterCutr>();
+		feeds.put("trip-updates", tripUpdates);
+		feeds.put("vehicle-positions", vehiclePositions);
+		feeds.put("alerts", alerts);
+		return feeds;
+	}
+
+	/**
+	 * Takes the lease or follows the peer; the lease is released when the
+	 * process exits.
+	 */
+	private void startStandby(final HotStandby standby) throws IOException {
+		standby.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				standby.stop();
+			}
+		});
+	}
+
+	/**
+	 * Hosts every feed of the --feeds file. Each feed gets its own GTFS index,
+	 * provider and pair of exporters, while the refresh tasks share one
+	 * scheduler, the servlets share the web server of the exporter module and
+	 * the downloads share one {@link UpstreamClient}.
+	 */
+	private void runFeeds(Injector injector, File feedsFile) throws IOException, JSONException {
+		List<FeedConfiguration> feeds = FeedConfiguration.load(feedsFile);
+		_feedExecutor = Executors.newScheduledThreadPool(Math.max(1,
+				Math.min(feeds.size(), Runtime.getRuntime().availableProcessors())));
+		UpstreamClient upstreamClient = new UpstreamClient();
+
+		for (FeedConfiguration feed : feeds) {
+			BullRunnerConfigExtract providerConfig = new BullRunnerConfigExtract();
+			providerConfig.setGtfsPath(feed.gtfsPath);
+			providerConfig.setCredentials(feed.username, feed.password);
+			providerConfig.setUpstreamClient(upstreamClient);
+
+			GtfsRealtimeExporterCutr tripUpdates = new GtfsRealtimeExporterCutr();
+			GtfsRealtimeExporterCutr vehiclePositions = new GtfsRealtimeExporterCutr();
+			GtfsRealtimeExporterCutr alerts = new GtfsRealtimeExporterCutr();
+
+			GtfsRealtimeProviderImpl provider = new GtfsRealtimeProviderImpl();
+			provider.setProvider(providerConfig);
+			provider.setTripUpdatesSink(tripUpdates);
+			provider.setVehiclePositionsSink(vehiclePositions);
+			provider.setAlertsSink(alerts);
+			provider.setUpstreamUrl(feed.upstreamUrl);
+			provider.setRefreshInterval(feed.refreshInterval);
+			provider.setInterpolationInterval(feed.interpolationInterval);
+			provider.setScheduledExecutorService(_feedExecutor);
+			if (feed.historyPath != null)
+				provider.setPositionHistory(openHistory(feed.historyPath));
+			_feedProviders.add(provider);
+
+			export(injector, tripUpdates, feed.tripUpdatesUrl, feed.tripUpdatesPath,
+					archiveDir(feed.archivePath, "trip-updates"), providerConfig);
+			export(injector, vehiclePositions, feed.vehiclePositionsUrl, feed.vehiclePositionsPath,
+					archiveDir(feed.archivePath, "vehicle-positions"), providerConfig);
+			export(injector, alerts, feed.alertsUrl, feed.alertsPath, archiveDir(feed.archivePath, "alerts"),
+					providerConfig);
+			exportMixedFeed(injector, getFeeds(tripUpdates, vehiclePositions, alerts), feed.mixedFeedUrl,
+					feed.mixedFeedPath, archiveDir(feed.archivePath, "feed"), providerConfig);
+			exportStatistics(injector, provider, feed.routeStatsUrl);
+			provider.getRecordQuarantine().register(feed.id);
 		}
 
 		_lifecycleService.start();
+		for (GtfsRealtimeProviderImpl provider : _feedProviders)
+			provider.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				for (GtfsRealtimeProviderImpl provider : _feedProviders)
+					provider.stop();
+				_feedExecutor.shutdownNow();
+			}
+		});
+	}
+
+	/**
+	 * Serves the exporter at the URL, writes it to the path and archives it in
+	 * the directory, each if given. The archive is served with ?at= times in
+	 * the agency time zone of the GTFS.
+	 */
+	private void export(Injector injector, GtfsRealtimeExporterCutr source, String url, String path,
+			File archiveDir, BullRunnerConfigExtract gtfs) throws IOException {
+		FeedArchive archive = archiveDir == null ? null : openArchive(source, archiveDir);
+		if (url != null) {
+			GtfsRealtimeServletCutr servlet = injector.getInstance(GtfsRealtimeServletCutr.class);
+			servlet.setSource(source);
+			servlet.setArchive(archive);
+			if (archive != null)
+				servlet.setTimeZone(agencyTimeZone(gtfs));
+			servlet.setUrl(new URL(url));
+		}
+		if (path != null) {
+			FeedFileWriter writer = new FeedFileWriter(source, new File(path), _gzipFeedFiles);
+			writer.setFsyncPolicy(_fsyncPolicy);
+			writer.start();
+		}
+	}
+
+	/**
+	 * Mixes the feeds into one, served at the URL and written to the path, if
+	 * either is given.
+	 */
+	private void exportMixedFeed(Injector injector, Map<String, GtfsRealtimeExporterCutr> feeds, String url,
+			String path, File archiveDir, BullRunnerConfigExtract gtfs) throws IOException {
+		if (url == null && path == null)
+			return;
+		GtfsRealtimeExporterCutr mixedFeed = new GtfsRealtimeExporterCutr();
+		export(injector, mixedFeed, url, path, archiveDir, gtfs);
+		new MixedFeedPublisher(feeds, mixedFeed).start();
+	}
+
+	/**
+	 * @return the agency_timezone of the GTFS, or the time zone of the server
+	 *         if the GTFS can't be read, as on a replica without one
+	 */
+	private static DateTimeZone agencyTimeZone(BullRunnerConfigExtract gtfs) {
+		try {
+			return gtfs.readAgencyTimeZone();
+		} catch (IOException ex) {
+			_log.warn("can't read the agency time zone, ?at= times are in " + DateTimeZone.getDefault(), ex);
+			return DateTimeZone.getDefault();
+		}
+	}
+
+	/**
+	 * Serves the route statistics of the provider at the URL, if given.
+	 */
+	private void exportStatistics(Injector injector, GtfsRealtimeProviderImpl provider, String url)
+			throws MalformedURLException {
+		if (url == null)
+			return;
+		RouteStatisticsServlet servlet = injector.getInstance(RouteStatisticsServlet.class);
+		servlet.setStatistics(provider.getRouteStatistics());
+		servlet.setUrl(new URL(url));
+	}
+
+	/**
+	 * @return the directory the feed is archived in under the archive
+	 *         directory, or null if there is none
+	 */
+	private static File archiveDir(String path, String feed) {
+		return path == null ? null : new File(path, feed);
+	}
+
+	/**
+	 * Opens the archive of the exporter in the directory and archives every
+	 * snapshot it publishes from now on.
+	 */
+	private FeedArchive openArchive(GtfsRealtimeExporterCutr source, File directory) throws IOException {
+		final FeedArchive archive = new FeedArchive(source, directory);
+		archive.setRetentionSeconds(_archiveRetentionHours * 3600L);
+		archive.open();
+		archive.start();
+		return archive;
+	}
+
+	/**
+	 * Opens the position history in the directory; the rows still in memory
+	 * are written when the process exits.
+	 */
+	private PositionHistory openHistory(String path) throws IOException {
+		final PositionHistory history = new PositionHistory(new File(path));
+		history.setRetentionSeconds(_historyRetentionDays * 86400L);
+		history.open();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					history.close();
+				} catch (IOException ex) {
+					_log.warn("Error writing the position history", ex);
+				}
+			}
+		});
+		return history;
 	}
 
 	private void printUsage() {
@@ -171,6 +513,31 @@ public class GtfsRealtimeTripUpdatesProducerDemoMain {
 				"vehicle positions path");
 		options.addOption(ARG_VEHICLE_POSITIONS_URL, true,
 				"vehicle positions url");
+		options.addOption(ARG_FEEDS, true, "JSON file listing the feeds to host");
+		options.addOption(ARG_GZIP_FEED_FILES, false, "also write a gzip copy of the feed files");
+		options.addOption(ARG_FSYNC, true, "when feed files are forced to disk: never, file or directory");
+		options.addOption(ARG_UPSTREAM_URL, true, "base URL of the Traccar server");
+		options.addOption(ARG_RATE_LIMIT, true, "requests per second each client may make, 0 for no limit");
+		options.addOption(ARG_RATE_BURST, true, "requests a client may make at once");
+		options.addOption(ARG_API_KEYS, true, "comma separated API keys whose clients are limited apart");
+		options.addOption(ARG_TRUSTED_PROXIES, true, "comma separated addresses of proxies whose X-Forwarded-For is believed");
+		options.addOption(ARG_HISTORY_DIR, true, "directory of the position history");
+		options.addOption(ARG_HISTORY_RETENTION, true, "days the position history is kept");
+		options.addOption(ARG_LEASE_FILE, true, "lock file deciding which node of a pair polls upstream");
+		options.addOption(ARG_REPLICATION_PORT, true, "port the primary streams its feeds to the standby on");
+		options.addOption(ARG_REPLICATION_PEER, true, "host:port of the other node's replication port");
+		options.addOption(ARG_REPLICA_PORT, true, "port read replicas follow the feeds on");
+		options.addOption(ARG_REPLICA_OF, true, "host:port of the replica port of the primary to mirror");
+		options.addOption(ARG_INTERPOLATION_INTERVAL, true, "seconds between interpolated vehicle positions");
+		options.addOption(ARG_ALERTS_PATH, true, "alerts path");
+		options.addOption(ARG_ALERTS_URL, true, "alerts url");
+		options.addOption(ARG_MIXED_FEED_PATH, true, "path of the feed mixing trip updates, vehicle positions and alerts");
+		options.addOption(ARG_MIXED_FEED_URL, true, "url of the feed mixing trip updates, vehicle positions and alerts");
+		options.addOption(ARG_ROUTE_STATS_URL, true, "URL of the per-route occupancy and headway statistics");
+		options.addOption(ARG_FLIGHT_RECORDING_DIR, true, "directory the flight recording is dumped to after a slow refresh");
+		options.addOption(ARG_SLOW_REFRESH, true, "ms beyond which a refresh is slow");
+		options.addOption(ARG_ARCHIVE_DIR, true, "directory every published snapshot of the feeds is archived in");
+		options.addOption(ARG_ARCHIVE_RETENTION, true, "hours the feed archive is kept");
 
 	}
 }
@@ -19,9 +19,14 @@ import java.util.Set;
 
 import org.onebusaway.guice.jsr250.JSR250Module;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporterModule;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.Alerts;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.VehiclePositions;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Module;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
 
 public class GtfsRealtimeTripUpdatesProducerDemoModule extends AbstractModule {
 
@@ -36,6 +41,32 @@ public class GtfsRealtimeTripUpdatesProducerDemoModule extends AbstractModule {
     bind(GtfsRealtimeProviderImpl.class);    
   }
 
+  /**
+   * The provider publishes into its own exporters rather than the ones bound by
+   * {@link GtfsRealtimeExporterModule}, so the feed generator can build one
+   * pair per hosted feed.
+   */
+  @Provides
+  @Singleton
+  @TripUpdates
+  GtfsRealtimeExporterCutr provideTripUpdatesExporter() {
+    return new GtfsRealtimeExporterCutr();
+  }
+
+  @Provides
+  @Singleton
+  @VehiclePositions
+  GtfsRealtimeExporterCutr provideVehiclePositionsExporter() {
+    return new GtfsRealtimeExporterCutr();
+  }
+
+  @Provides
+  @Singleton
+  @Alerts
+  GtfsRealtimeExporterCutr provideAlertsExporter() {
+    return new GtfsRealtimeExporterCutr();
+  }
+
   /**
    * Implement hashCode() and equals() such that two instances of the module
    * will be equal.
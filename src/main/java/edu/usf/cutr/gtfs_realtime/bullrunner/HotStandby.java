@@ -0,0 +1,257 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ExtensionRegistry;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeOneBusAway;
+
+/**
+ * Runs this node as either the primary or the standby of a pair. Leadership
+ * is an exclusive lock on a lease file both nodes can reach, on the same host
+ * or a shared file system. The node holding it polls upstream and streams what
+ * it publishes through a {@link FeedReplicationServer}.
+ *
+ * The other node follows the primary at the peer address: it installs the
+ * replicated snapshots in its own exporters, whose servlets serve them as they
+ * are, and never polls upstream.
+ * When no heartbeat has arrived for the timeout, it tries the lease, and only
+ * once it gets it, which happens when the primary process is gone and the
+ * operating system released its lock, does it start polling and streaming
+ * itself. A primary that is alive but unreachable keeps the lock, so two nodes
+ * never poll upstream at the same time.
+ *
+ * Only the published snapshots are replicated, not the per-vehicle state of
+ * the provider, so a node that takes over starts cold: it matches every
+ * vehicle to its trip again from the first fixes it polls, and observes the
+ * arrivals and departures of the current runs only from then on.
+ */
+public class HotStandby {
+
+	private static final Logger _log = LoggerFactory.getLogger(HotStandby.class);
+
+	private final GtfsRealtimeProviderImpl _provider;
+
+	private final Map<String, GtfsRealtimeExporterCutr> _feeds;
+
+	private final File _leaseFile;
+
+	private int _port;
+
+	private InetSocketAddress _peer;
+
+	private int _timeoutMillis = 5000;
+
+	private final ExtensionRegistry _registry = ExtensionRegistry.newInstance();
+
+	private FileChannel _leaseChannel;
+
+	private FileLock _lease;
+
+	private FeedReplicationServer _server;
+
+	private Thread _follower;
+
+	private volatile Socket _socket;
+
+	private volatile boolean _stopped;
+
+	/**
+	 * @param provider
+	 *            set to stand by here, so it does not poll until this node is
+	 *            the primary; it must not have been started yet
+	 * @param feeds
+	 *            the exporters to replicate by name, the same on both nodes
+	 */
+	public HotStandby(GtfsRealtimeProviderImpl provider, Map<String, GtfsRealtimeExporterCutr> feeds, File leaseFile) {
+		_provider = provider;
+		_feeds = feeds;
+		_leaseFile = leaseFile;
+		provider.setStandby(true);
+		GtfsRealtimeOneBusAway.registerAllExtensions(_registry);
+	}
+
+	/**
+	 * @param port
+	 *            where this node streams to its standby once it is the
+	 *            primary, 0 for no streaming
+	 */
+	public void setPort(int port) {
+		_port = port;
+	}
+
+	/**
+	 * @param peer
+	 *            host:port of the other node's replication port, null to only
+	 *            wait for the lease
+	 */
+	public void setPeer(String peer) {
+		if (peer == null) {
+			_peer = null;
+			return;
+		}
+		int colon = peer.lastIndexOf(':');
+		_peer = new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+	}
+
+	/**
+	 * @param millis
+	 *            how long the primary may stay silent before the lease is tried
+	 */
+	public void setTimeout(int millis) {
+		_timeoutMillis = millis;
+	}
+
+	/**
+	 * Becomes the primary right away if the lease is free, and follows the
+	 * peer otherwise.
+	 */
+	public void start() throws IOException {
+		if (tryLease()) {
+			becomePrimary();
+			return;
+		}
+		_log.info("lease " + _leaseFile + " is held, standing by for " + _peer);
+		_follower = new Thread("replication-follower") {
+			@Override
+			public void run() {
+				follow();
+			}
+		};
+		_follower.setDaemon(true);
+		_follower.start();
+	}
+
+	public boolean isPrimary() {
+		return _lease != null;
+	}
+
+	public void stop() {
+		_stopped = true;
+		closeSocket();
+		if (_server != null)
+			_server.stop();
+		try {
+			if (_lease != null)
+				_lease.release();
+			if (_leaseChannel != null)
+				_leaseChannel.close();
+		} catch (IOException ex) {
+			_log.warn("Error releasing the lease", ex);
+		}
+	}
+
+	private boolean tryLease() {
+		try {
+			if (_leaseChannel == null)
+				_leaseChannel = FileChannel.open(_leaseFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			_lease = _leaseChannel.tryLock();
+		} catch (OverlappingFileLockException ex) {
+			_lease = null;
+		} catch (IOException ex) {
+			_log.warn("Error trying the lease " + _leaseFile, ex);
+			_lease = null;
+		}
+		return _lease != null;
+	}
+
+	/**
+	 * Starts streaming before polling, so the standby that connects next sees
+	 * every snapshot published from then on.
+	 */
+	private void becomePrimary() throws IOException {
+		_log.info("holding the lease " + _leaseFile + ", polling upstream");
+		if (_port > 0) {
+			_server = new FeedReplicationServer(_feeds);
+			_server.start(_port);
+		}
+		_provider.promote();
+	}
+
+	private void follow() {
+		while (!_stopped) {
+			if (_peer != null) {
+				try {
+					replicate();
+				} catch (IOException ex) {
+					if (!_stopped)
+						_log.info("lost the primary at " + _peer + ": " + ex.getMessage());
+				} finally {
+					closeSocket();
+				}
+			}
+			if (_stopped)
+				return;
+			if (tryLease()) {
+				try {
+					becomePrimary();
+				} catch (IOException ex) {
+					_log.error("Error taking over as the primary", ex);
+				}
+				return;
+			}
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException ex) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Applies the frames of the primary until the connection fails or no frame
+	 * arrives for the timeout; heartbeats keep a quiet connection alive.
+	 */
+	private void replicate() throws IOException {
+		Socket socket = new Socket();
+		_socket = socket;
+		socket.connect(_peer, _timeoutMillis);
+		socket.setSoTimeout(_timeoutMillis);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		if (in.readInt() != FeedReplicationServer.MAGIC)
+			throw new IOException("not a replication port");
+		_log.info("following the primary at " + _peer);
+		while (!_stopped) {
+			byte type = in.readByte();
+			switch (type) {
+			case FeedReplicationServer.HEARTBEAT:
+				in.readLong();
+				break;
+			case FeedReplicationServer.SNAPSHOT:
+				String name = in.readUTF();
+				byte[] binary = new byte[in.readInt()];
+				in.readFully(binary);
+				GtfsRealtimeExporterCutr exporter = _feeds.get(name);
+				if (exporter != null)
+					exporter.handleReplicatedFeed(FeedMessage.parseFrom(binary, _registry), binary);
+				break;
+			default:
+				throw new IOException("unknown frame " + type);
+			}
+		}
+	}
+
+	private void closeSocket() {
+		Socket socket = _socket;
+		if (socket == null)
+			return;
+		try {
+			socket.close();
+		} catch (IOException ex) {
+			_log.debug("Error closing the replication connection", ex);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * Publishes one feed that mixes the latest snapshots of several exporters,
+ * such as the trip updates, the vehicle positions and the alerts, so a client
+ * gets a consistent view of all of them in a single request.
+ *
+ * Each time one of the sources publishes, the mixed feed is rebuilt from the
+ * current snapshot of every source, with the entity ids prefixed by the name
+ * of their source so they stay unique, and published to its own exporter,
+ * whose snapshot is serialized right away. The rebuild runs on a thread of
+ * its own: the sources notify their listeners while holding their lock, so
+ * reading the other sources from there could deadlock, and sources publishing
+ * back to back are merged by a single rebuild.
+ */
+public class MixedFeedPublisher implements GtfsRealtimeIncrementalListener {
+
+	private static final Logger _log = LoggerFactory.getLogger(MixedFeedPublisher.class);
+
+	private final Map<String, GtfsRealtimeExporterCutr> _sources;
+
+	private final GtfsRealtimeExporterCutr _mixedFeed;
+
+	private final AtomicBoolean _scheduled = new AtomicBoolean();
+
+	private ExecutorService _executor;
+
+	private final Runnable _rebuild = new Runnable() {
+		@Override
+		public void run() {
+			_scheduled.set(false);
+			try {
+				rebuild();
+			} catch (RuntimeException ex) {
+				_log.warn("Error publishing the mixed feed", ex);
+			}
+		}
+	};
+
+	/**
+	 * @param sources
+	 *            the exporters to mix, by the names their entity ids are
+	 *            prefixed with
+	 */
+	public MixedFeedPublisher(Map<String, GtfsRealtimeExporterCutr> sources, GtfsRealtimeExporterCutr mixedFeed) {
+		_sources = sources;
+		_mixedFeed = mixedFeed;
+	}
+
+	public void start() {
+		_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "mixed-feed");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// each source sends its current feed on registering, which schedules
+		// the first rebuild
+		for (GtfsRealtimeExporterCutr source : _sources.values())
+			source.addIncrementalListener(this);
+	}
+
+	public void stop() {
+		for (GtfsRealtimeExporterCutr source : _sources.values())
+			source.removeIncrementalListener(this);
+		if (_executor != null)
+			_executor.shutdownNow();
+	}
+
+	/**
+	 * Schedules a rebuild, unless one is already waiting to run.
+	 */
+	@Override
+	public void handleFeed(FeedMessage feed) {
+		if (_scheduled.compareAndSet(false, true))
+			_executor.execute(_rebuild);
+	}
+
+	private void rebuild() {
+		GtfsRealtimeFullUpdate update = new GtfsRealtimeFullUpdate();
+		for (Map.Entry<String, GtfsRealtimeExporterCutr> source : _sources.entrySet()) {
+			String prefix = source.getKey() + ":";
+			for (FeedEntity entity : source.getValue().getSnapshot().getFeed().getEntityList())
+				update.addEntity(entity.toBuilder().setId(prefix + entity.getId()).build());
+		}
+		_mixedFeed.handleFullUpdate(update);
+		// serialize the snapshot now rather than on the first request
+		FeedSnapshot snapshot = _mixedFeed.getSnapshot();
+		snapshot.getBinary();
+		snapshot.getEncoded("pb", true);
+	}
+}
@@ -0,0 +1,350 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Times the stages of the refresh pipeline, from the upstream download to the
+ * feed served over HTTP, so a slow refresh can be pinned on one of them.
+ *
+ * Each stage is recorded as an event with its duration, the number of
+ * entities it handled and the bytes it read or wrote. The events add up to
+ * per stage totals, and the events of a refresh, which runs on one thread
+ * between {@link #beginCycle()} and {@link #endCycle(String, long)}, also add up to a
+ * breakdown of that refresh. A refresh slower than the threshold logs its
+ * breakdown and, if a flight recording was started, dumps the recording so
+ * the JVM's own events of the last minutes can be looked at next to it. The
+ * totals are published as the MXBean
+ * edu.usf.cutr.gtfs_realtime.bullrunner:type=PipelineEvents.
+ *
+ * Recording an event costs two calls to System.nanoTime() and a few atomic
+ * additions, so the stages are always timed.
+ */
+public class PipelineEvents implements PipelineEventsMXBean {
+
+	private static final Logger _log = LoggerFactory.getLogger(PipelineEvents.class);
+
+	public enum Stage {
+		/** a whole refresh */
+		REFRESH("refresh"),
+		/** waiting for a free upstream connection */
+		UPSTREAM_WAIT("upstream-wait"),
+		/** downloading from upstream, in chars */
+		UPSTREAM("upstream"),
+		/** parsing the upstream JSON */
+		JSON("json"),
+		/** reading the positions into the fleet snapshot, with the timestamps */
+		DECODE("decode"),
+		/** matching the vehicles to their trips and predicting the arrivals */
+		PREDICT("predict"),
+		/** building the vehicle positions */
+		POSITIONS("positions"),
+		/** waiting for the lock of an exporter */
+		EXPORTER_LOCK("exporter-lock"),
+		/** publishing a full update to an exporter */
+		EXPORTER_UPDATE("exporter-update"),
+		/** building the feed message of an exporter, in serialized bytes */
+		EXPORTER_FEED("exporter-feed"),
+		/** serving a feed request, in bytes written */
+		SERVE("serve");
+
+		private final String _name;
+
+		private Stage(String name) {
+			_name = name;
+		}
+
+		@Override
+		public String toString() {
+			return _name;
+		}
+	}
+
+	private static final Stage[] STAGES = Stage.values();
+
+	private static final String RECORDING_NAME = "bullrunner";
+
+	private static final String DIAGNOSTIC_COMMAND = "com.sun.management:type=DiagnosticCommand";
+
+	/** a recording is dumped at most this often, in ms */
+	private static final long MIN_DUMP_INTERVAL = 10 * 60 * 1000;
+
+	private static final PipelineEvents _instance = new PipelineEvents();
+
+	private static final ThreadLocal<long[]> _cycle = new ThreadLocal<long[]>();
+
+	private static final AtomicLongArray _counts = new AtomicLongArray(STAGES.length);
+
+	private static final AtomicLongArray _nanos = new AtomicLongArray(STAGES.length);
+
+	private static final AtomicLongArray _maxNanos = new AtomicLongArray(STAGES.length);
+
+	private static final AtomicLongArray _entities = new AtomicLongArray(STAGES.length);
+
+	private static final AtomicLongArray _bytes = new AtomicLongArray(STAGES.length);
+
+	private static final AtomicLong _slowCycles = new AtomicLong();
+
+	private static volatile long _slowCycleNanos = 5000 * 1000000L;
+
+	private static volatile String _lastSlowCycle = "";
+
+	private static volatile File _recordingDirectory;
+
+	private static long _lastDump;
+
+	private PipelineEvents() {
+	}
+
+	/**
+	 * Registers the totals with the platform MBean server.
+	 */
+	public static void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("edu.usf.cutr.gtfs_realtime.bullrunner:type=PipelineEvents");
+			if (!server.isRegistered(name))
+				server.registerMBean(_instance, name);
+		} catch (JMException ex) {
+			_log.warn("can't register the pipeline counters", ex);
+		}
+	}
+
+	/**
+	 * @param millis
+	 *            duration of a refresh beyond which it is logged and the
+	 *            flight recording is dumped
+	 */
+	public static void setSlowCycleThreshold(int millis) {
+		_slowCycleNanos = millis * 1000000L;
+	}
+
+	/**
+	 * Starts a flight recording that keeps the last minutes of JVM events, to
+	 * be dumped into the directory when a refresh is slow. The recording is
+	 * started with the JFR.start diagnostic command, which needs a JVM that
+	 * has the flight recorder; without one only the breakdown is logged.
+	 *
+	 * @param maxAgeMinutes
+	 *            how much of the past the recording keeps
+	 * @return true if the recording was started
+	 */
+	public static synchronized boolean startFlightRecording(File directory, int maxAgeMinutes) {
+		directory.mkdirs();
+		try {
+			// Oracle JDK 7 and 8 only record with the commercial features on
+			diagnosticCommand("vmUnlockCommercialFeatures");
+		} catch (JMException ex) {
+			_log.debug("can't unlock the commercial features", ex);
+		}
+		try {
+			_log.info(diagnosticCommand("jfrStart", "name=" + RECORDING_NAME, "maxage=" + maxAgeMinutes + "m",
+					"settings=default").trim());
+			_recordingDirectory = directory;
+			return true;
+		} catch (JMException ex) {
+			_log.warn("can't start the flight recording", ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Opens the breakdown of a refresh on this thread.
+	 *
+	 * @return the start of the refresh, to pass to
+	 *         {@link #endCycle(String, long)}
+	 */
+	public static long beginCycle() {
+		long[] cycle = _cycle.get();
+		if (cycle == null) {
+			// duration, entities and bytes of each stage, then 1 while open
+			cycle = new long[STAGES.length * 3 + 1];
+			_cycle.set(cycle);
+		}
+		for (int i = 0; i < cycle.length; i++)
+			cycle[i] = 0;
+		cycle[STAGES.length * 3] = 1;
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records a stage that started at the time, from System.nanoTime(), and
+	 * ends now.
+	 *
+	 * @param entities
+	 *            handled by the stage, 0 if it doesn't apply
+	 * @param bytes
+	 *            read or written by the stage, 0 if it doesn't apply
+	 * @return the end of the stage, to time the next stage from
+	 */
+	public static long record(Stage stage, long startNanos, int entities, long bytes) {
+		long end = System.nanoTime();
+		long nanos = end - startNanos;
+		int i = stage.ordinal();
+		_counts.incrementAndGet(i);
+		_nanos.addAndGet(i, nanos);
+		_entities.addAndGet(i, entities);
+		_bytes.addAndGet(i, bytes);
+		long max;
+		while (nanos > (max = _maxNanos.get(i)) && !_maxNanos.compareAndSet(i, max, nanos))
+			;
+		long[] cycle = _cycle.get();
+		if (cycle != null && cycle[STAGES.length * 3] == 1) {
+			cycle[i * 3] += nanos;
+			cycle[i * 3 + 1] += entities;
+			cycle[i * 3 + 2] += bytes;
+		}
+		return end;
+	}
+
+	/**
+	 * Closes the breakdown of the refresh on this thread, which started at the
+	 * time, and reports it if the refresh was slow.
+	 *
+	 * @param feed
+	 *            what was refreshed, for the log
+	 */
+	public static void endCycle(String feed, long startNanos) {
+		record(Stage.REFRESH, startNanos, 0, 0);
+		long[] cycle = _cycle.get();
+		if (cycle == null || cycle[STAGES.length * 3] == 0)
+			return;
+		cycle[STAGES.length * 3] = 0;
+		if (cycle[Stage.REFRESH.ordinal() * 3] < _slowCycleNanos)
+			return;
+		_slowCycles.incrementAndGet();
+		StringBuilder breakdown = new StringBuilder();
+		breakdown.append("refresh of ").append(feed).append(" took ")
+				.append(cycle[Stage.REFRESH.ordinal() * 3] / 1000000).append(" ms:");
+		for (Stage stage : STAGES) {
+			int i = stage.ordinal();
+			if (stage == Stage.REFRESH || cycle[i * 3] == 0)
+				continue;
+			breakdown.append(' ').append(stage).append(' ').append(cycle[i * 3] / 1000000).append(" ms");
+			if (cycle[i * 3 + 1] > 0)
+				breakdown.append(" / ").append(cycle[i * 3 + 1]).append(" entities");
+			if (cycle[i * 3 + 2] > 0)
+				breakdown.append(" / ").append(cycle[i * 3 + 2]).append(" bytes");
+			breakdown.append(',');
+		}
+		if (breakdown.charAt(breakdown.length() - 1) == ',')
+			breakdown.setLength(breakdown.length() - 1);
+		_lastSlowCycle = breakdown.toString();
+		_log.warn(_lastSlowCycle);
+		dumpIfDue();
+	}
+
+	/**
+	 * Dumps the recording on a thread of its own, so the next refresh isn't
+	 * delayed by it, unless a dump was made recently.
+	 */
+	private static synchronized void dumpIfDue() {
+		long now = System.currentTimeMillis();
+		if (_recordingDirectory == null || now - _lastDump < MIN_DUMP_INTERVAL)
+			return;
+		_lastDump = now;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				_instance.dumpRecording();
+			}
+		}, "flight-recording-dump");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static String diagnosticCommand(String operation, String... arguments) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		Object result;
+		if (arguments.length == 0)
+			result = server.invoke(new ObjectName(DIAGNOSTIC_COMMAND), operation, new Object[0], new String[0]);
+		else
+			result = server.invoke(new ObjectName(DIAGNOSTIC_COMMAND), operation, new Object[] {arguments},
+					new String[] {String[].class.getName()});
+		return result == null ? "" : result.toString();
+	}
+
+	private static Map<String, Long> byStage(AtomicLongArray values) {
+		Map<String, Long> byStage = new TreeMap<String, Long>();
+		for (Stage stage : STAGES)
+			byStage.put(stage.toString(), values.get(stage.ordinal()));
+		return byStage;
+	}
+
+	@Override
+	public Map<String, Long> getStageCounts() {
+		return byStage(_counts);
+	}
+
+	@Override
+	public Map<String, Double> getStageAverageMillis() {
+		Map<String, Double> averages = new TreeMap<String, Double>();
+		for (Stage stage : STAGES) {
+			long count = _counts.get(stage.ordinal());
+			averages.put(stage.toString(), count == 0 ? 0 : _nanos.get(stage.ordinal()) / 1e6 / count);
+		}
+		return averages;
+	}
+
+	@Override
+	public Map<String, Double> getStageMaxMillis() {
+		Map<String, Double> max = new TreeMap<String, Double>();
+		for (Stage stage : STAGES)
+			max.put(stage.toString(), _maxNanos.get(stage.ordinal()) / 1e6);
+		return max;
+	}
+
+	@Override
+	public Map<String, Long> getStageEntities() {
+		return byStage(_entities);
+	}
+
+	@Override
+	public Map<String, Long> getStageBytes() {
+		return byStage(_bytes);
+	}
+
+	@Override
+	public long getSlowCycles() {
+		return _slowCycles.get();
+	}
+
+	@Override
+	public String getLastSlowCycle() {
+		return _lastSlowCycle;
+	}
+
+	@Override
+	public boolean isRecording() {
+		return _recordingDirectory != null;
+	}
+
+	@Override
+	public String dumpRecording() {
+		File directory = _recordingDirectory;
+		if (directory == null)
+			return "no flight recording was started";
+		File file = new File(directory, "refresh-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".jfr");
+		try {
+			diagnosticCommand("jfrDump", "name=" + RECORDING_NAME, "filename=" + file.getAbsolutePath());
+			_log.info("flight recording dumped to " + file);
+			return file.getAbsolutePath();
+		} catch (JMException ex) {
+			_log.warn("can't dump the flight recording", ex);
+			return "can't dump the flight recording: " + ex.getMessage();
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Map;
+
+/**
+ * Totals of the stages of the refresh pipeline, published over JMX by
+ * {@link PipelineEvents}.
+ */
+public interface PipelineEventsMXBean {
+
+	/** events recorded by stage */
+	Map<String, Long> getStageCounts();
+
+	/** average duration of the events by stage */
+	Map<String, Double> getStageAverageMillis();
+
+	/** longest event by stage */
+	Map<String, Double> getStageMaxMillis();
+
+	/** entities handled by stage */
+	Map<String, Long> getStageEntities();
+
+	/** bytes read or written by stage */
+	Map<String, Long> getStageBytes();
+
+	/** refreshes slower than the threshold */
+	long getSlowCycles();
+
+	/** the breakdown of the last slow refresh */
+	String getLastSlowCycle();
+
+	/** true if a flight recording was started */
+	boolean isRecording();
+
+	/** dumps the flight recording, returning the file it was dumped to */
+	String dumpRecording();
+}
@@ -0,0 +1,258 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A set of polylines (GTFS shapes, or the stop sequence of a trip when
+ * shapes.txt has no data) packed into flat primitive arrays. Points of polyline
+ * i are stored from firstPoint[i] to firstPoint[i + 1] - 1, along with the
+ * distance travelled from the start of the polyline up to each point.
+ *
+ * Queries write their result into a {@link Projection} owned by the caller, so
+ * that matching a fix does not allocate anything.
+ */
+public class PolylineIndex {
+
+	static final double EARTH_RADIUS_METERS = 6371008.8;
+
+	static final double METERS_PER_DEGREE = Math.toRadians(EARTH_RADIUS_METERS);
+
+	private final HashMap<String, Integer> _indexById = new HashMap<String, Integer>();
+
+	private String[] _ids = new String[16];
+
+	private int[] _firstPoint = new int[17];
+
+	private int _polylineCount = 0;
+
+	private double[] _lats = new double[256];
+
+	private double[] _lons = new double[256];
+
+	private double[] _distances = new double[256];
+
+	private int _pointCount = 0;
+
+	/**
+	 * Appends a polyline; points with a NaN coordinate are skipped.
+	 *
+	 * @return the index of the new polyline
+	 */
+	public int add(String id, double[] lats, double[] lons, int count) {
+		if (_polylineCount == _ids.length) {
+			_ids = Arrays.copyOf(_ids, _ids.length * 2);
+			_firstPoint = Arrays.copyOf(_firstPoint, _ids.length + 1);
+		}
+		if (_pointCount + count > _lats.length) {
+			int capacity = Math.max(_lats.length * 2, _pointCount + count);
+			_lats = Arrays.copyOf(_lats, capacity);
+			_lons = Arrays.copyOf(_lons, capacity);
+			_distances = Arrays.copyOf(_distances, capacity);
+		}
+		int first = _pointCount;
+		for (int i = 0; i < count; i++) {
+			if (Double.isNaN(lats[i]) || Double.isNaN(lons[i]))
+				continue;
+			_lats[_pointCount] = lats[i];
+			_lons[_pointCount] = lons[i];
+			_distances[_pointCount] = _pointCount == first ? 0
+					: _distances[_pointCount - 1]
+							+ distance(_lats[_pointCount - 1], _lons[_pointCount - 1], lats[i], lons[i]);
+			_pointCount++;
+		}
+		int index = _polylineCount++;
+		_ids[index] = id;
+		_firstPoint[index] = first;
+		_firstPoint[index + 1] = _pointCount;
+		_indexById.put(id, index);
+		return index;
+	}
+
+	/**
+	 * @return the index of the polyline with the given id, or -1
+	 */
+	public int indexOf(String id) {
+		Integer index = _indexById.get(id);
+		return index == null ? -1 : index;
+	}
+
+	public String getId(int polyline) {
+		return _ids[polyline];
+	}
+
+	public int size() {
+		return _polylineCount;
+	}
+
+	public int getPointCount(int polyline) {
+		return _firstPoint[polyline + 1] - _firstPoint[polyline];
+	}
+
+	public double getLat(int polyline, int point) {
+		return _lats[_firstPoint[polyline] + point];
+	}
+
+	public double getLon(int polyline, int point) {
+		return _lons[_firstPoint[polyline] + point];
+	}
+
+	/**
+	 * @return the distance travelled along the polyline up to the given point,
+	 *         in meters
+	 */
+	public double getDistance(int polyline, int point) {
+		return _distances[_firstPoint[polyline] + point];
+	}
+
+	public double getLength(int polyline) {
+		int last = _firstPoint[polyline + 1] - 1;
+		return last < _firstPoint[polyline] ? 0 : _distances[last];
+	}
+
+	/**
+	 * @return the segment that covers the given distance along the polyline,
+	 *         clamped to the first and last segment
+	 */
+	public int segmentAt(int polyline, double distance) {
+		int first = _firstPoint[polyline];
+		int lastSegment = _firstPoint[polyline + 1] - first - 2;
+		if (lastSegment < 0)
+			return 0;
+		int found = Arrays.binarySearch(_distances, first, first + lastSegment + 1, distance);
+		if (found < 0)
+			found = -found - 2;
+		return Math.max(0, Math.min(lastSegment, found - first));
+	}
+
+	/**
+	 * Projects a point onto the segments [fromSegment, toSegment] of a polyline
+	 * and stores the closest one in the projection. Segment j runs from point j
+	 * to point j + 1.
+	 *
+	 * @return false if the polyline has fewer than two points
+	 */
+	public boolean project(int polyline, double lat, double lon,
+			int fromSegment, int toSegment, Projection result) {
+		int first = _firstPoint[polyline];
+		int lastSegment = _firstPoint[polyline + 1] - first - 2;
+		if (lastSegment < 0)
+			return false;
+		fromSegment = Math.max(0, fromSegment);
+		toSegment = Math.min(lastSegment, toSegment);
+
+		double lonScale = Math.cos(Math.toRadians(lat)) * METERS_PER_DEGREE;
+		double bestDistance = Double.MAX_VALUE;
+		int bestSegment = -1;
+		double bestFraction = 0;
+		for (int j = fromSegment; j <= toSegment; j++) {
+			int p = first + j;
+			double ax = (_lons[p] - lon) * lonScale, ay = (_lats[p] - lat) * METERS_PER_DEGREE;
+			double bx = (_lons[p + 1] - lon) * lonScale, by = (_lats[p + 1] - lat) * METERS_PER_DEGREE;
+			double dx = bx - ax, dy = by - ay;
+			double lengthSquared = dx * dx + dy * dy;
+			double t = lengthSquared == 0 ? 0 : -(ax * dx + ay * dy) / lengthSquared;
+			if (t < 0)
+				t = 0;
+			else if (t > 1)
+				t = 1;
+			double px = ax + t * dx, py = ay + t * dy;
+			double d = px * px + py * py;
+			if (d < bestDistance) {
+				bestDistance = d;
+				bestSegment = j;
+				bestFraction = t;
+			}
+		}
+		if (bestSegment < 0)
+			return false;
+		int p = first + bestSegment;
+		result.polyline = polyline;
+		result.segment = bestSegment;
+		result.fraction = bestFraction;
+		result.offset = Math.sqrt(bestDistance);
+		result.distanceAlong = _distances[p] + bestFraction * (_distances[p + 1] - _distances[p]);
+		result.lat = _lats[p] + bestFraction * (_lats[p + 1] - _lats[p]);
+		result.lon = _lons[p] + bestFraction * (_lons[p + 1] - _lons[p]);
+		return true;
+	}
+
+	/**
+	 * Projects a point onto the whole polyline.
+	 */
+	public boolean project(int polyline, double lat, double lon, Projection result) {
+		return project(polyline, lat, lon, 0, Integer.MAX_VALUE, result);
+	}
+
+	/**
+	 * Finds the point at a distance along a polyline, clamped to its ends, and
+	 * stores it in the projection; the offset is left at 0.
+	 *
+	 * @return false if the polyline has fewer than two points
+	 */
+	public boolean locate(int polyline, double distance, Projection result) {
+		int first = _firstPoint[polyline];
+		if (_firstPoint[polyline + 1] - first < 2)
+			return false;
+		distance = Math.max(0, Math.min(getLength(polyline), distance));
+		int segment = segmentAt(polyline, distance);
+		int p = first + segment;
+		double span = _distances[p + 1] - _distances[p];
+		double fraction = span <= 0 ? 0 : Math.min(1, (distance - _distances[p]) / span);
+		result.polyline = polyline;
+		result.segment = segment;
+		result.fraction = fraction;
+		result.offset = 0;
+		result.distanceAlong = distance;
+		result.lat = _lats[p] + fraction * (_lats[p + 1] - _lats[p]);
+		result.lon = _lons[p] + fraction * (_lons[p + 1] - _lons[p]);
+		return true;
+	}
+
+	/**
+	 * @return the direction of a segment in degrees clockwise from north
+	 */
+	public float getBearing(int polyline, int segment) {
+		int p = _firstPoint[polyline] + segment;
+		double x = (_lons[p + 1] - _lons[p]) * Math.cos(Math.toRadians(_lats[p]));
+		double y = _lats[p + 1] - _lats[p];
+		double bearing = Math.toDegrees(Math.atan2(x, y));
+		return (float) (bearing < 0 ? bearing + 360 : bearing);
+	}
+
+	/**
+	 * @return the distance between two points in meters, using the
+	 *         equirectangular approximation that is plenty for the few
+	 *         kilometers between stops
+	 */
+	public static double distance(double lat1, double lon1, double lat2, double lon2) {
+		double x = (lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+		double y = lat2 - lat1;
+		return Math.sqrt(x * x + y * y) * METERS_PER_DEGREE;
+	}
+
+	/**
+	 * The result of projecting a point onto a polyline. Instances are meant to
+	 * be kept and reused by the caller.
+	 */
+	public static class Projection {
+
+		public int polyline = -1;
+
+		/** the segment the point was projected on */
+		public int segment;
+
+		/** how far along the segment the projected point is, from 0 to 1 */
+		public double fraction;
+
+		/** distance from the start of the polyline to the projected point, in meters */
+		public double distanceAlong;
+
+		/** distance between the point and the polyline, in meters */
+		public double offset;
+
+		public double lat;
+
+		public double lon;
+	}
+}
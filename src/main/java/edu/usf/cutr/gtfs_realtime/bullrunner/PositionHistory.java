@@ -0,0 +1,536 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only history of the vehicle fixes and the arrival predicted for
+ * each vehicle's next stop, kept on disk so headways, dwell times and
+ * prediction accuracy can be analysed later.
+ *
+ * The rows are partitioned by time into segment files, one per hour by
+ * default, named positions-&lt;start of the hour in seconds&gt;.seg. A segment
+ * is a sequence of blocks of up to 4096 rows, each holding its rows column by
+ * column: times as deltas from the previous row, coordinates as deltas from
+ * the same vehicle's previous fix, predicted arrivals as deltas from the time
+ * of their row behind a presence bit, and ids as codes into a dictionary at
+ * the start of the block, all as varints. A block ends with the CRC32 of its body,
+ * so a block torn by a crash is recognised and cut off when the history is
+ * opened again.
+ *
+ * Next to each segment, a .idx file lists the time range and offset of every
+ * block. Queries read that sparse index to find the blocks overlapping the
+ * time range, skip the blocks whose dictionary doesn't have the vehicle or
+ * route asked for, and decode the rest from the memory-mapped segment.
+ *
+ * Rows are buffered until a block is full, the hour changes or the flush
+ * interval has passed, and become visible to queries when their block is
+ * written. Segments older than the retention period are deleted.
+ */
+public class PositionHistory {
+
+	private static final int MAGIC = 0x50484231;
+
+	private static final int BLOCK_ROWS = 4096;
+
+	/** the dictionary followed by the columns */
+	private static final int SECTIONS = 10;
+
+	private static final int DICTIONARY = 0, TIME = 1, VEHICLE = 2, ROUTE = 3, LAT = 4, LON = 5, BEARING = 6,
+			OCCUPANCY = 7, STOP = 8, PREDICTED = 9;
+
+	private static final int BLOCK_HEADER_LENGTH = 4 + 4 + 8 + 8 + 4 + 4 * SECTIONS;
+
+	/** coordinates are kept in millionths of a degree, about 0.1 m */
+	private static final double COORDINATE_SCALE = 1e6;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File _directory;
+
+	private long _flushIntervalMillis = 5 * 60 * 1000;
+
+	/** the blocks of the segments are indexed by their min and max time */
+	private final SegmentStore _segments;
+
+	/* the rows of the block being filled */
+
+	private long _blockPartition;
+
+	private long _blockStartedMillis;
+
+	private int _count;
+
+	private final long[] _times = new long[BLOCK_ROWS];
+
+	private final int[] _vehicles = new int[BLOCK_ROWS];
+
+	private final int[] _routes = new int[BLOCK_ROWS];
+
+	private final int[] _lats = new int[BLOCK_ROWS];
+
+	private final int[] _lons = new int[BLOCK_ROWS];
+
+	private final int[] _bearings = new int[BLOCK_ROWS];
+
+	private final int[] _occupancy = new int[BLOCK_ROWS];
+
+	private final int[] _stops = new int[BLOCK_ROWS];
+
+	private final long[] _predicted = new long[BLOCK_ROWS];
+
+	private final Map<String, Integer> _dictionaryCodes = new HashMap<String, Integer>();
+
+	private final List<String> _dictionary = new ArrayList<String>();
+
+	private final Output[] _sections = new Output[SECTIONS];
+
+	private ByteBuffer _blockBuffer = ByteBuffer.allocate(64 * 1024);
+
+	public PositionHistory(File directory) {
+		_directory = directory;
+		_segments = new SegmentStore(directory, "positions", MAGIC, BLOCK_HEADER_LENGTH, 2);
+		_segments.setRetentionSeconds(30 * 86400L);
+		for (int i = 0; i < SECTIONS; i++)
+			_sections[i] = new Output();
+	}
+
+	/**
+	 * @param seconds
+	 *            how much time each segment file covers
+	 */
+	public void setPartitionSeconds(int seconds) {
+		_segments.setPartitionSeconds(seconds);
+	}
+
+	/**
+	 * @param seconds
+	 *            how long segments are kept, from the end of the time they
+	 *            cover
+	 */
+	public void setRetentionSeconds(long seconds) {
+		_segments.setRetentionSeconds(seconds);
+	}
+
+	/**
+	 * @param millis
+	 *            how long rows may wait in memory before their block is written
+	 */
+	public void setFlushInterval(long millis) {
+		_flushIntervalMillis = millis;
+	}
+
+	public File getDirectory() {
+		return _directory;
+	}
+
+	/**
+	 * Reads the index of the segments in the directory, cutting off blocks torn
+	 * by a crash, and deletes the segments past the retention period.
+	 */
+	public synchronized void open() throws IOException {
+		_segments.open();
+		expire(System.currentTimeMillis() / 1000);
+	}
+
+	/**
+	 * Adds a row, written when its block is.
+	 *
+	 * @param time
+	 *            time of the fix, in seconds since the epoch
+	 * @param stopId
+	 *            the next stop of the vehicle, or null
+	 * @param predictedArrival
+	 *            predicted arrival at the next stop in seconds since the epoch,
+	 *            or 0
+	 */
+	public synchronized void append(long time, String vehicleId, String routeId, double lat, double lon,
+			float bearing, int occupancy, String stopId, long predictedArrival) throws IOException {
+		long partition = _segments.partitionOf(time);
+		if (_count > 0 && partition != _blockPartition)
+			flush();
+		if (_count == 0) {
+			_blockPartition = partition;
+			_blockStartedMillis = System.currentTimeMillis();
+		}
+		_times[_count] = time;
+		_vehicles[_count] = code(vehicleId);
+		_routes[_count] = code(routeId);
+		_lats[_count] = (int) Math.round(lat * COORDINATE_SCALE);
+		_lons[_count] = (int) Math.round(lon * COORDINATE_SCALE);
+		_bearings[_count] = Math.round(bearing * 10);
+		_occupancy[_count] = occupancy;
+		_stops[_count] = code(stopId);
+		_predicted[_count] = predictedArrival;
+		if (++_count == BLOCK_ROWS)
+			flush();
+	}
+
+	/**
+	 * @return the code of the id in the dictionary of the block, -1 for null
+	 */
+	private int code(String id) {
+		if (id == null)
+			return -1;
+		Integer code = _dictionaryCodes.get(id);
+		if (code == null) {
+			code = _dictionary.size();
+			_dictionary.add(id);
+			_dictionaryCodes.put(id, code);
+		}
+		return code;
+	}
+
+	/**
+	 * Writes the rows waiting in memory if they have waited longer than the
+	 * flush interval.
+	 */
+	public synchronized void flushIfDue() throws IOException {
+		if (_count > 0 && System.currentTimeMillis() - _blockStartedMillis >= _flushIntervalMillis)
+			flush();
+	}
+
+	/**
+	 * Writes the rows waiting in memory as a block of their segment.
+	 */
+	public synchronized void flush() throws IOException {
+		if (_count == 0)
+			return;
+		SegmentStore.Segment segment = _segments.getSegment(_blockPartition);
+		ByteBuffer block = encodeBlock();
+		long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+		for (int i = 0; i < _count; i++) {
+			minTime = Math.min(minTime, _times[i]);
+			maxTime = Math.max(maxTime, _times[i]);
+		}
+		block.putLong(8, minTime);
+		block.putLong(16, maxTime);
+		segment.append(block);
+
+		_count = 0;
+		_dictionary.clear();
+		_dictionaryCodes.clear();
+		expire(System.currentTimeMillis() / 1000);
+	}
+
+	/**
+	 * Writes the rows still in memory.
+	 */
+	public void close() throws IOException {
+		flush();
+	}
+
+	private ByteBuffer encodeBlock() {
+		for (Output section : _sections)
+			section.reset();
+		Output dictionary = _sections[DICTIONARY];
+		dictionary.writeVarint(_dictionary.size());
+		for (String id : _dictionary) {
+			byte[] bytes = id.getBytes(UTF8);
+			dictionary.writeVarint(bytes.length);
+			dictionary.write(bytes);
+		}
+		int[] lastLats = new int[_dictionary.size()];
+		int[] lastLons = new int[_dictionary.size()];
+		long previousTime = 0;
+		for (int i = 0; i < _count; i++) {
+			_sections[TIME].writeSignedVarint(_times[i] - previousTime);
+			previousTime = _times[i];
+			int vehicle = _vehicles[i];
+			_sections[VEHICLE].writeVarint(vehicle + 1);
+			_sections[ROUTE].writeVarint(_routes[i] + 1);
+			if (vehicle >= 0) {
+				_sections[LAT].writeSignedVarint(_lats[i] - lastLats[vehicle]);
+				_sections[LON].writeSignedVarint(_lons[i] - lastLons[vehicle]);
+				lastLats[vehicle] = _lats[i];
+				lastLons[vehicle] = _lons[i];
+			} else {
+				_sections[LAT].writeSignedVarint(_lats[i]);
+				_sections[LON].writeSignedVarint(_lons[i]);
+			}
+			_sections[BEARING].writeSignedVarint(_bearings[i]);
+			_sections[OCCUPANCY].writeSignedVarint(_occupancy[i]);
+			_sections[STOP].writeVarint(_stops[i] + 1);
+			// the low bit tells a prediction apart from none, whatever its delta
+			_sections[PREDICTED].writeSignedVarint(_predicted[i] == 0 ? 0 : (_predicted[i] - _times[i]) << 1 | 1);
+		}
+
+		int bodyLength = 0;
+		for (Output section : _sections)
+			bodyLength += section.length;
+		int blockLength = BLOCK_HEADER_LENGTH + bodyLength + 4;
+		if (_blockBuffer.capacity() < blockLength)
+			_blockBuffer = ByteBuffer.allocate(Integer.highestOneBit(blockLength) << 1);
+		ByteBuffer block = _blockBuffer;
+		block.clear();
+		block.putInt(MAGIC);
+		block.putInt(bodyLength);
+		block.putLong(0);
+		block.putLong(0);
+		block.putInt(_count);
+		for (Output section : _sections)
+			block.putInt(section.length);
+		CRC32 crc = new CRC32();
+		for (Output section : _sections) {
+			block.put(section.bytes, 0, section.length);
+			crc.update(section.bytes, 0, section.length);
+		}
+		block.putInt((int) crc.getValue());
+		block.flip();
+		return block;
+	}
+
+	/**
+	 * Deletes the segments whose time ended before the retention period.
+	 *
+	 * @param now
+	 *            in seconds since the epoch
+	 */
+	public synchronized void expire(long now) {
+		// the segment the rows in memory will be written to is kept
+		_segments.expire(now, _count > 0 ? _blockPartition : Long.MIN_VALUE);
+	}
+
+	/**
+	 * Calls the handler for every row of the vehicle with a time in the range.
+	 *
+	 * @param from
+	 *            in seconds since the epoch, inclusive
+	 * @param to
+	 *            in seconds since the epoch, inclusive
+	 * @return how many rows were passed to the handler
+	 */
+	public long scanVehicle(String vehicleId, long from, long to, RowHandler handler) throws IOException {
+		return scan(from, to, vehicleId, null, handler);
+	}
+
+	/**
+	 * Calls the handler for every row of the route with a time in the range.
+	 */
+	public long scanRoute(String routeId, long from, long to, RowHandler handler) throws IOException {
+		return scan(from, to, null, routeId, handler);
+	}
+
+	/**
+	 * Calls the handler for every row with a time in the range, of the vehicle
+	 * and the route if they are given. The row passed to the handler is reused
+	 * for the next one.
+	 */
+	public long scan(long from, long to, String vehicleId, String routeId, RowHandler handler) throws IOException {
+		List<long[]> indexes = new ArrayList<long[]>();
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		synchronized (this) {
+			for (SegmentStore.Segment segment : _segments.getSegments()
+					.subMap(from - _segments.getPartitionSeconds(), false, to, true).values()) {
+				if (segment.entries == 0)
+					continue;
+				indexes.add(Arrays.copyOf(segment.index, segment.entries * 3));
+				buffers.add(segment.map());
+			}
+		}
+
+		BlockReader reader = new BlockReader();
+		Row row = new Row();
+		long rows = 0;
+		for (int s = 0; s < indexes.size(); s++) {
+			long[] index = indexes.get(s);
+			ByteBuffer buffer = buffers.get(s);
+			for (int e = 0; e < index.length; e += 3) {
+				if (index[e + 1] < from || index[e] > to)
+					continue;
+				rows += reader.scan(buffer, (int) index[e + 2], from, to, vehicleId, routeId, row, handler);
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * One row of the history, as passed to a {@link RowHandler}.
+	 */
+	public static class Row {
+
+		/** in seconds since the epoch */
+		public long time;
+
+		public String vehicleId;
+
+		public String routeId;
+
+		public double lat;
+
+		public double lon;
+
+		public float bearing;
+
+		/** in percent */
+		public int occupancy;
+
+		/** the next stop of the vehicle, null if it had none */
+		public String stopId;
+
+		/** predicted arrival at the next stop in seconds since the epoch, 0 if none */
+		public long predictedArrival;
+	}
+
+	public interface RowHandler {
+		void handle(Row row);
+	}
+
+	/**
+	 * Decodes blocks into reused column arrays.
+	 */
+	private static class BlockReader {
+
+		private String[] _dictionary = new String[64];
+
+		private byte[] _bytes = new byte[64];
+
+		private int[] _lastLats = new int[64], _lastLons = new int[64];
+
+		private final ByteBuffer[] _sections = new ByteBuffer[SECTIONS];
+
+		long scan(ByteBuffer segment, int offset, long from, long to, String vehicleId, String routeId, Row row,
+				RowHandler handler) {
+			ByteBuffer block = segment.duplicate();
+			block.position(offset + 4 + 4 + 8 + 8);
+			int count = block.getInt();
+			int sectionStart = offset + BLOCK_HEADER_LENGTH;
+			for (int i = 0; i < SECTIONS; i++) {
+				int length = block.getInt(offset + 4 + 4 + 8 + 8 + 4 + 4 * i);
+				ByteBuffer section = segment.duplicate();
+				section.position(sectionStart);
+				section.limit(sectionStart + length);
+				_sections[i] = section;
+				sectionStart += length;
+			}
+
+			ByteBuffer dictionary = _sections[DICTIONARY];
+			int size = readVarint(dictionary);
+			if (_dictionary.length < size) {
+				_dictionary = new String[size * 2];
+				_lastLats = new int[size * 2];
+				_lastLons = new int[size * 2];
+			}
+			int vehicleCode = vehicleId == null ? -1 : -2;
+			int routeCode = routeId == null ? -1 : -2;
+			for (int i = 0; i < size; i++) {
+				int length = readVarint(dictionary);
+				if (_bytes.length < length)
+					_bytes = new byte[length * 2];
+				dictionary.get(_bytes, 0, length);
+				_dictionary[i] = new String(_bytes, 0, length, UTF8);
+				if (vehicleCode == -2 && _dictionary[i].equals(vehicleId))
+					vehicleCode = i;
+				if (routeCode == -2 && _dictionary[i].equals(routeId))
+					routeCode = i;
+				_lastLats[i] = 0;
+				_lastLons[i] = 0;
+			}
+			// the vehicle or route asked for isn't in the block
+			if (vehicleCode == -2 || routeCode == -2)
+				return 0;
+
+			long rows = 0;
+			long time = 0;
+			for (int i = 0; i < count; i++) {
+				time += readSignedVarint(_sections[TIME]);
+				int vehicle = readVarint(_sections[VEHICLE]) - 1;
+				int route = readVarint(_sections[ROUTE]) - 1;
+				int lat = (int) readSignedVarint(_sections[LAT]);
+				int lon = (int) readSignedVarint(_sections[LON]);
+				if (vehicle >= 0) {
+					lat += _lastLats[vehicle];
+					lon += _lastLons[vehicle];
+					_lastLats[vehicle] = lat;
+					_lastLons[vehicle] = lon;
+				}
+				int bearing = (int) readSignedVarint(_sections[BEARING]);
+				int occupancy = (int) readSignedVarint(_sections[OCCUPANCY]);
+				int stop = readVarint(_sections[STOP]) - 1;
+				long predicted = readSignedVarint(_sections[PREDICTED]);
+				if (time < from || time > to || (vehicleCode >= 0 && vehicle != vehicleCode)
+						|| (routeCode >= 0 && route != routeCode))
+					continue;
+				row.time = time;
+				row.vehicleId = vehicle < 0 ? null : _dictionary[vehicle];
+				row.routeId = route < 0 ? null : _dictionary[route];
+				row.lat = lat / COORDINATE_SCALE;
+				row.lon = lon / COORDINATE_SCALE;
+				row.bearing = bearing / 10f;
+				row.occupancy = occupancy;
+				row.stopId = stop < 0 ? null : _dictionary[stop];
+				row.predictedArrival = (predicted & 1) == 0 ? 0 : time + (predicted >> 1);
+				handler.handle(row);
+				rows++;
+			}
+			return rows;
+		}
+	}
+
+	private static int readVarint(ByteBuffer in) {
+		return (int) readUnsignedVarint(in);
+	}
+
+	private static long readUnsignedVarint(ByteBuffer in) {
+		long value = 0;
+		int shift = 0;
+		while (true) {
+			byte b = in.get();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0)
+				return value;
+			shift += 7;
+		}
+	}
+
+	private static long readSignedVarint(ByteBuffer in) {
+		long zigzag = readUnsignedVarint(in);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	/**
+	 * A growable byte array written with varints.
+	 */
+	private static class Output {
+
+		byte[] bytes = new byte[4096];
+
+		int length;
+
+		void reset() {
+			length = 0;
+		}
+
+		void write(byte[] data) {
+			ensure(data.length);
+			System.arraycopy(data, 0, bytes, length, data.length);
+			length += data.length;
+		}
+
+		void writeVarint(long value) {
+			ensure(10);
+			while ((value & ~0x7fL) != 0) {
+				bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			bytes[length++] = (byte) value;
+		}
+
+		void writeSignedVarint(long value) {
+			writeVarint((value << 1) ^ (value >> 63));
+		}
+
+		private void ensure(int extra) {
+			if (length + extra > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Writes a day of synthetic fixes for a fleet into a {@link PositionHistory}
+ * in a temporary directory and measures how fast a route and a vehicle can be
+ * scanned back. The rows read back are counted against the rows written, so
+ * this doubles as a check of the encoding.
+ *
+ * java -cp cutr-gtfs-realtime-bullrunner-0.9.0-SNAPSHOT-withAllDependencies.jar edu.usf.cutr.gtfs_realtime.bullrunner.PositionHistoryBenchmark [vehicles] [interval]
+ */
+public class PositionHistoryBenchmark {
+
+	private static final int ROUTES = 10;
+
+	public static void main(String[] args) throws Exception {
+		int vehicles = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int interval = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		File directory = Files.createTempDirectory("position-history").toFile();
+		long start = System.currentTimeMillis() / 1000 / 86400 * 86400 - 86400;
+
+		PositionHistory history = new PositionHistory(directory);
+		history.open();
+		Random random = new Random(42);
+		double[] lats = new double[vehicles], lons = new double[vehicles];
+		for (int v = 0; v < vehicles; v++) {
+			lats[v] = 18.0 + random.nextDouble() * 0.05;
+			lons[v] = -76.8 + random.nextDouble() * 0.05;
+		}
+		long writeStart = System.nanoTime();
+		long written = 0, routeRows = 0;
+		for (long time = start; time < start + 86400; time += interval) {
+			for (int v = 0; v < vehicles; v++) {
+				lats[v] += random.nextGaussian() * 1e-4;
+				lons[v] += random.nextGaussian() * 1e-4;
+				history.append(time, "bus-" + v, "route-" + v % ROUTES, lats[v], lons[v], random.nextInt(360),
+						random.nextInt(100), "stop-" + random.nextInt(50), time + random.nextInt(600));
+				written++;
+				if (v % ROUTES == 3)
+					routeRows++;
+			}
+		}
+		history.close();
+		long writeTime = System.nanoTime() - writeStart;
+		long bytes = 0;
+		for (File file : directory.listFiles())
+			bytes += file.length();
+		System.out.println(String.format("%,d rows written in %.0f ms, %.1f bytes per row", written, writeTime / 1e6,
+				bytes / (double) written));
+
+		final double[] checksum = new double[1];
+		PositionHistory.RowHandler handler = new PositionHistory.RowHandler() {
+			@Override
+			public void handle(PositionHistory.Row row) {
+				checksum[0] += row.lat;
+			}
+		};
+		for (int round = 0; round < 5; round++) {
+			long scanStart = System.nanoTime();
+			long rows = history.scanRoute("route-3", start, start + 86400, handler);
+			long routeTime = System.nanoTime() - scanStart;
+			if (rows != routeRows)
+				throw new IllegalStateException(rows + " rows of the route read back, " + routeRows + " written");
+			scanStart = System.nanoTime();
+			long all = history.scan(start, start + 86400, null, null, handler);
+			long allTime = System.nanoTime() - scanStart;
+			if (all != written)
+				throw new IllegalStateException(all + " rows read back, " + written + " written");
+			scanStart = System.nanoTime();
+			long vehicleRows = history.scanVehicle("bus-7", start + 3600, start + 7200 - 1, handler);
+			long vehicleTime = System.nanoTime() - scanStart;
+			System.out.println(String.format("all %,.0f rows/s  route %,.0f rows/s  one vehicle for an hour %d rows in %.2f ms",
+					all / (allTime / 1e9), rows / (routeTime / 1e9), vehicleRows, vehicleTime / 1e6));
+		}
+
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+}
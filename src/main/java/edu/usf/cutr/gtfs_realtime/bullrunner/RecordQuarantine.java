@@ -0,0 +1,183 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps one bad upstream record from failing a whole refresh. The provider
+ * processes each vehicle and each prediction on its own and reports the ones
+ * that throw here instead of letting the exception end the refresh, so the
+ * rest of the refresh is still published.
+ *
+ * Rejects are counted by kind of record and reason rather than logged one by
+ * one. An id rejected several refreshes in a row is quarantined for a while:
+ * its records are skipped without being processed, so a vehicle sending
+ * garbage costs a map lookup per refresh rather than an exception. The
+ * counters and the quarantined ids are published as the MXBean
+ * edu.usf.cutr.gtfs_realtime.bullrunner:type=RecordQuarantine.
+ */
+public class RecordQuarantine implements RecordQuarantineMXBean {
+
+	private static final Logger _log = LoggerFactory.getLogger(RecordQuarantine.class);
+
+	/** ids tracked at most, the oldest are forgotten beyond that */
+	private static final int MAX_IDS = 1024;
+
+	private int _failuresToQuarantine = 3;
+
+	private int _quarantineSeconds = 600;
+
+	private final AtomicLong _accepted = new AtomicLong();
+
+	private final AtomicLong _skipped = new AtomicLong();
+
+	private final Map<String, Long> _rejectedByReason = new TreeMap<String, Long>();
+
+	private long _rejected;
+
+	/** failures in a row and end of the quarantine of each id, in seconds */
+	private final LinkedHashMap<String, long[]> _offenders = new LinkedHashMap<String, long[]>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+			return size() > MAX_IDS;
+		}
+	};
+
+	/**
+	 * @param failures
+	 *            rejects in a row that quarantine an id
+	 * @param seconds
+	 *            how long the records of a quarantined id are skipped
+	 */
+	public void setQuarantine(int failures, int seconds) {
+		_failuresToQuarantine = failures;
+		_quarantineSeconds = seconds;
+	}
+
+	/**
+	 * Registers the counters with the platform MBean server.
+	 *
+	 * @param feed
+	 *            id of the feed when the process hosts several, or null
+	 */
+	public void register(String feed) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("edu.usf.cutr.gtfs_realtime.bullrunner:type=RecordQuarantine"
+					+ (feed == null ? "" : ",feed=" + ObjectName.quote(feed)));
+			if (!server.isRegistered(name))
+				server.registerMBean(this, name);
+		} catch (JMException ex) {
+			_log.warn("can't register the record counters", ex);
+		}
+	}
+
+	/**
+	 * @param now
+	 *            in seconds since the epoch
+	 * @return true if the records of the id are to be skipped
+	 */
+	public synchronized boolean isQuarantined(String kind, String id, long now) {
+		long[] offender = _offenders.get(kind + ":" + id);
+		if (offender == null || offender[1] <= now)
+			return false;
+		_skipped.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Counts a record that was processed, which clears the failures of its id.
+	 */
+	public void accept(String kind, String id) {
+		_accepted.incrementAndGet();
+		synchronized (this) {
+			if (!_offenders.isEmpty())
+				_offenders.remove(kind + ":" + id);
+		}
+	}
+
+	/**
+	 * Counts a record that could not be processed, and quarantines its id if
+	 * it failed too many times in a row.
+	 *
+	 * @param id
+	 *            of the vehicle, stop or other entity of the record, null if
+	 *            the record is too broken to tell
+	 * @param reason
+	 *            a short name for the problem, such as the exception class
+	 * @param now
+	 *            in seconds since the epoch
+	 */
+	public synchronized void reject(String kind, String id, String reason, long now) {
+		_rejected++;
+		String key = kind + ": " + reason;
+		Long count = _rejectedByReason.get(key);
+		_rejectedByReason.put(key, count == null ? 1 : count + 1);
+		if (id == null)
+			return;
+		String offenderKey = kind + ":" + id;
+		long[] offender = _offenders.remove(offenderKey);
+		if (offender == null)
+			offender = new long[2];
+		_offenders.put(offenderKey, offender);
+		if (++offender[0] >= _failuresToQuarantine) {
+			if (offender[1] <= now)
+				_log.info("quarantined " + offenderKey + " for " + _quarantineSeconds + " s after " + offender[0]
+						+ " rejects, the last for " + reason);
+			offender[0] = 0;
+			offender[1] = now + _quarantineSeconds;
+		}
+	}
+
+	/**
+	 * Counts a record that threw, by the class of the exception.
+	 */
+	public void reject(String kind, String id, Exception ex, long now) {
+		reject(kind, id, ex.getClass().getSimpleName(), now);
+	}
+
+	@Override
+	public long getAccepted() {
+		return _accepted.get();
+	}
+
+	@Override
+	public synchronized long getRejected() {
+		return _rejected;
+	}
+
+	@Override
+	public synchronized Map<String, Long> getRejectedByReason() {
+		return new TreeMap<String, Long>(_rejectedByReason);
+	}
+
+	@Override
+	public long getSkipped() {
+		return _skipped.get();
+	}
+
+	@Override
+	public synchronized String[] getQuarantinedIds() {
+		long now = System.currentTimeMillis() / 1000;
+		List<String> ids = new ArrayList<String>();
+		for (Map.Entry<String, long[]> offender : _offenders.entrySet()) {
+			if (offender.getValue()[1] > now)
+				ids.add(offender.getKey());
+		}
+		return ids.toArray(new String[ids.size()]);
+	}
+}
@@ -0,0 +1,25 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Map;
+
+/**
+ * Counters of the upstream records a provider accepted and rejected,
+ * published over JMX by {@link RecordQuarantine}.
+ */
+public interface RecordQuarantineMXBean {
+
+	/** records turned into feed entities */
+	long getAccepted();
+
+	/** records that could not be processed */
+	long getRejected();
+
+	/** rejected records by the kind of record and the reason */
+	Map<String, Long> getRejectedByReason();
+
+	/** records skipped because their id was quarantined */
+	long getSkipped();
+
+	/** the ids quarantined right now */
+	String[] getQuarantinedIds();
+}
@@ -0,0 +1,245 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+
+/**
+ * Rolling per-route statistics for operations: the average occupancy of the
+ * route's vehicles, how many vehicles were in service and the headways
+ * observed between consecutive arrivals at each stop, over the last few
+ * minutes and the last hour.
+ *
+ * Every route has a ring of one-minute buckets, as long as the longest window,
+ * kept in flat primitive arrays indexed by route slot * bucket count + bucket.
+ * A bucket holds sums and counts, and is cleared when the ring comes around to
+ * it again, so a refresh updates the statistics in O(vehicles + routes) and a
+ * window is the sum of its buckets. After each refresh the statistics are
+ * rendered to JSON once, and requests are served those bytes.
+ */
+public class RouteStatistics {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int BUCKET_SECONDS = 60;
+
+	/** arrivals further apart than this at a stop are not a headway, in seconds */
+	private static final long MAX_HEADWAY = 2 * 3600;
+
+	private final SymbolTable _symbols;
+
+	private final int[] _windowMinutes;
+
+	private final int _buckets;
+
+	/** slot of each route by its handle, -1 if it has none */
+	private int[] _slotByRoute = new int[0];
+
+	private int[] _routeOfSlot = new int[0];
+
+	private int _routeCount;
+
+	/** the minute since the epoch each bucket holds */
+	private long[] _bucketMinutes = new long[0];
+
+	private long[] _occupancySums = new long[0];
+
+	private int[] _occupancySamples = new int[0];
+
+	private int[] _refreshes = new int[0];
+
+	private long[] _vehicleSums = new long[0];
+
+	private long[] _headwaySums = new long[0];
+
+	private int[] _headwayCounts = new int[0];
+
+	/** vehicles of each route in the refresh being recorded */
+	private int[] _vehicleCounts = new int[0];
+
+	/** last arrival of each route at each stop, by route slot and stop index */
+	private long[][] _lastArrivals = new long[0][];
+
+	private volatile byte[] _json = "{\"routes\":[]}".getBytes(UTF8);
+
+	private volatile long _version;
+
+	/**
+	 * @param windowMinutes
+	 *            the windows the statistics are given for, in minutes
+	 */
+	public RouteStatistics(SymbolTable symbols, int... windowMinutes) {
+		_symbols = symbols;
+		_windowMinutes = windowMinutes.length == 0 ? new int[] { 5, 60 } : windowMinutes;
+		int buckets = 1;
+		for (int minutes : _windowMinutes)
+			buckets = Math.max(buckets, minutes);
+		_buckets = buckets;
+	}
+
+	private int slot(int route) {
+		if (route >= _slotByRoute.length) {
+			int length = _slotByRoute.length;
+			_slotByRoute = Arrays.copyOf(_slotByRoute, Math.max(route + 1, length * 2));
+			Arrays.fill(_slotByRoute, length, _slotByRoute.length, -1);
+		}
+		int slot = _slotByRoute[route];
+		if (slot >= 0)
+			return slot;
+		slot = _routeCount++;
+		if (slot == _routeOfSlot.length) {
+			int capacity = Math.max(8, slot * 2);
+			_routeOfSlot = Arrays.copyOf(_routeOfSlot, capacity);
+			_vehicleCounts = Arrays.copyOf(_vehicleCounts, capacity);
+			_lastArrivals = Arrays.copyOf(_lastArrivals, capacity);
+			_bucketMinutes = Arrays.copyOf(_bucketMinutes, capacity * _buckets);
+			_occupancySums = Arrays.copyOf(_occupancySums, capacity * _buckets);
+			_occupancySamples = Arrays.copyOf(_occupancySamples, capacity * _buckets);
+			_refreshes = Arrays.copyOf(_refreshes, capacity * _buckets);
+			_vehicleSums = Arrays.copyOf(_vehicleSums, capacity * _buckets);
+			_headwaySums = Arrays.copyOf(_headwaySums, capacity * _buckets);
+			_headwayCounts = Arrays.copyOf(_headwayCounts, capacity * _buckets);
+		}
+		Arrays.fill(_bucketMinutes, slot * _buckets, (slot + 1) * _buckets, -1);
+		_lastArrivals[slot] = new long[0];
+		_routeOfSlot[slot] = route;
+		_slotByRoute[route] = slot;
+		return slot;
+	}
+
+	/**
+	 * @return the index of the route's bucket for the minute, cleared if it
+	 *         held an older minute
+	 */
+	private int bucket(int slot, long minute) {
+		int bucket = slot * _buckets + (int) (minute % _buckets);
+		if (_bucketMinutes[bucket] != minute) {
+			_bucketMinutes[bucket] = minute;
+			_occupancySums[bucket] = 0;
+			_occupancySamples[bucket] = 0;
+			_refreshes[bucket] = 0;
+			_vehicleSums[bucket] = 0;
+			_headwaySums[bucket] = 0;
+			_headwayCounts[bucket] = 0;
+		}
+		return bucket;
+	}
+
+	/**
+	 * Adds the occupancy of every vehicle of a refresh and the number of
+	 * vehicles each route had in it.
+	 *
+	 * @param now
+	 *            in seconds since the epoch
+	 */
+	public synchronized void record(FleetSnapshot snapshot, long now) {
+		long minute = now / BUCKET_SECONDS;
+		for (int i = 0; i < snapshot.size; i++) {
+			if (snapshot.routes[i] < 0)
+				continue;
+			int slot = slot(snapshot.routes[i]);
+			int bucket = bucket(slot, minute);
+			_occupancySums[bucket] += snapshot.occupancy[i];
+			_occupancySamples[bucket]++;
+			_vehicleCounts[slot]++;
+		}
+		for (int slot = 0; slot < _routeCount; slot++) {
+			int bucket = bucket(slot, minute);
+			_refreshes[bucket]++;
+			_vehicleSums[bucket] += _vehicleCounts[slot];
+			_vehicleCounts[slot] = 0;
+		}
+	}
+
+	/**
+	 * Records an observed arrival of a vehicle of the route at a stop; the time
+	 * since the route's previous arrival there is a headway.
+	 *
+	 * @param stop
+	 *            index of the stop in the {@link StopSpatialIndex}
+	 * @param time
+	 *            in seconds since the epoch
+	 */
+	public synchronized void recordArrival(int route, int stop, long time) {
+		if (route < 0 || stop < 0)
+			return;
+		int slot = slot(route);
+		long[] lastArrivals = _lastArrivals[slot];
+		if (stop >= lastArrivals.length) {
+			lastArrivals = Arrays.copyOf(lastArrivals, Math.max(stop + 1, lastArrivals.length * 2));
+			_lastArrivals[slot] = lastArrivals;
+		}
+		long last = lastArrivals[stop];
+		if (last > 0 && time > last && time - last <= MAX_HEADWAY) {
+			int bucket = bucket(slot, time / BUCKET_SECONDS);
+			_headwaySums[bucket] += time - last;
+			_headwayCounts[bucket]++;
+		}
+		if (time > last)
+			lastArrivals[stop] = time;
+	}
+
+	/**
+	 * Renders every route's windows ending at the given time to the JSON that
+	 * is served until the next call.
+	 *
+	 * @param now
+	 *            in seconds since the epoch
+	 */
+	public synchronized void render(long now) {
+		long minute = now / BUCKET_SECONDS;
+		StringBuilder json = new StringBuilder(64 + _routeCount * 96 * _windowMinutes.length);
+		json.append("{\"time\":").append(now).append(",\"routes\":[");
+		for (int slot = 0; slot < _routeCount; slot++) {
+			if (slot > 0)
+				json.append(',');
+			json.append("{\"routeId\":").append(JSONObject.quote(_symbols.get(_routeOfSlot[slot])))
+				.append(",\"windows\":[");
+			for (int w = 0; w < _windowMinutes.length; w++) {
+				long occupancySum = 0, vehicleSum = 0, headwaySum = 0;
+				int occupancySamples = 0, refreshes = 0, headways = 0;
+				for (int b = slot * _buckets; b < (slot + 1) * _buckets; b++) {
+					if (_bucketMinutes[b] <= minute - _windowMinutes[w] || _bucketMinutes[b] > minute)
+						continue;
+					occupancySum += _occupancySums[b];
+					occupancySamples += _occupancySamples[b];
+					vehicleSum += _vehicleSums[b];
+					refreshes += _refreshes[b];
+					headwaySum += _headwaySums[b];
+					headways += _headwayCounts[b];
+				}
+				if (w > 0)
+					json.append(',');
+				json.append("{\"minutes\":").append(_windowMinutes[w])
+					.append(",\"averageOccupancy\":").append(average(occupancySum, occupancySamples))
+					.append(",\"vehiclesInService\":").append(average(vehicleSum, refreshes))
+					.append(",\"averageHeadway\":").append(average(headwaySum, headways))
+					.append(",\"headways\":").append(headways).append('}');
+			}
+			json.append("]}");
+		}
+		json.append("]}");
+		_json = json.toString().getBytes(UTF8);
+		_version++;
+	}
+
+	private static String average(long sum, int count) {
+		return count == 0 ? "null" : Double.toString(Math.round(sum * 10.0 / count) / 10.0);
+	}
+
+	/**
+	 * @return the statistics as rendered by the last call to
+	 *         {@link #render(long)}
+	 */
+	public byte[] getJson() {
+		return _json;
+	}
+
+	/**
+	 * @return a number that changes each time the statistics are rendered
+	 */
+	public long getVersion() {
+		return _version;
+	}
+}
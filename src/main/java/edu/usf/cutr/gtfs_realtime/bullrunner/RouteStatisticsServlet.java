@@ -0,0 +1,79 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeServlet;
+
+/**
+ * Serves the JSON rendered by a {@link RouteStatistics} after each refresh.
+ * It is published like the feeds, through the URL given to
+ * {@link #setUrl(java.net.URL)}, and held to the same rate limit; the ETag
+ * changes with every rendering, and with every start of the server since the
+ * renderings are counted from 0 again, so a client polling with If-None-Match
+ * gets a 304 until the next refresh.
+ */
+public class RouteStatisticsServlet extends GtfsRealtimeServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final String CONTENT_TYPE_JSON = "application/json; charset=utf-8";
+
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
+  private final String _etagPrefix = Long.toString(System.currentTimeMillis(), 36);
+
+  private RouteStatistics _statistics;
+
+  private ClientRateLimiter _rateLimiter;
+
+  private FeedServletStats _stats;
+
+  @Inject
+  public void setRateLimiter(ClientRateLimiter rateLimiter) {
+    _rateLimiter = rateLimiter;
+  }
+
+  @Inject
+  public void setStats(FeedServletStats stats) {
+    _stats = stats;
+  }
+
+  public void setStatistics(RouteStatistics statistics) {
+    _statistics = statistics;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    _stats.requestStarted();
+    try {
+      if (!_rateLimiter.tryAcquire(_rateLimiter.getClient(req))) {
+        resp.setIntHeader("Retry-After", _rateLimiter.getRetryAfter());
+        resp.sendError(SC_TOO_MANY_REQUESTS);
+        return;
+      }
+
+      // read the version first, so the tag is never newer than the body
+      long version = _statistics.getVersion();
+      byte[] body = _statistics.getJson();
+      String etag = "\"stats-" + _etagPrefix + "-" + version + "\"";
+      resp.setHeader("ETag", etag);
+      resp.setHeader("Cache-Control", "no-cache");
+      if (GtfsRealtimeServletCutr.matches(req.getHeader("If-None-Match"), etag)) {
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        _stats.notModified();
+        return;
+      }
+      resp.setContentType(CONTENT_TYPE_JSON);
+      resp.setContentLength(body.length);
+      resp.getOutputStream().write(body);
+    } finally {
+      _stats.requestFinished();
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+
+/**
+ * Predicts arrival times from GPS fixes alone. Each fix is projected onto the
+ * polyline of the vehicle's trip, which places it between two stops and so
+ * gives its position in the schedule; the remaining stops are then predicted by
+ * adding the scheduled running time from that position.
+ *
+ * The state of every vehicle is kept between refreshes, so a vehicle whose fix
+ * did not change is not matched again, and a vehicle that moved is only
+ * searched a little ahead of where it was last seen.
+ */
+public class ScheduleEtaPredictor {
+
+	/**
+	 * how far past the last match the polyline is searched before falling back
+	 * to a scan of the whole trip, in meters
+	 */
+	private static final double LOOKAHEAD_METERS = 3000;
+
+	/**
+	 * a match inside the look-ahead window further away from the route than
+	 * this is retried against the whole trip
+	 */
+	private static final double MAX_WINDOW_MATCH_METERS = 300;
+
+	private final Map<String, VehicleProgress> _progressByVehicle = new HashMap<String, VehicleProgress>();
+
+	private final PolylineIndex _polylines;
+
+	private final PolylineIndex.Projection _projection = new PolylineIndex.Projection();
+
+	public ScheduleEtaPredictor(PolylineIndex polylines) {
+		_polylines = polylines;
+	}
+
+	/**
+	 * Matches a new fix of a vehicle against its trip and recomputes the
+	 * arrival times of the stops ahead of it. A fix that was already seen leaves
+	 * the previous predictions, and the trip update cached with them, untouched.
+	 *
+	 * @param fixTime
+	 *            time of the fix, in seconds since the epoch
+	 */
+	public VehicleProgress update(String vehicleId, TripStopTimes trip,
+			double lat, double lon, long fixTime) {
+		VehicleProgress progress = _progressByVehicle.get(vehicleId);
+		if (progress == null || progress.trip != trip) {
+			progress = new VehicleProgress(trip);
+			_progressByVehicle.put(vehicleId, progress);
+		} else if (progress.fixTime == fixTime) {
+			return progress;
+		}
+		progress.fixTime = fixTime;
+		progress.tripUpdate = null;
+
+		if (!match(progress, lat, lon) || progress.stop >= trip.size() - 1) {
+			progress.nextStop = trip.size();
+			return progress;
+		}
+
+		int j = progress.stop;
+		double stopSpan = trip.stopDistances[j + 1] - trip.stopDistances[j];
+		double fraction = stopSpan <= 0 ? 0
+				: Math.min(1, (progress.distanceAlong - trip.stopDistances[j]) / stopSpan);
+		progress.scheduleOffset = trip.arrivalOffsets[j] + fraction
+				* (trip.arrivalOffsets[j + 1] - trip.arrivalOffsets[j]);
+		progress.nextStop = j + 1;
+		for (int k = progress.nextStop; k < trip.size(); k++) {
+			progress.arrivalTimes[k] = fixTime
+					+ Math.round(trip.arrivalOffsets[k] - progress.scheduleOffset);
+		}
+		return progress;
+	}
+
+	public VehicleProgress getProgress(String vehicleId) {
+		return _progressByVehicle.get(vehicleId);
+	}
+
+	/**
+	 * Forgets every vehicle that is not in the given set, so vehicles that went
+	 * off-line don't keep their last predictions forever.
+	 */
+	public void retainAll(Set<String> vehicleIds) {
+		Iterator<String> it = _progressByVehicle.keySet().iterator();
+		while (it.hasNext()) {
+			if (!vehicleIds.contains(it.next()))
+				it.remove();
+		}
+	}
+
+	public int size() {
+		return _progressByVehicle.size();
+	}
+
+	/**
+	 * Projects the fix onto the trip's polyline, first in a window ahead of the
+	 * last match and, if that is too far off, along the whole trip.
+	 *
+	 * @return false if the trip has no usable polyline
+	 */
+	private boolean match(VehicleProgress progress, double lat, double lon) {
+		int polyline = progress.trip.polyline;
+		if (polyline < 0)
+			return false;
+		boolean matched = false;
+		if (progress.segment >= 0) {
+			int toSegment = _polylines.segmentAt(polyline, progress.distanceAlong + LOOKAHEAD_METERS);
+			matched = _polylines.project(polyline, lat, lon, progress.segment - 1, toSegment, _projection)
+					&& _projection.offset <= MAX_WINDOW_MATCH_METERS;
+		}
+		if (!matched && !_polylines.project(polyline, lat, lon, _projection))
+			return false;
+		progress.segment = _projection.segment;
+		progress.distanceAlong = _projection.distanceAlong;
+		progress.offset = _projection.offset;
+		progress.stop = progress.trip.stopBefore(_projection.distanceAlong, progress.stop);
+		return true;
+	}
+
+	/**
+	 * Where a vehicle was last matched on its trip and the arrival times that
+	 * were predicted from there.
+	 */
+	public static class VehicleProgress {
+
+		public final TripStopTimes trip;
+
+		/** polyline segment of the last match, -1 before the first match */
+		public int segment = -1;
+
+		/** distance of the last match along the polyline, in meters */
+		public double distanceAlong;
+
+		/** distance between the fix and the polyline, in meters */
+		public double offset;
+
+		/** index of the last stop the vehicle passed */
+		public int stop;
+
+		/** position of the vehicle in the schedule, in seconds after the first stop */
+		public double scheduleOffset;
+
+		/** time of the last matched fix, in seconds since the epoch */
+		public long fixTime = Long.MIN_VALUE;
+
+		/** index of the first stop ahead of the vehicle */
+		public int nextStop;
+
+		/**
+		 * predicted arrival at each stop of the trip, in seconds since the
+		 * epoch; only valid from nextStop on
+		 */
+		public final long[] arrivalTimes;
+
+		/**
+		 * trip update built from the current predictions, reset whenever they
+		 * change
+		 */
+		public TripUpdate tripUpdate;
+
+		VehicleProgress(TripStopTimes trip) {
+			this.trip = trip;
+			this.arrivalTimes = new long[trip.size()];
+		}
+
+		/**
+		 * @return the estimated time the vehicle left the first stop, in seconds
+		 *         since the epoch
+		 */
+		public long getEstimatedStartTime() {
+			return fixTime - Math.round(scheduleOffset);
+		}
+	}
+}
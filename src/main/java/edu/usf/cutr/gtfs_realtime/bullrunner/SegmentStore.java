@@ -0,0 +1,317 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The append-only segment files of a {@link FeedArchive} or a
+ * {@link PositionHistory}, one per partition of time, named
+ * &lt;prefix&gt;-&lt;start of the partition in seconds&gt;.seg.
+ *
+ * A segment is a sequence of records, each made of a header, a body and the
+ * CRC32 of the body. The header starts with the magic number of the store,
+ * the length of the body and the keys the record is indexed by, as longs. Next
+ * to each segment, a .idx file lists the keys and offset of every record, and
+ * is kept in memory. A record torn by a crash is cut off when the store is
+ * opened again, and the index rebuilt from the records that are left.
+ *
+ * The store is not thread-safe: its owner guards it with its own lock.
+ */
+class SegmentStore {
+
+	private static final Logger _log = LoggerFactory.getLogger(SegmentStore.class);
+
+	private final File _directory;
+
+	private final String _prefix;
+
+	private final int _magic;
+
+	private final int _headerLength;
+
+	private final int _keys;
+
+	private int _partitionSeconds = 3600;
+
+	private long _retentionSeconds = 86400;
+
+	/** the segments by the start of their partition */
+	private final TreeMap<Long, Segment> _segments = new TreeMap<Long, Segment>();
+
+	/**
+	 * @param headerLength
+	 *            length of the header of a record, in bytes
+	 * @param keys
+	 *            how many longs after the magic number and the body length
+	 *            of a header are kept in the index
+	 */
+	SegmentStore(File directory, String prefix, int magic, int headerLength, int keys) {
+		_directory = directory;
+		_prefix = prefix;
+		_magic = magic;
+		_headerLength = headerLength;
+		_keys = keys;
+	}
+
+	void setPartitionSeconds(int seconds) {
+		_partitionSeconds = seconds;
+	}
+
+	int getPartitionSeconds() {
+		return _partitionSeconds;
+	}
+
+	void setRetentionSeconds(long seconds) {
+		_retentionSeconds = seconds;
+	}
+
+	/**
+	 * Reads the index of the segments in the directory, cutting off records
+	 * torn by a crash.
+	 */
+	void open() throws IOException {
+		if (!_directory.isDirectory() && !_directory.mkdirs())
+			throw new IOException("can't create directory " + _directory);
+		File[] files = _directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(_prefix + "-") && name.endsWith(".seg");
+			}
+		});
+		for (File file : files) {
+			String name = file.getName();
+			long partition;
+			try {
+				partition = Long.parseLong(name.substring(_prefix.length() + 1, name.length() - ".seg".length()));
+			} catch (NumberFormatException ex) {
+				continue;
+			}
+			Segment segment = new Segment(partition);
+			segment.recover();
+			_segments.put(partition, segment);
+		}
+	}
+
+	/**
+	 * @param seconds
+	 *            in seconds since the epoch
+	 * @return the start of the partition the time falls in
+	 */
+	long partitionOf(long seconds) {
+		return seconds - ((seconds % _partitionSeconds) + _partitionSeconds) % _partitionSeconds;
+	}
+
+	/**
+	 * @return the segment of the partition, created if there is none yet
+	 */
+	Segment getSegment(long partition) {
+		Segment segment = _segments.get(partition);
+		if (segment == null) {
+			segment = new Segment(partition);
+			_segments.put(partition, segment);
+		}
+		return segment;
+	}
+
+	/**
+	 * @return the segments by the start of their partition
+	 */
+	NavigableMap<Long, Segment> getSegments() {
+		return _segments;
+	}
+
+	/**
+	 * Deletes the segments whose time ended before the retention period.
+	 *
+	 * @param now
+	 *            in seconds since the epoch
+	 * @param keep
+	 *            a partition that is kept whatever its age, along with the
+	 *            newer ones
+	 */
+	void expire(long now, long keep) {
+		while (!_segments.isEmpty()) {
+			Segment oldest = _segments.firstEntry().getValue();
+			if (oldest.partition + _partitionSeconds > now - _retentionSeconds || oldest.partition == keep)
+				break;
+			_segments.remove(oldest.partition);
+			oldest.delete();
+		}
+	}
+
+	/**
+	 * One segment file and its index of records.
+	 */
+	class Segment {
+
+		final long partition;
+
+		final File file;
+
+		final File indexFile;
+
+		/** the keys and offset of each record */
+		long[] index = new long[(_keys + 1) * 32];
+
+		int entries;
+
+		/** length of the complete records in the file */
+		long length;
+
+		private MappedByteBuffer _map;
+
+		Segment(long partition) {
+			this.partition = partition;
+			this.file = new File(_directory, _prefix + "-" + partition + ".seg");
+			this.indexFile = new File(_directory, _prefix + "-" + partition + ".idx");
+		}
+
+		/**
+		 * Reads the index, checks the records after the last indexed one and
+		 * cuts the file after the last complete record.
+		 */
+		void recover() throws IOException {
+			int entryLength = (_keys + 1) * 8;
+			long fileLength = file.length();
+			if (indexFile.exists()) {
+				ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+				for (int at = 0; at + entryLength <= entries.limit(); at += entryLength) {
+					long offset = entries.getLong(at + _keys * 8);
+					if (offset != length)
+						break;
+					int recordLength = recordLength(offset, fileLength);
+					if (recordLength < 0)
+						break;
+					addEntry(entries, at, offset);
+					length = offset + recordLength;
+				}
+			}
+			boolean rewriteIndex = entries * (long) entryLength != indexFile.length();
+			while (length < fileLength) {
+				int recordLength = recordLength(length, fileLength);
+				if (recordLength < 0 || !checkRecord(length, recordLength))
+					break;
+				addEntry(read(length, _headerLength), 8, length);
+				length += recordLength;
+				rewriteIndex = true;
+			}
+			if (length < fileLength) {
+				_log.warn("cutting " + (fileLength - length) + " bytes of torn records off " + file);
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+					channel.truncate(length);
+				}
+			}
+			if (rewriteIndex) {
+				ByteBuffer buffer = ByteBuffer.allocate(entries * entryLength);
+				for (int i = 0; i < entries * (_keys + 1); i++)
+					buffer.putLong(index[i]);
+				buffer.flip();
+				try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					while (buffer.hasRemaining())
+						channel.write(buffer);
+				}
+			}
+		}
+
+		/**
+		 * @return the length of the record at the offset, or -1 if the file
+		 *         ends within it
+		 */
+		private int recordLength(long offset, long fileLength) throws IOException {
+			if (offset + _headerLength > fileLength)
+				return -1;
+			ByteBuffer header = read(offset, 8);
+			if (header.getInt(0) != _magic)
+				return -1;
+			long recordLength = _headerLength + (long) header.getInt(4) + 4;
+			return offset + recordLength > fileLength ? -1 : (int) recordLength;
+		}
+
+		private boolean checkRecord(long offset, int recordLength) throws IOException {
+			ByteBuffer record = read(offset, recordLength);
+			CRC32 crc = new CRC32();
+			crc.update(record.array(), _headerLength, recordLength - _headerLength - 4);
+			return (int) crc.getValue() == record.getInt(recordLength - 4);
+		}
+
+		private ByteBuffer read(long offset, int length) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0)
+					;
+			}
+			buffer.flip();
+			return buffer;
+		}
+
+		/**
+		 * Adds the keys found in the buffer from the given index on.
+		 */
+		private void addEntry(ByteBuffer keys, int at, long offset) {
+			int stride = _keys + 1;
+			if ((entries + 1) * stride > index.length)
+				index = Arrays.copyOf(index, index.length * 2);
+			for (int k = 0; k < _keys; k++)
+				index[entries * stride + k] = keys.getLong(at + k * 8);
+			index[entries * stride + _keys] = offset;
+			entries++;
+		}
+
+		/**
+		 * Appends a complete record, whose header already holds its keys.
+		 */
+		void append(ByteBuffer record) throws IOException {
+			int recordLength = record.remaining();
+			ByteBuffer entry = ByteBuffer.allocate((_keys + 1) * 8);
+			for (int k = 0; k < _keys; k++)
+				entry.putLong(record.getLong(record.position() + 8 + k * 8));
+			entry.putLong(length).flip();
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE)) {
+				long position = length;
+				while (record.hasRemaining())
+					position += channel.write(record, position);
+			}
+			try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				while (entry.hasRemaining())
+					channel.write(entry);
+			}
+			addEntry(entry, 0, length);
+			length += recordLength;
+		}
+
+		/**
+		 * @return the complete records of the file, mapped again when it has
+		 *         grown since the last query
+		 */
+		ByteBuffer map() throws IOException {
+			if (_map == null || _map.capacity() < length) {
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					_map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+				}
+			}
+			return _map.duplicate();
+		}
+
+		void delete() {
+			_map = null;
+			if (!file.delete() || !indexFile.delete())
+				_log.warn("can't delete expired segment " + file);
+		}
+	}
+}
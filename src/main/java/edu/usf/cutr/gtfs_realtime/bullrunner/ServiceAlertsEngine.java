@@ -0,0 +1,318 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.transit.realtime.GtfsRealtime.Alert;
+import com.google.transit.realtime.GtfsRealtime.Alert.Cause;
+import com.google.transit.realtime.GtfsRealtime.Alert.Effect;
+import com.google.transit.realtime.GtfsRealtime.EntitySelector;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.TimeRange;
+import com.google.transit.realtime.GtfsRealtime.TranslatedString;
+
+/**
+ * Derives service alerts from the live state of the fleet, after each refresh:
+ *
+ * <ul>
+ * <li>a vehicle whose fixes stayed within a small radius for longer than the
+ * stall threshold, while its route runs a frequency window and it is matched
+ * to a trip away from the trip's terminal stops, where buses lay over</li>
+ * <li>a tracked route with no vehicle for a while during one of the
+ * frequencies.txt windows of its trips</li>
+ * <li>upstream failing to answer for longer than the outage threshold, which
+ * replaces the other alerts since the fleet state is stale then</li>
+ * </ul>
+ *
+ * Each alert has a stable id and keeps the entity built when it was raised, so
+ * an evaluation that finds the same alerts finds the same set and nothing is
+ * published; the methods return true only when an alert was raised or
+ * cleared. The engine is meant to be called from the refresh thread only.
+ */
+public class ServiceAlertsEngine {
+
+	private static final Logger _log = LoggerFactory.getLogger(ServiceAlertsEngine.class);
+
+	private static final String OUTAGE_ID = "upstream-outage";
+
+	private final BullRunnerConfigExtract _config;
+
+	private final ScheduleEtaPredictor _etaPredictor;
+
+	private int _stallSeconds = 600;
+
+	private double _stallRadiusMeters = 50;
+
+	private int _noServiceSeconds = 600;
+
+	private int _outageSeconds = 120;
+
+	/** where each vehicle was last seen moving, by handle */
+	private double[] _anchorLats = new double[0];
+
+	private double[] _anchorLons = new double[0];
+
+	/** in seconds since the epoch, 0 for a vehicle never seen */
+	private long[] _anchorTimes = new long[0];
+
+	/** since when each route in a frequency window has had no vehicle */
+	private final Map<String, Long> _emptySince = new HashMap<String, Long>();
+
+	private Map<String, FeedEntity> _alerts = new LinkedHashMap<String, FeedEntity>();
+
+	private Map<String, FeedEntity> _next = new LinkedHashMap<String, FeedEntity>();
+
+	/** when upstream last answered, in seconds since the epoch */
+	private long _lastSuccess = System.currentTimeMillis() / 1000;
+
+	public ServiceAlertsEngine(BullRunnerConfigExtract config, ScheduleEtaPredictor etaPredictor) {
+		_config = config;
+		_etaPredictor = etaPredictor;
+	}
+
+	/**
+	 * @param seconds
+	 *            how long a vehicle may stay in place before it is stalled
+	 */
+	public void setStallThreshold(int seconds) {
+		_stallSeconds = seconds;
+	}
+
+	/**
+	 * @param seconds
+	 *            how long a route may have no vehicle during a frequency
+	 *            window before it is reported
+	 */
+	public void setNoServiceThreshold(int seconds) {
+		_noServiceSeconds = seconds;
+	}
+
+	/**
+	 * @param seconds
+	 *            how long upstream may fail before the outage is reported
+	 */
+	public void setOutageThreshold(int seconds) {
+		_outageSeconds = seconds;
+	}
+
+	/**
+	 * Evaluates the alerts after a successful refresh, once the vehicles of the
+	 * snapshot were matched by the predictor.
+	 *
+	 * @param serviceIds
+	 *            the services of the current service day
+	 * @param previousServiceIds
+	 *            the services of the previous service day, whose trips past
+	 *            midnight may still be running
+	 * @param now
+	 *            in seconds since the epoch
+	 * @return true if the set of alerts changed
+	 */
+	public boolean update(FleetSnapshot snapshot, List<String> serviceIds, List<String> previousServiceIds,
+			long now) {
+		_lastSuccess = now;
+		_next.clear();
+		// without the static GTFS there are no windows to check the fleet against
+		if (_config.serviceCalendar == null)
+			return swap();
+		int secondsOfDay = new DateTime(now * 1000, _config.serviceCalendar.getTimeZone()).getSecondOfDay();
+
+		Set<String> routesInService = new HashSet<String>();
+		for (int i = 0; i < snapshot.size; i++) {
+			int vehicle = snapshot.vehicles[i];
+			if (vehicle >= _anchorTimes.length) {
+				int capacity = Math.max(vehicle + 1, _anchorTimes.length * 2);
+				_anchorLats = Arrays.copyOf(_anchorLats, capacity);
+				_anchorLons = Arrays.copyOf(_anchorLons, capacity);
+				_anchorTimes = Arrays.copyOf(_anchorTimes, capacity);
+			}
+			long fixTime = snapshot.fixTimes[i];
+			if (_anchorTimes[vehicle] == 0 || fixTime < _anchorTimes[vehicle] || PolylineIndex.distance(
+					_anchorLats[vehicle], _anchorLons[vehicle], snapshot.lats[i], snapshot.lons[i]) > _stallRadiusMeters) {
+				_anchorLats[vehicle] = snapshot.lats[i];
+				_anchorLons[vehicle] = snapshot.lons[i];
+				_anchorTimes[vehicle] = fixTime;
+			}
+			String route = snapshot.getRouteId(i);
+			routesInService.add(route);
+			if (fixTime - _anchorTimes[vehicle] < _stallSeconds
+					|| !isInWindow(route, serviceIds, previousServiceIds, secondsOfDay)
+					|| !isAwayFromTerminals(_etaPredictor.getProgress(snapshot.getVehicleId(i))))
+				continue;
+			String id = "stalled-" + snapshot.getVehicleId(i);
+			if (!carry(id))
+				_next.put(id, alert(id, _anchorTimes[vehicle], Cause.TECHNICAL_PROBLEM, Effect.SIGNIFICANT_DELAYS,
+						"Bus " + snapshot.getVehicleId(i) + " is stopped",
+						"Bus " + snapshot.getVehicleId(i) + " on route " + route + " has not moved since "
+								+ formatTime(_anchorTimes[vehicle]) + ".",
+						route));
+		}
+
+		for (String route : new HashSet<String>(_config.deviceRouteMap.values())) {
+			if (routesInService.contains(route) || !isInWindow(route, serviceIds, previousServiceIds, secondsOfDay)) {
+				_emptySince.remove(route);
+				continue;
+			}
+			Long since = _emptySince.get(route);
+			if (since == null) {
+				_emptySince.put(route, now);
+				continue;
+			}
+			if (now - since < _noServiceSeconds)
+				continue;
+			String id = "no-service-" + route;
+			if (!carry(id))
+				_next.put(id, alert(id, since, Cause.UNKNOWN_CAUSE, Effect.NO_SERVICE,
+						"No bus on route " + route,
+						"No bus has been running on route " + route + " since " + formatTime(since) + ".",
+						route));
+		}
+		return swap();
+	}
+
+	/**
+	 * Records a refresh that could not reach upstream.
+	 *
+	 * @param now
+	 *            in seconds since the epoch
+	 * @return true if the set of alerts changed
+	 */
+	public boolean upstreamFailed(long now) {
+		if (now - _lastSuccess < _outageSeconds)
+			return false;
+		_next.clear();
+		if (!carry(OUTAGE_ID)) {
+			Set<String> routes = new HashSet<String>();
+			for (Map.Entry<String, Map<String, List<String>>> entry : _config.routeTripsMap.entrySet())
+				routes.add(entry.getKey());
+			_next.put(OUTAGE_ID, alert(OUTAGE_ID, _lastSuccess, Cause.TECHNICAL_PROBLEM, Effect.UNKNOWN_EFFECT,
+					"Real-time information unavailable",
+					"Bus locations have not been received since " + formatTime(_lastSuccess)
+							+ ". Arrival predictions may be out of date.",
+					routes.toArray(new String[routes.size()])));
+		}
+		return swap();
+	}
+
+	/**
+	 * @return the current alerts as a full update of the alerts feed
+	 */
+	public GtfsRealtimeFullUpdate getFullUpdate() {
+		GtfsRealtimeFullUpdate update = new GtfsRealtimeFullUpdate();
+		for (FeedEntity alert : _alerts.values())
+			update.addEntity(alert);
+		return update;
+	}
+
+	/**
+	 * Keeps an alert that is still active with the entity it was raised with.
+	 *
+	 * @return false if the alert was not active
+	 */
+	private boolean carry(String id) {
+		FeedEntity alert = _alerts.get(id);
+		if (alert == null)
+			return false;
+		_next.put(id, alert);
+		return true;
+	}
+
+	/**
+	 * Makes the alerts found by the evaluation the current ones.
+	 *
+	 * @return true if an alert was raised or cleared
+	 */
+	private boolean swap() {
+		boolean changed = !_next.keySet().equals(_alerts.keySet());
+		if (changed) {
+			for (String id : _next.keySet()) {
+				if (!_alerts.containsKey(id))
+					_log.info("alert raised: " + id);
+			}
+			for (String id : _alerts.keySet()) {
+				if (!_next.containsKey(id))
+					_log.info("alert cleared: " + id);
+			}
+		}
+		Map<String, FeedEntity> alerts = _alerts;
+		_alerts = _next;
+		_next = alerts;
+		return changed;
+	}
+
+	/**
+	 * @return true if a trip of the route runs a frequency window at the time,
+	 *         either under the current services or, past midnight, under the
+	 *         services of the previous service day
+	 */
+	private boolean isInWindow(String route, List<String> serviceIds, List<String> previousServiceIds,
+			int secondsOfDay) {
+		return isInWindow(route, serviceIds, secondsOfDay)
+				|| isInWindow(route, previousServiceIds, secondsOfDay + 86400);
+	}
+
+	private boolean isInWindow(String route, List<String> serviceIds, int secondsOfDay) {
+		for (String serviceId : serviceIds) {
+			List<String> trips = _config.routeTripsMap.get(route, serviceId);
+			if (trips == null)
+				continue;
+			for (String trip : trips) {
+				if (_config.frequencyTrips.isInWindow(trip, secondsOfDay))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the vehicle is matched to a trip and is further than the
+	 *         stall radius from both of its terminal stops
+	 */
+	private boolean isAwayFromTerminals(ScheduleEtaPredictor.VehicleProgress progress) {
+		if (progress == null || progress.segment < 0)
+			return false;
+		double[] stopDistances = progress.trip.stopDistances;
+		return progress.distanceAlong - stopDistances[0] > _stallRadiusMeters
+				&& stopDistances[stopDistances.length - 1] - progress.distanceAlong > _stallRadiusMeters;
+	}
+
+	private String formatTime(long time) {
+		// the calendar is missing if the GTFS could not be loaded yet
+		DateTimeZone timeZone = _config.serviceCalendar == null ? DateTimeZone.getDefault()
+				: _config.serviceCalendar.getTimeZone();
+		return new DateTime(time * 1000, timeZone).toString("HH:mm");
+	}
+
+	private static FeedEntity alert(String id, long start, Cause cause, Effect effect, String header,
+			String description, String... routes) {
+		Alert.Builder alert = Alert.newBuilder();
+		alert.addActivePeriod(TimeRange.newBuilder().setStart(start));
+		for (String route : routes)
+			alert.addInformedEntity(EntitySelector.newBuilder().setRouteId(route));
+		alert.setCause(cause);
+		alert.setEffect(effect);
+		alert.setHeaderText(text(header));
+		alert.setDescriptionText(text(description));
+		FeedEntity.Builder entity = FeedEntity.newBuilder();
+		entity.setId(id);
+		entity.setAlert(alert);
+		return entity.build();
+	}
+
+	private static TranslatedString text(String text) {
+		TranslatedString.Builder translated = TranslatedString.newBuilder();
+		translated.addTranslationBuilder().setText(text).setLanguage("en");
+		return translated.build();
+	}
+}
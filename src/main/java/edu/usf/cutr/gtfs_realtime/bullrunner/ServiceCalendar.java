@@ -0,0 +1,244 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * The service ids active on each date, resolved once from calendar.txt and
+ * calendar_dates.txt. Every date of the feed's validity range gets one bit per
+ * service id in a single {@link BitSet}, so looking up a date is an index
+ * computation plus a few bit tests.
+ *
+ * Dates are taken in the agency timezone from agency.txt rather than the JVM
+ * default zone. Outside the validity range the weekly pattern of calendar.txt
+ * is used on its own, so an expired feed keeps running on its usual days.
+ */
+public class ServiceCalendar {
+
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	private final DateTimeZone _timeZone;
+
+	private final List<String> _serviceIds = new ArrayList<String>();
+
+	private final HashMap<String, Integer> _serviceIndex = new HashMap<String, Integer>();
+
+	/** per service: monday .. sunday, start date, end date */
+	private final List<int[]> _calendars = new ArrayList<int[]>();
+
+	/** per exception: service, date, exception_type */
+	private final List<int[]> _exceptions = new ArrayList<int[]>();
+
+	private int _firstDay;
+
+	private int _dayCount;
+
+	private BitSet _activeByDay = new BitSet();
+
+	private BitSet _activeByWeekday = new BitSet();
+
+	public ServiceCalendar(DateTimeZone timeZone) {
+		_timeZone = timeZone;
+	}
+
+	public DateTimeZone getTimeZone() {
+		return _timeZone;
+	}
+
+	/**
+	 * Adds one row of calendar.txt.
+	 *
+	 * @param weekdays
+	 *            the monday .. sunday columns
+	 * @param startDate
+	 *            start_date as yyyyMMdd
+	 * @param endDate
+	 *            end_date as yyyyMMdd
+	 */
+	public void addCalendar(String serviceId, boolean[] weekdays, String startDate, String endDate) {
+		int[] calendar = new int[9];
+		for (int i = 0; i < 7; i++)
+			calendar[i] = weekdays[i] ? 1 : 0;
+		calendar[7] = parseDate(startDate);
+		calendar[8] = parseDate(endDate);
+		_calendars.set(indexOf(serviceId, true), calendar);
+	}
+
+	/**
+	 * Adds one row of calendar_dates.txt; exception_type 1 adds the service on
+	 * that date and 2 removes it.
+	 */
+	public void addException(String serviceId, String date, int exceptionType) {
+		_exceptions.add(new int[] {indexOf(serviceId, true), parseDate(date), exceptionType});
+	}
+
+	/**
+	 * Adds a calendar as returned by {@link #getCalendar(int)}, with the dates
+	 * already counted in days.
+	 */
+	void addCalendar(String serviceId, int[] calendar) {
+		_calendars.set(indexOf(serviceId, true), calendar.clone());
+	}
+
+	/**
+	 * Adds an exception as returned by {@link #getException(int)}, with the date
+	 * already counted in days.
+	 */
+	void addException(String serviceId, int day, int exceptionType) {
+		_exceptions.add(new int[] {indexOf(serviceId, true), day, exceptionType});
+	}
+
+	int getServiceCount() {
+		return _serviceIds.size();
+	}
+
+	String getServiceId(int service) {
+		return _serviceIds.get(service);
+	}
+
+	/**
+	 * @return monday .. sunday, then start and end date as days from 1970-01-01
+	 */
+	int[] getCalendar(int service) {
+		return _calendars.get(service).clone();
+	}
+
+	int getExceptionCount() {
+		return _exceptions.size();
+	}
+
+	/**
+	 * @return service index, date as a day from 1970-01-01, exception_type
+	 */
+	int[] getException(int exception) {
+		return _exceptions.get(exception).clone();
+	}
+
+	/**
+	 * Resolves every date of the validity range into the bitset.
+	 */
+	public void build() {
+		int first = Integer.MAX_VALUE, last = Integer.MIN_VALUE;
+		for (int[] calendar : _calendars) {
+			if (calendar[7] > calendar[8])
+				continue;
+			first = Math.min(first, calendar[7]);
+			last = Math.max(last, calendar[8]);
+		}
+		for (int[] exception : _exceptions) {
+			first = Math.min(first, exception[1]);
+			last = Math.max(last, exception[1]);
+		}
+		int services = _serviceIds.size();
+		_firstDay = first;
+		_dayCount = first > last ? 0 : last - first + 1;
+		_activeByDay = new BitSet(_dayCount * services);
+		_activeByWeekday = new BitSet(7 * services);
+
+		for (int service = 0; service < _calendars.size(); service++) {
+			int[] calendar = _calendars.get(service);
+			for (int weekday = 0; weekday < 7; weekday++) {
+				if (calendar[weekday] == 1)
+					_activeByWeekday.set(weekday * services + service);
+			}
+			for (int day = calendar[7]; day <= calendar[8]; day++) {
+				if (calendar[weekdayOf(day)] == 1)
+					_activeByDay.set((day - _firstDay) * services + service);
+			}
+		}
+		for (int[] exception : _exceptions) {
+			int bit = (exception[1] - _firstDay) * services + exception[0];
+			if (exception[2] == 1)
+				_activeByDay.set(bit);
+			else if (exception[2] == 2)
+				_activeByDay.clear(bit);
+		}
+	}
+
+	/**
+	 * @return the day, counted from 1970-01-01, that the instant falls on in
+	 *         the agency timezone
+	 */
+	public int getDay(long millis) {
+		long local = millis + _timeZone.getOffset(millis);
+		return (int) (local >= 0 ? local / MILLIS_PER_DAY : (local + 1) / MILLIS_PER_DAY - 1);
+	}
+
+	public boolean isInValidityRange(int day) {
+		return day >= _firstDay && day < _firstDay + _dayCount;
+	}
+
+	public boolean isActive(String serviceId, long millis) {
+		Integer service = _serviceIndex.get(serviceId);
+		return service != null && isActive(service, getDay(millis));
+	}
+
+	/**
+	 * @return the service ids active on the date the instant falls on, in the
+	 *         order they appear in calendar.txt
+	 */
+	public List<String> getActiveServiceIds(long millis) {
+		return getActiveServiceIds(getDay(millis));
+	}
+
+	/**
+	 * @return the service ids active on the date before the one the instant
+	 *         falls on, whose trips past midnight may still be running
+	 */
+	public List<String> getPreviousServiceIds(long millis) {
+		return getActiveServiceIds(getDay(millis) - 1);
+	}
+
+	private List<String> getActiveServiceIds(int day) {
+		List<String> active = new ArrayList<String>(2);
+		for (int service = 0; service < _serviceIds.size(); service++) {
+			if (isActive(service, day))
+				active.add(_serviceIds.get(service));
+		}
+		return active;
+	}
+
+	private boolean isActive(int service, int day) {
+		int services = _serviceIds.size();
+		if (isInValidityRange(day))
+			return _activeByDay.get((day - _firstDay) * services + service);
+		return _activeByWeekday.get(weekdayOf(day) * services + service);
+	}
+
+	private int indexOf(String serviceId, boolean create) {
+		Integer index = _serviceIndex.get(serviceId);
+		if (index == null && create) {
+			index = _serviceIds.size();
+			_serviceIds.add(serviceId);
+			_serviceIndex.put(serviceId, index);
+			// services only found in calendar_dates.txt never run on a weekday
+			while (_calendars.size() < _serviceIds.size())
+				_calendars.add(new int[] {0, 0, 0, 0, 0, 0, 0, 0, -1});
+		}
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * @return 0 for monday .. 6 for sunday, matching the calendar.txt columns
+	 */
+	private static int weekdayOf(int day) {
+		// 1970-01-01 was a thursday
+		return ((day + 3) % 7 + 7) % 7;
+	}
+
+	/**
+	 * @return the yyyyMMdd date as a day counted from 1970-01-01
+	 */
+	private static int parseDate(String date) {
+		date = date.trim();
+		DateTime midnight = new DateTime(Integer.parseInt(date.substring(0, 4)),
+				Integer.parseInt(date.substring(4, 6)), Integer.parseInt(date.substring(6, 8)), 0, 0, 0, 0,
+				DateTimeZone.UTC);
+		return (int) (midnight.getMillis() / MILLIS_PER_DAY);
+	}
+}
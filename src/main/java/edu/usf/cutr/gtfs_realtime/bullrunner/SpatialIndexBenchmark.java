@@ -0,0 +1,90 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Random;
+
+/**
+ * Measures nearest-stop and along-route queries per second on the bundled GTFS,
+ * against a brute-force scan of every stop and every segment. Both sides must
+ * agree on every query, so this doubles as a check of the grid search.
+ *
+ * Run from the same directory as the feed generator, so ../GTFS/ resolves:
+ *
+ * java -cp cutr-gtfs-realtime-bullrunner-0.9.0-SNAPSHOT-withAllDependencies.jar edu.usf.cutr.gtfs_realtime.bullrunner.SpatialIndexBenchmark [queries]
+ */
+public class SpatialIndexBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int queries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		BullRunnerConfigExtract config = new BullRunnerConfigExtract();
+		config.extractStops();
+		config.extractTripStopTimes();
+		config.extractShapes();
+		config.buildSpatialIndex();
+		StopSpatialIndex index = config.stopIndex;
+		PolylineIndex polylines = config.polylines;
+		System.out.println(index.size() + " stops, " + polylines.size() + " polylines");
+
+		// GPS fixes of buses are near their route, so queries are drawn around
+		// the stops with a couple of hundred meters of noise
+		Random random = new Random(42);
+		double[] lats = new double[queries];
+		double[] lons = new double[queries];
+		for (int i = 0; i < queries; i++) {
+			int stop = random.nextInt(index.size());
+			lats[i] = index.getLat(stop) + random.nextGaussian() * 200 / PolylineIndex.METERS_PER_DEGREE;
+			lons[i] = index.getLon(stop) + random.nextGaussian() * 200 / PolylineIndex.METERS_PER_DEGREE;
+		}
+
+		for (int k : new int[] {1, 5}) {
+			int[] stops = new int[k], expectedStops = new int[k];
+			double[] distances = new double[k], expectedDistances = new double[k];
+			for (int i = 0; i < Math.min(queries, 10000); i++) {
+				int found = index.nearest(lats[i], lons[i], k, stops, distances);
+				index.nearestBruteForce(lats[i], lons[i], k, expectedStops, expectedDistances);
+				for (int j = 0; j < found; j++) {
+					if (distances[j] != expectedDistances[j])
+						throw new IllegalStateException("grid and scan disagree at query " + i);
+				}
+			}
+			for (int round = 0; round < 3; round++) {
+				long start = System.nanoTime();
+				double checksum = 0;
+				for (int i = 0; i < queries; i++) {
+					index.nearest(lats[i], lons[i], k, stops, distances);
+					checksum += distances[0];
+				}
+				long grid = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < queries; i++) {
+					index.nearestBruteForce(lats[i], lons[i], k, stops, distances);
+					checksum -= distances[0];
+				}
+				long scan = System.nanoTime() - start;
+				System.out.println(String.format("k=%d  grid %,.0f q/s  brute force %,.0f q/s  (%.4f)", k,
+						queries / (grid / 1e9), queries / (scan / 1e9), checksum));
+			}
+		}
+
+		PolylineIndex.Projection projection = new PolylineIndex.Projection();
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			double checksum = 0;
+			for (int i = 0; i < queries; i++) {
+				int polyline = i % polylines.size();
+				int segment = polylines.segmentAt(polyline, polylines.getLength(polyline) / 2);
+				polylines.project(polyline, lats[i], lons[i], segment - 2, segment + 4, projection);
+				checksum += projection.distanceAlong;
+			}
+			long window = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < queries; i++) {
+				polylines.project(i % polylines.size(), lats[i], lons[i], projection);
+				checksum -= projection.distanceAlong;
+			}
+			long whole = System.nanoTime() - start;
+			System.out.println(String.format("projection  windowed %,.0f q/s  whole polyline %,.0f q/s  (%.1f)",
+					queries / (window / 1e9), queries / (whole / 1e9), checksum));
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Arrays;
+
+/**
+ * Detects when vehicles actually arrive at and leave their stops. Every stop
+ * has a circular geofence around it; each new fix is looked up in the
+ * {@link StopSpatialIndex}, and the stops found within the radius are matched
+ * against the next few stops of the vehicle's trip. The first fix inside a
+ * fence is the arrival at that stop and the last fix inside it the departure,
+ * which is final once a fix outside the fence shows the vehicle left.
+ *
+ * The observed times are kept per vehicle for the trip instance it is running,
+ * in arrays indexed by the stop's position in the trip, so the table holds one
+ * trip instance per vehicle and never grows past the fleet. A vehicle starts a
+ * new instance when its trip changes or when it reaches the first stop again
+ * after the last. Matching a fix walks a few cells of the grid and a few stops
+ * of the trip and allocates nothing.
+ */
+public class StopEventDetector {
+
+	/** how many stops past the next one a fix is matched against */
+	private static final int LOOKAHEAD_STOPS = 5;
+
+	private final StopSpatialIndex _stops;
+
+	private double _radiusMeters = 40;
+
+	private final int[] _found = new int[16];
+
+	private final double[] _foundDistances = new double[16];
+
+	/** trip instance of each vehicle by its handle */
+	private TripEvents[] _events = new TripEvents[0];
+
+	private long _arrivals;
+
+	public StopEventDetector(StopSpatialIndex stops) {
+		_stops = stops;
+	}
+
+	/**
+	 * @param meters
+	 *            radius of the geofence around each stop
+	 */
+	public void setRadius(double meters) {
+		_radiusMeters = meters;
+	}
+
+	/**
+	 * Tests a new fix of a vehicle against the geofences of its trip's next
+	 * stops.
+	 *
+	 * @param vehicle
+	 *            handle of the vehicle id
+	 * @param fixTime
+	 *            in seconds since the epoch
+	 * @return the stop events of the vehicle's trip instance
+	 */
+	public TripEvents update(int vehicle, TripStopTimes trip, long fixTime, double lat, double lon) {
+		if (vehicle >= _events.length)
+			_events = Arrays.copyOf(_events, Math.max(vehicle + 1, _events.length * 2));
+		TripEvents events = _events[vehicle];
+		if (events == null || events.trip != trip) {
+			events = new TripEvents(trip);
+			_events[vehicle] = events;
+		}
+		events.arrivedAt = -1;
+		if (fixTime <= events.lastFixTime || trip.stopIndexes == null)
+			return events;
+		events.lastFixTime = fixTime;
+
+		int from = events.inside >= 0 ? events.inside : events.nextStop;
+		int stop = findStop(trip, lat, lon, from, Math.min(trip.size(), from + LOOKAHEAD_STOPS + 1));
+		if (stop < 0 && events.nextStop >= trip.size() - 1 && trip.size() > 1
+				&& findStop(trip, lat, lon, 0, 1) == 0) {
+			// back at the first stop after the last one: the next loop
+			events = new TripEvents(trip);
+			events.lastFixTime = fixTime;
+			_events[vehicle] = events;
+			stop = 0;
+		}
+
+		if (events.inside >= 0 && stop == events.inside) {
+			events.departures[stop] = fixTime;
+			return events;
+		}
+		events.inside = -1;
+		if (stop >= 0) {
+			events.arrivals[stop] = fixTime;
+			events.departures[stop] = fixTime;
+			events.inside = stop;
+			events.arrivedAt = stop;
+			events.nextStop = stop + 1;
+			_arrivals++;
+		}
+		return events;
+	}
+
+	/**
+	 * @return the first stop of the trip in [from, to) whose geofence holds the
+	 *         point, or -1
+	 */
+	private int findStop(TripStopTimes trip, double lat, double lon, int from, int to) {
+		int found = _stops.withinRadius(lat, lon, _radiusMeters, _found, _foundDistances);
+		int best = -1;
+		for (int f = 0; f < found; f++) {
+			for (int k = from; k < to && (best < 0 || k < best); k++) {
+				if (trip.stopIndexes[k] == _found[f]) {
+					best = k;
+					break;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return the stop events of the trip instance a vehicle is running, or
+	 *         null
+	 */
+	public TripEvents getEvents(int vehicle) {
+		return vehicle >= 0 && vehicle < _events.length ? _events[vehicle] : null;
+	}
+
+	/**
+	 * @return how many arrivals were detected so far
+	 */
+	public long getArrivalCount() {
+		return _arrivals;
+	}
+
+	/**
+	 * The observed arrival and departure times of one trip instance, indexed by
+	 * the position of the stop in the trip; 0 where nothing was observed.
+	 */
+	public static class TripEvents {
+
+		public final TripStopTimes trip;
+
+		/** in seconds since the epoch */
+		public final long[] arrivals;
+
+		/**
+		 * in seconds since the epoch; at the stop the vehicle is still inside,
+		 * the time of its latest fix there
+		 */
+		public final long[] departures;
+
+		/** the stop whose geofence the vehicle is inside, -1 if none */
+		public int inside = -1;
+
+		/** the first stop the vehicle has not reached yet */
+		public int nextStop;
+
+		/** the stop the vehicle arrived at with the latest fix, -1 if none */
+		public int arrivedAt = -1;
+
+		long lastFixTime = Long.MIN_VALUE;
+
+		TripEvents(TripStopTimes trip) {
+			this.trip = trip;
+			this.arrivals = new long[trip.size()];
+			this.departures = new long[trip.size()];
+		}
+
+		/**
+		 * @return true if the vehicle was seen leaving the stop
+		 */
+		public boolean hasDeparted(int stop) {
+			return arrivals[stop] != 0 && stop != inside;
+		}
+	}
+}
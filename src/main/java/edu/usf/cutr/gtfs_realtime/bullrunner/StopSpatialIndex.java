@@ -0,0 +1,254 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A uniform grid over the stops of stops.txt. Stops are sorted by cell into one
+ * packed array, and cellStart[c] .. cellStart[c + 1] - 1 are the stops of cell
+ * c, so a query only walks a few int and double arrays.
+ *
+ * Nearest-stop queries search rings of cells around the query point and stop
+ * as soon as the k-th best stop is closer than anything the next ring could
+ * hold. Results go into arrays owned by the caller; nothing is allocated per
+ * query.
+ */
+public class StopSpatialIndex {
+
+	private static final double METERS_PER_DEGREE = PolylineIndex.METERS_PER_DEGREE;
+
+	private final String[] _stopIds;
+
+	private final double[] _lats;
+
+	private final double[] _lons;
+
+	private final HashMap<String, Integer> _indexById = new HashMap<String, Integer>();
+
+	private final double _minLat;
+
+	private final double _minLon;
+
+	private final double _cellLat;
+
+	private final double _cellLon;
+
+	private final int _rows;
+
+	private final int _cols;
+
+	private final int[] _cellStart;
+
+	private final int[] _cellStops;
+
+	public StopSpatialIndex(String[] stopIds, double[] lats, double[] lons,
+			double cellSizeMeters) {
+		_stopIds = stopIds;
+		_lats = lats;
+		_lons = lons;
+		int n = stopIds.length;
+
+		double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+		double minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			_indexById.put(stopIds[i], i);
+			minLat = Math.min(minLat, lats[i]);
+			maxLat = Math.max(maxLat, lats[i]);
+			minLon = Math.min(minLon, lons[i]);
+			maxLon = Math.max(maxLon, lons[i]);
+		}
+		if (n == 0) {
+			minLat = maxLat = minLon = maxLon = 0;
+		}
+		_minLat = minLat;
+		_minLon = minLon;
+		_cellLat = cellSizeMeters / METERS_PER_DEGREE;
+		_cellLon = cellSizeMeters
+				/ (METERS_PER_DEGREE * Math.cos(Math.toRadians((minLat + maxLat) / 2)));
+		_rows = (int) ((maxLat - minLat) / _cellLat) + 1;
+		_cols = (int) ((maxLon - minLon) / _cellLon) + 1;
+
+		int[] cellOfStop = new int[n];
+		_cellStart = new int[_rows * _cols + 1];
+		for (int i = 0; i < n; i++) {
+			cellOfStop[i] = row(lats[i]) * _cols + col(lons[i]);
+			_cellStart[cellOfStop[i] + 1]++;
+		}
+		for (int c = 0; c < _rows * _cols; c++)
+			_cellStart[c + 1] += _cellStart[c];
+		int[] fill = new int[_rows * _cols];
+		_cellStops = new int[n];
+		for (int i = 0; i < n; i++) {
+			int c = cellOfStop[i];
+			_cellStops[_cellStart[c] + fill[c]++] = i;
+		}
+	}
+
+	/**
+	 * Builds an index with cells of about 500 meters, which keeps a few stops
+	 * per cell in town.
+	 */
+	public static StopSpatialIndex build(Map<String, double[]> stopLocationMap) {
+		int n = stopLocationMap.size();
+		String[] ids = new String[n];
+		double[] lats = new double[n];
+		double[] lons = new double[n];
+		int i = 0;
+		for (Map.Entry<String, double[]> entry : stopLocationMap.entrySet()) {
+			ids[i] = entry.getKey();
+			lats[i] = entry.getValue()[0];
+			lons[i] = entry.getValue()[1];
+			i++;
+		}
+		return new StopSpatialIndex(ids, lats, lons, 500);
+	}
+
+	public int size() {
+		return _stopIds.length;
+	}
+
+	public String getStopId(int stop) {
+		return _stopIds[stop];
+	}
+
+	public double getLat(int stop) {
+		return _lats[stop];
+	}
+
+	public double getLon(int stop) {
+		return _lons[stop];
+	}
+
+	/**
+	 * @return the index of the stop with the given id, or -1
+	 */
+	public int indexOf(String stopId) {
+		Integer index = _indexById.get(stopId);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Finds the k stops closest to a point.
+	 *
+	 * @param outStops
+	 *            receives the stop indexes, closest first; must hold k entries
+	 * @param outDistances
+	 *            receives the matching distances in meters
+	 * @return the number of stops found, which is less than k only if the
+	 *         index has fewer stops
+	 */
+	public int nearest(double lat, double lon, int k, int[] outStops,
+			double[] outDistances) {
+		k = Math.min(k, _stopIds.length);
+		if (k <= 0)
+			return 0;
+		double lonScale = Math.cos(Math.toRadians(lat)) * METERS_PER_DEGREE;
+		double ringWidth = Math.min(_cellLat * METERS_PER_DEGREE, _cellLon * lonScale);
+		int row = (int) Math.floor((lat - _minLat) / _cellLat);
+		int col = (int) Math.floor((lon - _minLon) / _cellLon);
+		int maxRing = Math.max(Math.max(row, _rows - 1 - row), Math.max(col, _cols - 1 - col));
+
+		int found = 0;
+		for (int ring = 0; ring <= maxRing; ring++) {
+			for (int r = row - ring; r <= row + ring; r++) {
+				if (r < 0 || r >= _rows)
+					continue;
+				boolean edgeRow = r == row - ring || r == row + ring;
+				int step = edgeRow ? 1 : 2 * ring;
+				for (int c = col - ring; c <= col + ring; c += Math.max(step, 1)) {
+					if (c < 0 || c >= _cols)
+						continue;
+					int cell = r * _cols + c;
+					for (int e = _cellStart[cell]; e < _cellStart[cell + 1]; e++) {
+						int stop = _cellStops[e];
+						double dx = (_lons[stop] - lon) * lonScale;
+						double dy = (_lats[stop] - lat) * METERS_PER_DEGREE;
+						found = insert(stop, Math.sqrt(dx * dx + dy * dy), k, found,
+								outStops, outDistances);
+					}
+				}
+			}
+			if (found == k && outDistances[k - 1] <= ring * ringWidth)
+				break;
+		}
+		return found;
+	}
+
+	/**
+	 * Finds every stop within a radius of a point, in no particular order.
+	 *
+	 * @return the number of stops written to outStops, at most outStops.length
+	 */
+	public int withinRadius(double lat, double lon, double radiusMeters,
+			int[] outStops, double[] outDistances) {
+		double lonScale = Math.cos(Math.toRadians(lat)) * METERS_PER_DEGREE;
+		int rowFrom = Math.max(0, row(lat - radiusMeters / METERS_PER_DEGREE));
+		int rowTo = Math.min(_rows - 1, row(lat + radiusMeters / METERS_PER_DEGREE));
+		int colFrom = Math.max(0, col(lon - radiusMeters / lonScale));
+		int colTo = Math.min(_cols - 1, col(lon + radiusMeters / lonScale));
+		int found = 0;
+		for (int r = rowFrom; r <= rowTo; r++) {
+			for (int c = colFrom; c <= colTo; c++) {
+				int cell = r * _cols + c;
+				for (int e = _cellStart[cell]; e < _cellStart[cell + 1]; e++) {
+					int stop = _cellStops[e];
+					double dx = (_lons[stop] - lon) * lonScale;
+					double dy = (_lats[stop] - lat) * METERS_PER_DEGREE;
+					double d = Math.sqrt(dx * dx + dy * dy);
+					if (d <= radiusMeters && found < outStops.length) {
+						outStops[found] = stop;
+						outDistances[found] = d;
+						found++;
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Same as {@link #nearest} but scans every stop; kept as the reference the
+	 * grid is checked and benchmarked against.
+	 */
+	public int nearestBruteForce(double lat, double lon, int k, int[] outStops,
+			double[] outDistances) {
+		k = Math.min(k, _stopIds.length);
+		double lonScale = Math.cos(Math.toRadians(lat)) * METERS_PER_DEGREE;
+		int found = 0;
+		for (int stop = 0; stop < _stopIds.length; stop++) {
+			double dx = (_lons[stop] - lon) * lonScale;
+			double dy = (_lats[stop] - lat) * METERS_PER_DEGREE;
+			found = insert(stop, Math.sqrt(dx * dx + dy * dy), k, found, outStops,
+					outDistances);
+		}
+		return found;
+	}
+
+	private int row(double lat) {
+		return Math.max(0, Math.min(_rows - 1, (int) ((lat - _minLat) / _cellLat)));
+	}
+
+	private int col(double lon) {
+		return Math.max(0, Math.min(_cols - 1, (int) ((lon - _minLon) / _cellLon)));
+	}
+
+	/**
+	 * Inserts a candidate into the sorted top-k arrays.
+	 *
+	 * @return the new number of entries
+	 */
+	private static int insert(int stop, double distance, int k, int found,
+			int[] outStops, double[] outDistances) {
+		if (found == k && distance >= outDistances[k - 1])
+			return found;
+		int i = found == k ? k - 1 : found++;
+		while (i > 0 && outDistances[i - 1] > distance) {
+			outStops[i] = outStops[i - 1];
+			outDistances[i] = outDistances[i - 1];
+			i--;
+		}
+		outStops[i] = stop;
+		outDistances[i] = distance;
+		return found;
+	}
+}
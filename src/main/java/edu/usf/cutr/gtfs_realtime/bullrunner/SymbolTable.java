@@ -0,0 +1,53 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns ids such as vehicle and route ids as dense int handles, 0, 1, 2 and
+ * so on in the order they are first seen, so the ids can be kept in int arrays
+ * and tables can be indexed by them. A string is only kept once however many
+ * refreshes it appears in.
+ */
+public class SymbolTable {
+
+	private final Map<String, Integer> _handles = new HashMap<String, Integer>();
+
+	private String[] _symbols = new String[64];
+
+	private int _size;
+
+	/**
+	 * @return the handle of the id, made the first time it is seen
+	 */
+	public synchronized int intern(String symbol) {
+		Integer handle = _handles.get(symbol);
+		if (handle != null)
+			return handle;
+		if (_size == _symbols.length)
+			_symbols = Arrays.copyOf(_symbols, _size * 2);
+		_symbols[_size] = symbol;
+		_handles.put(symbol, _size);
+		return _size++;
+	}
+
+	/**
+	 * @return the handle of the id, or -1 if it was never interned
+	 */
+	public synchronized int find(String symbol) {
+		Integer handle = _handles.get(symbol);
+		return handle == null ? -1 : handle;
+	}
+
+	/**
+	 * @return the id of the handle
+	 */
+	public synchronized String get(int handle) {
+		return _symbols[handle];
+	}
+
+	public synchronized int size() {
+		return _size;
+	}
+}
@@ -0,0 +1,82 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Arrays;
+
+/**
+ * Runs the feed generator against a {@link TraccarSimulator} for fleets of
+ * growing size and reports, for each, how long a refresh takes, how much heap
+ * is in use afterwards and how large the upstream response and the published
+ * trip updates feed are. By default the fleets are 10, 100, 1,000 and 10,000
+ * vehicles; each is refreshed a few times to warm up before the refreshes that
+ * are timed.
+ *
+ * Run from the same directory as the feed generator, so ../GTFS/ resolves:
+ *
+ * java -cp cutr-gtfs-realtime-bullrunner-0.9.0-SNAPSHOT-withAllDependencies.jar edu.usf.cutr.gtfs_realtime.bullrunner.TraccarLoadDriver [cycles] [vehicles...]
+ */
+public class TraccarLoadDriver {
+
+	private static final int WARMUP_CYCLES = 3;
+
+	public static void main(String[] args) throws Exception {
+		int cycles = args.length > 0 ? Math.max(1, Integer.parseInt(args[0])) : 10;
+		int[] fleets = {10, 100, 1000, 10000};
+		if (args.length > 1) {
+			fleets = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++)
+				fleets[i - 1] = Integer.parseInt(args[i]);
+		}
+
+		BullRunnerConfigExtract gtfs = new BullRunnerConfigExtract();
+		gtfs.loadStaticIndex();
+
+		System.out.println(String.format("%8s %10s %10s %10s %10s %12s %12s", "vehicles", "mean ms", "p50 ms",
+				"max ms", "heap MB", "upstream KB", "feed KB"));
+		for (int vehicles : fleets) {
+			TraccarSimulator simulator = new TraccarSimulator(gtfs, vehicles);
+			String url = simulator.start(0);
+			try {
+				run(simulator, url, cycles);
+			} finally {
+				simulator.stop();
+			}
+		}
+	}
+
+	private static void run(TraccarSimulator simulator, String url, int cycles) throws Exception {
+		BullRunnerConfigExtract providerConfig = new BullRunnerConfigExtract();
+		GtfsRealtimeExporterCutr tripUpdates = new GtfsRealtimeExporterCutr();
+		GtfsRealtimeExporterCutr vehiclePositions = new GtfsRealtimeExporterCutr();
+		GtfsRealtimeProviderImpl provider = new GtfsRealtimeProviderImpl();
+		provider.setProvider(providerConfig);
+		provider.setTripUpdatesSink(tripUpdates);
+		provider.setVehiclePositionsSink(vehiclePositions);
+		provider.setUpstreamUrl(url);
+		provider.loadConfiguration();
+
+		for (int i = 0; i < WARMUP_CYCLES; i++)
+			provider.refresh();
+
+		long[] times = new long[cycles];
+		for (int i = 0; i < cycles; i++) {
+			long start = System.nanoTime();
+			provider.refresh();
+			times[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+		long total = 0;
+		for (long time : times)
+			total += time;
+
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long heap = runtime.totalMemory() - runtime.freeMemory();
+		int upstream = simulator.renderPositions(0).length();
+		int feed = tripUpdates.getSnapshot().getBinary().length;
+
+		System.out.println(String.format("%,8d %10.1f %10.1f %10.1f %10.1f %,12.1f %,12.1f",
+				simulator.getVehicleCount(), total / 1e6 / cycles, times[cycles / 2] / 1e6,
+				times[cycles - 1] / 1e6, heap / 1048576.0, upstream / 1024.0, feed / 1024.0));
+		provider.stop();
+	}
+}
@@ -0,0 +1,382 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for the Traccar server, serving /api/devices, /api/positions and
+ * /api/positions?deviceId= in the same JSON shapes, for a fleet of virtual
+ * buses driving the trips of the bundled GTFS. Each bus is one device named
+ * after the route_id of its trip, and loops over the trip's stops from
+ * stops.txt, taking the time between stops from stop_times.txt; buses on the
+ * same trip are spread evenly along it.
+ *
+ * The fixes can be made as rough as the real ones: every fix is moved by GPS
+ * jitter, a device can drop out and keep reporting its last fix, and every
+ * response can be held back to mimic a slow server. The credentials are not
+ * checked.
+ *
+ * Run from the same directory as the feed generator, so ../GTFS/ resolves:
+ *
+ * java -cp cutr-gtfs-realtime-bullrunner-0.9.0-SNAPSHOT-withAllDependencies.jar edu.usf.cutr.gtfs_realtime.bullrunner.TraccarSimulator [vehicles] [port]
+ *
+ * and start the feed generator with --upstreamUrl=http://localhost:8082
+ */
+public class TraccarSimulator {
+
+	private static final Logger _log = LoggerFactory.getLogger(TraccarSimulator.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** dwell at the last stop before a bus starts the trip again, in seconds */
+	private static final int LAYOVER = 300;
+
+	/** time between stops of a trip whose stop_times.txt has no times, in seconds */
+	private static final int DEFAULT_STOP_INTERVAL = 120;
+
+	private static final double METERS_PER_KNOT = 1852 / 3600.0;
+
+	private final DateTimeFormatter _timeFormat = ISODateTimeFormat.dateTime().withZoneUTC();
+
+	private final int _vehicleCount;
+
+	private final TripStopTimes[] _trips;
+
+	private final String[] _routes;
+
+	private final int[] _phases;
+
+	private final int[] _occupancy;
+
+	/** the last fix of each device, kept so a device that drops out keeps reporting it */
+	private final double[] _lats, _lons, _courses, _speeds;
+
+	private final long[] _fixTimes;
+
+	private final Random _random = new Random(42);
+
+	private double _jitterMeters = 5;
+
+	private double _dropoutProbability;
+
+	private int _latencyMillis;
+
+	private HttpServer _server;
+
+	private ExecutorService _serverExecutor;
+
+	/**
+	 * @param config
+	 *            the GTFS the buses drive, with its static index loaded
+	 */
+	public TraccarSimulator(BullRunnerConfigExtract config, int vehicleCount) {
+		List<String> tripIds = new ArrayList<String>();
+		for (String tripId : config.tripStopTimesMap.keySet()) {
+			if (config.tripStopTimesMap.get(tripId).size() >= 2)
+				tripIds.add(tripId);
+		}
+		if (tripIds.isEmpty())
+			throw new IllegalArgumentException("the GTFS has no trip with two stops to drive");
+		Collections.sort(tripIds);
+		List<String> tripRoutes = new ArrayList<String>();
+		for (int i = 0; i < tripIds.size(); i++)
+			tripRoutes.add(null);
+		for (Map.Entry<String, Map<String, List<String>>> route : config.routeTripsMap.entrySet()) {
+			for (List<String> trips : route.getValue().values()) {
+				for (String trip : trips) {
+					int index = tripIds.indexOf(trip);
+					if (index >= 0)
+						tripRoutes.set(index, route.getKey());
+				}
+			}
+		}
+
+		_vehicleCount = vehicleCount;
+		_trips = new TripStopTimes[vehicleCount];
+		_routes = new String[vehicleCount];
+		_phases = new int[vehicleCount];
+		_occupancy = new int[vehicleCount];
+		_lats = new double[vehicleCount];
+		_lons = new double[vehicleCount];
+		_courses = new double[vehicleCount];
+		_speeds = new double[vehicleCount];
+		_fixTimes = new long[vehicleCount];
+		for (int i = 0; i < vehicleCount; i++) {
+			int trip = i % tripIds.size();
+			int onTrip = i / tripIds.size();
+			int busesOnTrip = (vehicleCount - trip + tripIds.size() - 1) / tripIds.size();
+			_trips[i] = config.tripStopTimesMap.get(tripIds.get(trip));
+			_routes[i] = tripRoutes.get(trip) != null ? tripRoutes.get(trip) : tripIds.get(trip);
+			_phases[i] = (int) ((long) getLoopTime(_trips[i]) * onTrip / busesOnTrip);
+			_occupancy[i] = _random.nextInt(101);
+		}
+		update(System.currentTimeMillis());
+	}
+
+	/**
+	 * @param meters
+	 *            standard deviation of the GPS error added to every fix
+	 */
+	public void setJitter(double meters) {
+		_jitterMeters = meters;
+	}
+
+	/**
+	 * @param probability
+	 *            chance that a device reports its previous fix again instead
+	 *            of a new one
+	 */
+	public void setDropoutProbability(double probability) {
+		_dropoutProbability = probability;
+	}
+
+	/**
+	 * @param millis
+	 *            how long every response is held back
+	 */
+	public void setLatency(int millis) {
+		_latencyMillis = millis;
+	}
+
+	public int getVehicleCount() {
+		return _vehicleCount;
+	}
+
+	/**
+	 * Starts serving the API.
+	 *
+	 * @param port
+	 *            0 to pick a free port
+	 * @return the base URL of the API, to pass to the provider's
+	 *         setUpstreamUrl
+	 */
+	public String start(int port) throws IOException {
+		_server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		_server.createContext("/api/devices", new JsonHandler() {
+			@Override
+			String respond(URI uri) {
+				return renderDevices();
+			}
+		});
+		_server.createContext("/api/positions", new JsonHandler() {
+			@Override
+			String respond(URI uri) {
+				return renderPositions(getDeviceId(uri.getQuery()));
+			}
+		});
+		_serverExecutor = Executors.newFixedThreadPool(4);
+		_server.setExecutor(_serverExecutor);
+		_server.start();
+		String url = "http://localhost:" + _server.getAddress().getPort();
+		_log.info("simulating " + _vehicleCount + " vehicles at " + url);
+		return url;
+	}
+
+	public void stop() {
+		if (_server != null) {
+			_server.stop(0);
+			_serverExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Moves every bus to where it is at the time, drawing new fixes.
+	 */
+	synchronized void update(long now) {
+		for (int i = 0; i < _vehicleCount; i++) {
+			if (_fixTimes[i] != 0 && _random.nextDouble() < _dropoutProbability)
+				continue;
+			locate(i, now);
+			double jitter = _jitterMeters / PolylineIndex.METERS_PER_DEGREE;
+			_lats[i] += _random.nextGaussian() * jitter;
+			_lons[i] += _random.nextGaussian() * jitter / Math.cos(Math.toRadians(_lats[i]));
+			_fixTimes[i] = now;
+		}
+	}
+
+	/**
+	 * Interpolates the position of the bus between the stops it is driving
+	 * between, going straight from one stop to the next.
+	 */
+	private void locate(int vehicle, long now) {
+		TripStopTimes trip = _trips[vehicle];
+		int interval = getStopInterval(trip);
+		int elapsed = (int) ((now / 1000 + _phases[vehicle]) % getLoopTime(trip));
+		int last = trip.size() - 1;
+		if (elapsed >= arrivalOffset(trip, last, interval)) {
+			_lats[vehicle] = stopLat(trip, last);
+			_lons[vehicle] = stopLon(trip, last);
+			_speeds[vehicle] = 0;
+			return;
+		}
+		int stop = 0;
+		while (stop < last - 1 && arrivalOffset(trip, stop + 1, interval) <= elapsed)
+			stop++;
+		int from = arrivalOffset(trip, stop, interval);
+		int duration = Math.max(1, arrivalOffset(trip, stop + 1, interval) - from);
+		double fraction = (elapsed - from) / (double) duration;
+		double lat0 = stopLat(trip, stop), lon0 = stopLon(trip, stop);
+		double lat1 = stopLat(trip, stop + 1), lon1 = stopLon(trip, stop + 1);
+		_lats[vehicle] = lat0 + (lat1 - lat0) * fraction;
+		_lons[vehicle] = lon0 + (lon1 - lon0) * fraction;
+
+		double north = (lat1 - lat0) * PolylineIndex.METERS_PER_DEGREE;
+		double east = (lon1 - lon0) * PolylineIndex.METERS_PER_DEGREE * Math.cos(Math.toRadians(lat0));
+		_courses[vehicle] = (Math.toDegrees(Math.atan2(east, north)) + 360) % 360;
+		_speeds[vehicle] = Math.sqrt(north * north + east * east) / duration / METERS_PER_KNOT;
+	}
+
+	/**
+	 * @return the stop_times.txt arrival of the stop, or the default spacing
+	 *         if the trip has no times
+	 */
+	private static int arrivalOffset(TripStopTimes trip, int stop, int interval) {
+		return interval > 0 ? stop * interval : trip.arrivalOffsets[stop];
+	}
+
+	private static int getStopInterval(TripStopTimes trip) {
+		return trip.getDuration() > 0 ? 0 : DEFAULT_STOP_INTERVAL;
+	}
+
+	private static int getLoopTime(TripStopTimes trip) {
+		int interval = getStopInterval(trip);
+		return arrivalOffset(trip, trip.size() - 1, interval) + LAYOVER;
+	}
+
+	/**
+	 * stops without coordinates in stops.txt take those of the stop before
+	 */
+	private static double stopLat(TripStopTimes trip, int stop) {
+		while (stop > 0 && Double.isNaN(trip.stopLats[stop]))
+			stop--;
+		return Double.isNaN(trip.stopLats[stop]) ? 0 : trip.stopLats[stop];
+	}
+
+	private static double stopLon(TripStopTimes trip, int stop) {
+		while (stop > 0 && Double.isNaN(trip.stopLons[stop]))
+			stop--;
+		return Double.isNaN(trip.stopLons[stop]) ? 0 : trip.stopLons[stop];
+	}
+
+	/**
+	 * @return the devices as listed by /api/devices, one per bus
+	 */
+	String renderDevices() {
+		StringBuilder json = new StringBuilder(_vehicleCount * 96);
+		json.append('[');
+		for (int i = 0; i < _vehicleCount; i++) {
+			if (i > 0)
+				json.append(',');
+			json.append("{\"id\":").append(i + 1)
+				.append(",\"name\":\"").append(_routes[i])
+				.append("\",\"uniqueId\":\"sim-").append(i + 1)
+				.append("\",\"status\":\"online\",\"attributes\":{}}");
+		}
+		return json.append(']').toString();
+	}
+
+	/**
+	 * @param deviceId
+	 *            the device to report, or 0 for all of them
+	 * @return the latest fixes as listed by /api/positions
+	 */
+	synchronized String renderPositions(int deviceId) {
+		StringBuilder json = new StringBuilder(_vehicleCount * 224);
+		json.append('[');
+		for (int i = 0; i < _vehicleCount; i++) {
+			if (deviceId != 0 && deviceId != i + 1)
+				continue;
+			if (json.length() > 1)
+				json.append(',');
+			String fixTime = _timeFormat.print(_fixTimes[i]);
+			json.append("{\"id\":").append(_fixTimes[i] / 1000 * 16 + (i & 15))
+				.append(",\"deviceId\":").append(i + 1)
+				.append(",\"protocol\":\"osmand\",\"serverTime\":\"").append(fixTime)
+				.append("\",\"deviceTime\":\"").append(fixTime)
+				.append("\",\"fixTime\":\"").append(fixTime)
+				.append("\",\"valid\":true,\"latitude\":").append(_lats[i])
+				.append(",\"longitude\":").append(_lons[i])
+				.append(",\"altitude\":0.0,\"speed\":").append(Math.round(_speeds[i] * 10) / 10.0)
+				.append(",\"course\":").append(Math.round(_courses[i]))
+				.append(",\"APCPercentage\":").append(_occupancy[i])
+				.append(",\"attributes\":{}}");
+		}
+		return json.append(']').toString();
+	}
+
+	private static int getDeviceId(String query) {
+		if (query == null)
+			return 0;
+		for (String parameter : query.split("&")) {
+			if (parameter.startsWith("deviceId="))
+				return Integer.parseInt(parameter.substring("deviceId=".length()));
+		}
+		return 0;
+	}
+
+	/**
+	 * Answers a request with a JSON body after the configured latency, the
+	 * fleet having moved on to the time of the request.
+	 */
+	private abstract class JsonHandler implements HttpHandler {
+
+		abstract String respond(URI uri);
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (_latencyMillis > 0)
+					Thread.sleep(_latencyMillis);
+				update(System.currentTimeMillis());
+				byte[] body = respond(exchange.getRequestURI()).getBytes(UTF8);
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				exchange.sendResponseHeaders(503, -1);
+			} catch (RuntimeException ex) {
+				_log.warn("error answering " + exchange.getRequestURI(), ex);
+				exchange.sendResponseHeaders(500, -1);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int vehicles = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 8082;
+		BullRunnerConfigExtract config = new BullRunnerConfigExtract();
+		config.loadStaticIndex();
+		TraccarSimulator simulator = new TraccarSimulator(config, vehicles);
+		if (args.length > 2)
+			simulator.setJitter(Double.parseDouble(args[2]));
+		if (args.length > 3)
+			simulator.setDropoutProbability(Double.parseDouble(args[3]));
+		if (args.length > 4)
+			simulator.setLatency(Integer.parseInt(args[4]));
+		simulator.start(port);
+	}
+}
@@ -0,0 +1,129 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+/**
+ * The ordered stop pattern of one GTFS trip, as read from stop_times.txt and
+ * stops.txt. Everything is kept in parallel arrays indexed by the position of
+ * the stop in the trip, so matching a vehicle against the trip does not touch
+ * any per-stop objects.
+ */
+public class TripStopTimes {
+
+	public final String tripId;
+
+	public final String[] stopIds;
+
+	public final int[] stopSequences;
+
+	/**
+	 * scheduled arrival at each stop, in seconds after the arrival at the first
+	 * stop of the trip
+	 */
+	public final int[] arrivalOffsets;
+
+	/**
+	 * scheduled arrival at the first stop, in seconds after midnight
+	 */
+	public final int firstArrivalTime;
+
+	public final double[] stopLats;
+
+	public final double[] stopLons;
+
+	/**
+	 * index of the trip's shape in a {@link PolylineIndex}, -1 until
+	 * {@link #setPolyline} is called
+	 */
+	public int polyline = -1;
+
+	/**
+	 * distance of each stop along the polyline, in meters
+	 */
+	public double[] stopDistances;
+
+	/**
+	 * index of each stop in a {@link StopSpatialIndex}, -1 for a stop missing
+	 * from it, null until {@link #setStopIndex} is called
+	 */
+	public int[] stopIndexes;
+
+	public TripStopTimes(String tripId, String[] stopIds, int[] stopSequences,
+			int[] arrivalTimes, double[] stopLats, double[] stopLons) {
+		this.tripId = tripId;
+		this.stopIds = stopIds;
+		this.stopSequences = stopSequences;
+		this.stopLats = stopLats;
+		this.stopLons = stopLons;
+		this.firstArrivalTime = arrivalTimes.length == 0 ? 0 : arrivalTimes[0];
+		this.arrivalOffsets = new int[arrivalTimes.length];
+		for (int i = 0; i < arrivalTimes.length; i++)
+			arrivalOffsets[i] = arrivalTimes[i] - firstArrivalTime;
+	}
+
+	/**
+	 * Locates every stop along the polyline the trip runs on. Stops are
+	 * projected in order, each one no earlier than the previous, so a route
+	 * that passes the same place twice keeps its stops in sequence. Stops
+	 * without coordinates get the distance of the stop before them.
+	 */
+	public void setPolyline(PolylineIndex polylines, int polyline) {
+		this.polyline = polyline;
+		this.stopDistances = new double[stopIds.length];
+		PolylineIndex.Projection projection = new PolylineIndex.Projection();
+		int fromSegment = 0;
+		double distance = 0;
+		for (int i = 0; i < stopIds.length; i++) {
+			if (!Double.isNaN(stopLats[i])
+					&& polylines.project(polyline, stopLats[i], stopLons[i], fromSegment, Integer.MAX_VALUE, projection)) {
+				fromSegment = projection.segment;
+				distance = Math.max(distance, projection.distanceAlong);
+			}
+			stopDistances[i] = distance;
+		}
+	}
+
+	/**
+	 * Looks up every stop of the trip in the spatial index, so fixes can be
+	 * tested against the trip's stops by index.
+	 */
+	public void setStopIndex(StopSpatialIndex stops) {
+		this.stopIndexes = new int[stopIds.length];
+		for (int i = 0; i < stopIds.length; i++)
+			stopIndexes[i] = stops.indexOf(stopIds[i]);
+	}
+
+	/**
+	 * @return the index of the last stop at or before the given distance along
+	 *         the polyline, searching forward from the hint
+	 */
+	public int stopBefore(double distance, int hint) {
+		int i = Math.max(0, Math.min(hint, stopDistances.length - 1));
+		while (i > 0 && stopDistances[i] > distance)
+			i--;
+		while (i + 1 < stopDistances.length && stopDistances[i + 1] <= distance)
+			i++;
+		return i;
+	}
+
+	/**
+	 * @return the index of the stop with the given stop_sequence, or -1
+	 */
+	public int indexOfSequence(int stopSequence) {
+		for (int i = 0; i < stopSequences.length; i++) {
+			if (stopSequences[i] == stopSequence)
+				return i;
+		}
+		return -1;
+	}
+
+	public int size() {
+		return stopIds.length;
+	}
+
+	/**
+	 * @return the scheduled running time from the first to the last stop, in
+	 *         seconds
+	 */
+	public int getDuration() {
+		return arrivalOffsets.length == 0 ? 0 : arrivalOffsets[arrivalOffsets.length - 1];
+	}
+}
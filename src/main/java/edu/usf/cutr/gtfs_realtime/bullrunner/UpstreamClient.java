@@ -0,0 +1,98 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+/**
+ * Downloads JSON from the Traccar API. One client is shared by every feed
+ * hosted in the process: it applies the same timeouts everywhere and bounds
+ * how many requests are in flight at once, so feeds refreshing on the shared
+ * scheduler at the same moment queue up instead of opening a connection each.
+ */
+public class UpstreamClient {
+
+	private final Semaphore _permits;
+
+	private int _connectTimeout = 10000;
+
+	private int _readTimeout = 10000;
+
+	public UpstreamClient() {
+		this(4);
+	}
+
+	/**
+	 * @param maxConcurrentRequests
+	 *            how many requests may be in flight at once
+	 */
+	public UpstreamClient(int maxConcurrentRequests) {
+		_permits = new Semaphore(maxConcurrentRequests, true);
+	}
+
+	/**
+	 * @param connectTimeout
+	 *            connect time out, in milliseconds
+	 * @param readTimeout
+	 *            read time out, in milliseconds
+	 */
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		_connectTimeout = connectTimeout;
+		_readTimeout = readTimeout;
+	}
+
+	public URLConnection openConnection(URL url, String username, String password) throws IOException {
+		URLConnection urlConnection = url.openConnection();
+		urlConnection.setConnectTimeout(_connectTimeout);
+		urlConnection.setReadTimeout(_readTimeout);
+		if (username != null) {
+			String authString = username + ":" + password;
+			String authStringEnc = new String(Base64.encodeBase64(authString.getBytes()));
+			urlConnection.setRequestProperty("Authorization", "Basic " + authStringEnc);
+		}
+		return urlConnection;
+	}
+
+	/**
+	 * @return the JSON array served at the URL
+	 */
+	public JSONArray downloadJsonArray(URL url, String username, String password) throws IOException, JSONException {
+		long start = System.nanoTime();
+		try {
+			_permits.acquire();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting to download " + url);
+		}
+		try {
+			start = PipelineEvents.record(PipelineEvents.Stage.UPSTREAM_WAIT, start, 0, 0);
+			URLConnection urlConnection = openConnection(url, username, password);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					urlConnection.getInputStream(), "UTF-8"));
+			StringBuilder builder = new StringBuilder();
+			try {
+				char[] buffer = new char[8192];
+				int read;
+				while ((read = reader.read(buffer)) != -1)
+					builder.append(buffer, 0, read);
+			} finally {
+				reader.close();
+			}
+			start = PipelineEvents.record(PipelineEvents.Stage.UPSTREAM, start, 0, builder.length());
+			JSONArray array = (JSONArray) new JSONTokener(builder.toString()).nextValue();
+			PipelineEvents.record(PipelineEvents.Stage.JSON, start, array.length(), 0);
+			return array;
+		} finally {
+			_permits.release();
+		}
+	}
+}
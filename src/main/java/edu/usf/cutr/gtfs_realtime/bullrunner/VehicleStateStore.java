@@ -0,0 +1,317 @@
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Arrays;
+
+/**
+ * The recent fixes of every vehicle, kept across refreshes. Each vehicle gets a
+ * slot holding its last few fixes in a ring, and all the slots live in
+ * preallocated primitive arrays, so recording a fix allocates nothing and the
+ * store only grows to the largest fleet seen. Vehicles and routes are known by
+ * their handles in the store's {@link SymbolTable}.
+ *
+ * A fix is only recorded if it is newer than the vehicle's latest one: Traccar
+ * repeats the last fix of a device that stopped reporting, and a fix for an
+ * older time than the latest is out of order. Vehicles that have not reported
+ * a new fix for longer than the time to live are evicted and their slots
+ * reused, and a fix older than that is not taken in again.
+ *
+ * The feed builders work on a {@link FleetSnapshot} of the latest fix of every
+ * vehicle. The store fills two snapshots in turn, so the one published by the
+ * previous refresh stays untouched while the next one is filled, and a reader
+ * holding it sees it whole.
+ */
+public class VehicleStateStore {
+
+	/** the fix was recorded */
+	public static final int ACCEPTED = 0;
+
+	/** the vehicle already has a fix for that time */
+	public static final int DUPLICATE = 1;
+
+	/** the vehicle already has a newer fix */
+	public static final int OUT_OF_ORDER = 2;
+
+	/** the fix is older than the time to live */
+	public static final int STALE = 3;
+
+	private final SymbolTable _symbols;
+
+	private final int _history;
+
+	private int _ttlSeconds = 600;
+
+	/** time of the last eviction, in seconds since the epoch */
+	private long _clock = Long.MIN_VALUE;
+
+	/** slot of each vehicle by its handle, -1 if it has none */
+	private int[] _slotByVehicle = new int[0];
+
+	private int _capacity;
+
+	private int _used;
+
+	private int _vehicleCount;
+
+	private int[] _freeSlots;
+
+	private int _freeCount;
+
+	/** vehicle handle of each slot, -1 for a free slot */
+	private int[] _vehicles;
+
+	private int[] _routes;
+
+	/** index in the ring of the latest fix of each slot */
+	private int[] _heads;
+
+	/** how many fixes each slot holds, at most the history length */
+	private int[] _counts;
+
+	/** the fixes of slot s are at s * history .. (s + 1) * history - 1 */
+	private long[] _fixTimes;
+
+	private double[] _lats;
+
+	private double[] _lons;
+
+	private float[] _bearings;
+
+	private float[] _speeds;
+
+	private int[] _occupancy;
+
+	private FleetSnapshot _back;
+
+	private volatile FleetSnapshot _front;
+
+	private long _duplicates, _outOfOrder, _stale, _evicted;
+
+	public VehicleStateStore() {
+		this(new SymbolTable(), 8, 256);
+	}
+
+	/**
+	 * @param history
+	 *            how many fixes are kept per vehicle
+	 * @param capacity
+	 *            how many vehicles there is room for before the arrays grow
+	 */
+	public VehicleStateStore(SymbolTable symbols, int history, int capacity) {
+		_symbols = symbols;
+		_history = history;
+		_vehicles = new int[0];
+		_routes = new int[0];
+		_heads = new int[0];
+		_counts = new int[0];
+		_freeSlots = new int[0];
+		_fixTimes = new long[0];
+		_lats = new double[0];
+		_lons = new double[0];
+		_bearings = new float[0];
+		_speeds = new float[0];
+		_occupancy = new int[0];
+		allocate(Math.max(1, capacity));
+		_front = new FleetSnapshot(symbols);
+		_back = new FleetSnapshot(symbols);
+	}
+
+	public SymbolTable getSymbols() {
+		return _symbols;
+	}
+
+	/**
+	 * @param seconds
+	 *            how long a vehicle is kept after its latest fix
+	 */
+	public synchronized void setTimeToLive(int seconds) {
+		_ttlSeconds = seconds;
+	}
+
+	private void allocate(int capacity) {
+		_vehicles = Arrays.copyOf(_vehicles, capacity);
+		_routes = Arrays.copyOf(_routes, capacity);
+		_heads = Arrays.copyOf(_heads, capacity);
+		_counts = Arrays.copyOf(_counts, capacity);
+		_freeSlots = Arrays.copyOf(_freeSlots, capacity);
+		_fixTimes = Arrays.copyOf(_fixTimes, capacity * _history);
+		_lats = Arrays.copyOf(_lats, capacity * _history);
+		_lons = Arrays.copyOf(_lons, capacity * _history);
+		_bearings = Arrays.copyOf(_bearings, capacity * _history);
+		_speeds = Arrays.copyOf(_speeds, capacity * _history);
+		_occupancy = Arrays.copyOf(_occupancy, capacity * _history);
+		_capacity = capacity;
+	}
+
+	/**
+	 * Records the fixes of a decoded upstream response.
+	 *
+	 * @return how many fixes were accepted
+	 */
+	public synchronized int record(FleetSnapshot fixes) {
+		int accepted = 0;
+		for (int i = 0; i < fixes.size; i++) {
+			if (record(fixes.vehicles[i], fixes.routes[i], fixes.fixTimes[i], fixes.lats[i], fixes.lons[i],
+					fixes.bearings[i], fixes.speeds[i], fixes.occupancy[i]) == ACCEPTED)
+				accepted++;
+		}
+		return accepted;
+	}
+
+	/**
+	 * Records a fix of a vehicle, unless it is a duplicate, out of order or
+	 * stale.
+	 *
+	 * @param vehicle
+	 *            handle of the vehicle id
+	 * @param route
+	 *            handle of the route id
+	 * @param fixTime
+	 *            time of the fix, in seconds since the epoch
+	 * @param occupancy
+	 *            occupancy of the vehicle in percent
+	 * @return ACCEPTED, DUPLICATE, OUT_OF_ORDER or STALE
+	 */
+	public synchronized int record(int vehicle, int route, long fixTime, double lat, double lon, float bearing,
+			float speed, int occupancy) {
+		if (_clock != Long.MIN_VALUE && fixTime <= _clock - _ttlSeconds) {
+			_stale++;
+			return STALE;
+		}
+		if (vehicle >= _slotByVehicle.length) {
+			int length = _slotByVehicle.length;
+			_slotByVehicle = Arrays.copyOf(_slotByVehicle, Math.max(vehicle + 1, length * 2));
+			Arrays.fill(_slotByVehicle, length, _slotByVehicle.length, -1);
+		}
+		int slot = _slotByVehicle[vehicle];
+		if (slot >= 0) {
+			long latest = _fixTimes[slot * _history + _heads[slot]];
+			if (fixTime == latest) {
+				_duplicates++;
+				return DUPLICATE;
+			}
+			if (fixTime < latest) {
+				_outOfOrder++;
+				return OUT_OF_ORDER;
+			}
+			_heads[slot] = (_heads[slot] + 1) % _history;
+			if (_counts[slot] < _history)
+				_counts[slot]++;
+		} else {
+			slot = newSlot();
+			_slotByVehicle[vehicle] = slot;
+			_vehicles[slot] = vehicle;
+			_heads[slot] = 0;
+			_counts[slot] = 1;
+			_vehicleCount++;
+		}
+		_routes[slot] = route;
+		int fix = slot * _history + _heads[slot];
+		_fixTimes[fix] = fixTime;
+		_lats[fix] = lat;
+		_lons[fix] = lon;
+		_bearings[fix] = bearing;
+		_speeds[fix] = speed;
+		_occupancy[fix] = occupancy;
+		return ACCEPTED;
+	}
+
+	private int newSlot() {
+		if (_freeCount > 0)
+			return _freeSlots[--_freeCount];
+		if (_used == _capacity)
+			allocate(_capacity * 2);
+		return _used++;
+	}
+
+	/**
+	 * Drops the vehicles whose latest fix is older than the time to live.
+	 *
+	 * @param now
+	 *            in seconds since the epoch
+	 * @return how many vehicles were evicted
+	 */
+	public synchronized int evictIdle(long now) {
+		_clock = now;
+		int evicted = 0;
+		for (int slot = 0; slot < _used; slot++) {
+			if (_counts[slot] == 0)
+				continue;
+			if (_fixTimes[slot * _history + _heads[slot]] <= now - _ttlSeconds) {
+				_slotByVehicle[_vehicles[slot]] = -1;
+				_vehicles[slot] = -1;
+				_counts[slot] = 0;
+				_freeSlots[_freeCount++] = slot;
+				evicted++;
+			}
+		}
+		_vehicleCount -= evicted;
+		_evicted += evicted;
+		return evicted;
+	}
+
+	/**
+	 * Copies the latest fix of every vehicle into the snapshot that is not
+	 * published and publishes it, so the snapshot returned by the previous call
+	 * is the one filled next time.
+	 */
+	public synchronized FleetSnapshot snapshot() {
+		FleetSnapshot snapshot = _back;
+		snapshot.clear();
+		for (int slot = 0; slot < _used; slot++) {
+			if (_counts[slot] == 0)
+				continue;
+			int fix = slot * _history + _heads[slot];
+			snapshot.add(_vehicles[slot], _routes[slot], _fixTimes[fix], _lats[fix], _lons[fix], _bearings[fix],
+					_speeds[fix], _occupancy[fix]);
+		}
+		_back = _front;
+		_front = snapshot;
+		return snapshot;
+	}
+
+	/**
+	 * @return the snapshot published by the last call to {@link #snapshot()}
+	 */
+	public FleetSnapshot getSnapshot() {
+		return _front;
+	}
+
+	/**
+	 * Copies the fixes of a vehicle, latest first.
+	 *
+	 * @return how many fixes were copied, at most the length of the arrays
+	 */
+	public synchronized int getHistory(int vehicle, long[] fixTimes, double[] lats, double[] lons) {
+		int slot = vehicle >= 0 && vehicle < _slotByVehicle.length ? _slotByVehicle[vehicle] : -1;
+		if (slot < 0)
+			return 0;
+		int count = Math.min(_counts[slot], fixTimes.length);
+		for (int i = 0; i < count; i++) {
+			int fix = slot * _history + (_heads[slot] - i + _history) % _history;
+			fixTimes[i] = _fixTimes[fix];
+			lats[i] = _lats[fix];
+			lons[i] = _lons[fix];
+		}
+		return count;
+	}
+
+	public synchronized int size() {
+		return _vehicleCount;
+	}
+
+	public synchronized long getDuplicates() {
+		return _duplicates;
+	}
+
+	public synchronized long getOutOfOrder() {
+		return _outOfOrder;
+	}
+
+	public synchronized long getStale() {
+		return _stale;
+	}
+
+	public synchronized long getEvicted() {
+		return _evicted;
+	}
+}